@@ -0,0 +1,102 @@
+package com.tuacy.library.concurrent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of task submission to {@link AndroidExecutors#newFixedPriorityExecutor(int)} and {@link
+ * AndroidExecutors#newVirtualThreadPriorityExecutor(int)}, every task goes through the {@link java.util.concurrent.PriorityBlockingQueue}
+ * of {@link AndroidThreadPool} or {@link VirtualThreadPriorityExecutor}. Results are in tasks per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutorBenchmark {
+
+	private static final int BATCH = 1000;
+
+	private static final int PRIORITY_COUNT = 3;
+
+	@Param({"1",
+			"3"})
+	public int threads;
+
+	@Param({"fixed",
+			"virtual"})
+	public String executor;
+
+	private PausableExecutorService mExecutor;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mExecutor = "virtual".equals(executor) ? AndroidExecutors.newVirtualThreadPriorityExecutor(threads) :
+					AndroidExecutors.newFixedPriorityExecutor(threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Tasks are taken as soon as they are submitted, the queue stays short.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void submitAndRun() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			mExecutor.submit(new CountDownTask(i % PRIORITY_COUNT, latch));
+		}
+		latch.await();
+	}
+
+	/**
+	 * Tasks are submitted while the pool is paused, so the whole batch is ordered in the priority queue before running.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void submitWhilePaused() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(BATCH);
+		mExecutor.pause();
+		for (int i = 0; i < BATCH; i++) {
+			mExecutor.submit(new CountDownTask(i % PRIORITY_COUNT, latch));
+		}
+		mExecutor.resume();
+		latch.await();
+	}
+
+	private static class CountDownTask extends PriorityTask<Void> {
+
+		private final CountDownLatch mLatch;
+
+		CountDownTask(int priority, CountDownLatch latch) {
+			super(priority);
+			mLatch = latch;
+		}
+
+		@Override
+		public Void call() {
+			mLatch.countDown();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.tuacy.library.httpdownload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process http server used by the benchmarks, it serves one file of random bytes from memory on the loopback interface and supports
+ * single byte ranges, so the network and the disk of the server never take part in the measurement.
+ */
+class LocalHttpServer {
+
+	private final byte[]          mData;
+	private final HttpServer      mServer;
+	private final ExecutorService mExecutor;
+
+	/**
+	 * @param size size of the file in bytes
+	 * @throws IOException if the server cannot be started
+	 */
+	LocalHttpServer(int size) throws IOException {
+		mData = new byte[size];
+		new Random(size).nextBytes(mData);
+
+		mExecutor = Executors.newCachedThreadPool();
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		mServer.start();
+	}
+
+	/**
+	 * Get the url of the file.
+	 *
+	 * @return url
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/file.bin";
+	}
+
+	void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		long start = 0;
+		long end = mData.length - 1;
+		int statusCode = 200;
+
+		/* only "bytes=start-" and "bytes=start-end" are sent by the download workers */
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=")) {
+			String spec = range.substring("bytes=".length());
+			int dash = spec.indexOf('-');
+			start = Long.parseLong(spec.substring(0, dash));
+			if (dash < spec.length() - 1) {
+				end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+			}
+			statusCode = 206;
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + mData.length);
+		}
+
+		exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+		exchange.getResponseHeaders().add("ETag", "\"" + mData.length + "\"");
+		exchange.sendResponseHeaders(statusCode, end - start + 1);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(mData, (int) start, (int) (end - start + 1));
+		} catch (IOException ignore) {
+			/* the client has closed the connection */
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.tuacy.library.httpdownload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the {@link PriorityBlockingQueue} the download runnables wait in: offer and poll against a queue already holding the given
+ * count of runnables of mixed priorities. The cost grows with the log of the count, the throughput at 100000 stays close to the one at
+ * 10000.
+ *
+ * The setup drains a full queue once and fails if the runnables of the same priority are not polled in the order they were created.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriorityQueueBenchmark {
+
+	/**
+	 * Count of runnables which are not in the queue, used to offer.
+	 */
+	private static final int SPARE_COUNT = 1024;
+
+	private static final DownloadRequest.Priority[] PRIORITIES = DownloadRequest.Priority.values();
+
+	@Param({"10000",
+			"100000"})
+	public int size;
+
+	private PriorityBlockingQueue<DownloadPrioritizedRunnable> mQueue;
+	private DownloadPrioritizedRunnable[]                      mSpares;
+	private int                                                mSpareCursor;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		DownloadManager manager = DownloadManager.getInstance();
+		DownloadPrioritizedRunnable[] runnables = newRunnables(manager, size);
+		verifyOrder(runnables);
+
+		mQueue = new PriorityBlockingQueue<>(size + 1);
+		for (DownloadPrioritizedRunnable runnable : runnables) {
+			mQueue.offer(runnable);
+		}
+		mSpares = newRunnables(manager, SPARE_COUNT);
+	}
+
+	private static DownloadPrioritizedRunnable[] newRunnables(DownloadManager manager, int count) {
+		DownloadPrioritizedRunnable[] runnables = new DownloadPrioritizedRunnable[count];
+		for (int i = 0; i < count; i++) {
+			DownloadRequest request = new DownloadRequest().setUrl("http://download.example.com/files/" + i + "/file.bin")
+														   .setPriority(PRIORITIES[i % PRIORITIES.length]);
+			runnables[i] = new DownloadPrioritizedRunnable(request, manager);
+		}
+		return runnables;
+	}
+
+	/* the runnables are created in order, so within a priority they must be polled in the order of the array */
+	private static void verifyOrder(DownloadPrioritizedRunnable[] runnables) {
+		PriorityBlockingQueue<DownloadPrioritizedRunnable> queue = new PriorityBlockingQueue<>(runnables.length);
+		for (int i = runnables.length - 1; i >= 0; i--) {
+			queue.offer(runnables[i]);
+		}
+
+		for (int p = PRIORITIES.length - 1; p >= 0; p--) {
+			for (int i = p; i < runnables.length; i += PRIORITIES.length) {
+				if (queue.poll() != runnables[i]) {
+					throw new IllegalStateException("runnable " + i + " of priority " + PRIORITIES[p] + " is polled out of order");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Offer a spare runnable and poll the head, the polled one is offered again later. The size of the queue stays the same.
+	 */
+	@Benchmark
+	public DownloadPrioritizedRunnable offerAndPoll() {
+		mQueue.offer(mSpares[mSpareCursor]);
+		DownloadPrioritizedRunnable head = mQueue.poll();
+		mSpares[mSpareCursor] = head;
+		mSpareCursor = (mSpareCursor + 1) % SPARE_COUNT;
+		return head;
+	}
+}
@@ -0,0 +1,97 @@
+package com.tuacy.library.httpdownload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link DownloadRequestHelpQueue}: queries, cancel and add/finish churn against a registry already holding the given count of
+ * requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestRegistryBenchmark {
+
+	/**
+	 * Count of requests which are not in the registry, used to add and finish.
+	 */
+	private static final int SPARE_COUNT = 1024;
+
+	@Param({"10000",
+			"100000"})
+	public int size;
+
+	private DownloadRequestHelpQueue mQueue;
+	private String[]                 mUrls;
+	private int[]                    mDownloadIds;
+	private DownloadRequest[]        mSpares;
+	private int                      mCursor;
+	private int                      mSpareCursor;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mQueue = new DownloadRequestHelpQueue();
+		mUrls = new String[size];
+		mDownloadIds = new int[size];
+		for (int i = 0; i < size; i++) {
+			/* not normalized on purpose, the registry normalizes the url of every lookup */
+			mUrls[i] = "http://Download.Example.com:80/files/" + i + "/file.bin";
+			DownloadRequest request = new DownloadRequest().setUrl(mUrls[i]);
+			if (!mQueue.add(request)) {
+				throw new IllegalStateException("cannot add request " + i);
+			}
+			mDownloadIds[i] = request.getDownloadId();
+		}
+
+		mSpares = new DownloadRequest[SPARE_COUNT];
+		for (int i = 0; i < SPARE_COUNT; i++) {
+			mSpares[i] = new DownloadRequest().setUrl("http://download.example.com/spares/" + i + "/file.bin");
+		}
+	}
+
+	private int next() {
+		if (++mCursor == size) {
+			mCursor = 0;
+		}
+		return mCursor;
+	}
+
+	@Benchmark
+	public DownloadRequest.DownloadState queryById() {
+		return mQueue.query(mDownloadIds[next()]);
+	}
+
+	@Benchmark
+	public DownloadRequest.DownloadState queryByUrl() {
+		return mQueue.query(mUrls[next()]);
+	}
+
+	@Benchmark
+	public void cancelByUrl() {
+		mQueue.cancel(mUrls[next()]);
+	}
+
+	@Benchmark
+	public boolean addAndFinish() {
+		DownloadRequest request = mSpares[mSpareCursor];
+		mSpareCursor = (mSpareCursor + 1) % SPARE_COUNT;
+		boolean added = mQueue.add(request);
+		mQueue.finishDownloadRequest(request);
+		return added;
+	}
+}
@@ -0,0 +1,106 @@
+package com.tuacy.library.httpdownload;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the transfer path: every operation downloads the whole file from {@link LocalHttpServer} with {@link
+ * DownloadPrioritizedRunnable} in the benchmark thread, from opening the connection to renaming the temp file. The throughput is reported
+ * as downloads per second and as megabytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({"1048576",
+			"16777216"})
+	public int fileSize;
+
+	@Param({"STREAM",
+			"CHANNEL"})
+	public DownloadRequest.TransferMode transferMode;
+
+	@Param({"1",
+			"4"})
+	public int segmentCount;
+
+	private LocalHttpServer mServer;
+	private DownloadManager mManager;
+	private File            mDir;
+	private int             mSequence;
+
+	/**
+	 * Megabytes downloaded, reported as a rate by JMH.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mServer = new LocalHttpServer(fileSize);
+		mManager = DownloadManager.getInstance();
+		mDir = File.createTempFile("transfer", "");
+		if (!mDir.delete() || !mDir.mkdirs()) {
+			throw new IOException("cannot create directory " + mDir);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	public void tearDown() {
+		mServer.stop();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	@Benchmark
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	public void download(Bytes bytes) {
+		File file = new File(mDir, "file" + mSequence++);
+		DownloadRequest request = new DownloadRequest().setUrl(mServer.getUrl())
+													   .setDestFilePath(file.getPath())
+													   .setTransferMode(transferMode)
+													   .setSegmentCount(segmentCount);
+		new DownloadPrioritizedRunnable(request, mManager).run();
+		if (request.getDownloadState() != DownloadRequest.DownloadState.SUCCESSFUL || file.length() != fileSize) {
+			throw new IllegalStateException("download failed, state: " + request.getDownloadState());
+		}
+
+		bytes.megabytes += fileSize / (1024.0 * 1024.0);
+		file.delete();
+	}
+}
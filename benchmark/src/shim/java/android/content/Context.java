@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * JVM shim of Context for the benchmarks, only the deprecated signature of DownloadRequest refers to it.
+ */
+public abstract class Context {
+}
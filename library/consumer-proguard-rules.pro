@@ -0,0 +1,7 @@
+# ProGuard rules applied to the apps using this library.
+
+# The android download platform is created by name when no platform has been set, keep it and its constructors.
+-keep class com.tuacy.library.httpdownload.android.AndroidDownloadPlatform {
+    public <init>();
+    public <init>(android.content.Context);
+}
@@ -18,22 +18,45 @@ public class AndroidExecutors {
 	/* package */ static final int  CORE_POOL_SIZE  = CPU_COUNT + 1;
 	/* package */ static final int  MAX_POOL_SIZE   = CPU_COUNT * 2 + 1;
 	/* package */ static final long KEEP_ALIVE_TIME = 1L;
+	/* package */ static final int  VIRTUAL_THREAD_COUNT = 256;
 
-	public static PausableExecutorService newSingleThreadExecutor() {
+	public static ResizableExecutorService newSingleThreadExecutor() {
 		return new FinalizableDelegatedExecutorService(
 			new AndroidThreadPool(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()));
 	}
 
-	public static PausableExecutorService newSinglePriorityExecutor() {
+	public static ResizableExecutorService newSinglePriorityExecutor() {
 		return new FinalizableDelegatedExecutorService(
 			new AndroidThreadPool(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>()));
 	}
 
-	public static PausableExecutorService newFixedPriorityExecutor(int nThreads) {
+	public static ResizableExecutorService newFixedPriorityExecutor(int nThreads) {
 		return new FinalizableDelegatedExecutorService(
 			new AndroidThreadPool(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>()));
 	}
 
+	/**
+	 * Creates a priority executor running every task on a virtual thread, at most 256 tasks run at the same time.
+	 *
+	 * @return the newly created executor
+	 * @see VirtualThreadPriorityExecutor
+	 */
+	public static ResizableExecutorService newVirtualThreadPriorityExecutor() {
+		return newVirtualThreadPriorityExecutor(VIRTUAL_THREAD_COUNT);
+	}
+
+	/**
+	 * Creates a priority executor running every task on a virtual thread. Virtual threads need java 21, on other runtimes a platform thread
+	 * is created for every task.
+	 *
+	 * @param nThreads max count of tasks running at the same time
+	 * @return the newly created executor
+	 * @see VirtualThreadPriorityExecutor
+	 */
+	public static ResizableExecutorService newVirtualThreadPriorityExecutor(int nThreads) {
+		return new FinalizableDelegatedExecutorService(new VirtualThreadPriorityExecutor(nThreads));
+	}
+
 	/**
 	 * Creates a proper Cached Thread Pool. Tasks will reuse cached threads if available or create new threads until the core pool is full.
 	 * tasks will then be queued. If an task cannot be queued, a new thread will be created unless this would exceed max pool size, then the
@@ -66,11 +89,11 @@ public class AndroidExecutors {
 	 * A wrapper class that exposes only the ExecutorService methods of an ExecutorService implementation.
 	 */
 	@SuppressWarnings("NullableProblems")
-	static class DelegatedExecutorService extends AbstractExecutorService implements PausableExecutorService {
+	static class DelegatedExecutorService extends AbstractExecutorService implements ResizableExecutorService {
 
-		private final PausableExecutorService e;
+		private final ResizableExecutorService e;
 
-		DelegatedExecutorService(PausableExecutorService executor) {
+		DelegatedExecutorService(ResizableExecutorService executor) {
 			e = executor;
 		}
 
@@ -142,11 +165,31 @@ public class AndroidExecutors {
 		public boolean isPause() {
 			return e.isPause();
 		}
+
+		@Override
+		public void setThreadCount(int count) {
+			e.setThreadCount(count);
+		}
+
+		@Override
+		public int getThreadCount() {
+			return e.getThreadCount();
+		}
+
+		@Override
+		public int getActiveCount() {
+			return e.getActiveCount();
+		}
+
+		@Override
+		public int getQueueSize() {
+			return e.getQueueSize();
+		}
 	}
 
 	static class FinalizableDelegatedExecutorService extends DelegatedExecutorService {
 
-		FinalizableDelegatedExecutorService(PausableExecutorService executor) {
+		FinalizableDelegatedExecutorService(ResizableExecutorService executor) {
 			super(executor);
 		}
 
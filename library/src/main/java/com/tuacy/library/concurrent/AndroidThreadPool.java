@@ -10,7 +10,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class AndroidThreadPool extends ThreadPoolExecutor implements PausableExecutorService {
+public class AndroidThreadPool extends ThreadPoolExecutor implements ResizableExecutorService {
 
 	private boolean isPaused;
 	private ReentrantLock pauseLock = new ReentrantLock();
@@ -98,4 +98,30 @@ public class AndroidThreadPool extends ThreadPoolExecutor implements PausableExe
 	public boolean isPause() {
 		return isPaused;
 	}
+
+	@Override
+	public synchronized void setThreadCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("thread count must be greater than 0");
+		}
+
+		/* core pool size can never be greater than max pool size, so the order depends on the direction */
+		if (count > getMaximumPoolSize()) {
+			setMaximumPoolSize(count);
+			setCorePoolSize(count);
+		} else {
+			setCorePoolSize(count);
+			setMaximumPoolSize(count);
+		}
+	}
+
+	@Override
+	public int getThreadCount() {
+		return getCorePoolSize();
+	}
+
+	@Override
+	public int getQueueSize() {
+		return getQueue().size();
+	}
 }
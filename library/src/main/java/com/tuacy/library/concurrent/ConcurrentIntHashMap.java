@@ -0,0 +1,211 @@
+package com.tuacy.library.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A hash map with primitive int keys. Reads are lock-free, writes are serialized by the map itself. Keys are kept in an open addressing
+ * table with linear probing, a removed entry leaves a tombstone which is dropped when the table is rebuilt.
+ *
+ * @param <V> the type of values
+ */
+public class ConcurrentIntHashMap<V> {
+
+	private static final Object TOMBSTONE = new Object();
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * Live entries and tombstones never take more than half of the table, so a probe always ends at an empty slot.
+	 */
+	private static final int MAX_LOAD_DIVISOR = 2;
+
+	private static final class Table {
+
+		final int[]                        keys;
+		final AtomicReferenceArray<Object> values;
+		final int                          mask;
+
+		Table(int capacity) {
+			keys = new int[capacity];
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table mTable = new Table(DEFAULT_CAPACITY);
+
+	private volatile int mSize = 0;
+
+	/**
+	 * Count of live entries and tombstones, guarded by this.
+	 */
+	private int mUsed = 0;
+
+	/**
+	 * Get the value of key without locking.
+	 *
+	 * @param key the key
+	 * @return the value, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		Table table = mTable;
+		for (int i = hash(key) & table.mask; ; i = (i + 1) & table.mask) {
+			/* the key of a slot is written before its value, so a non-null value always comes with its key */
+			Object value = table.values.get(i);
+			if (value == null) {
+				return null;
+			}
+			if (table.keys[i] == key) {
+				return value == TOMBSTONE ? null : (V) value;
+			}
+		}
+	}
+
+	/**
+	 * Put the value if the key is not in the map.
+	 *
+	 * @param key   the key
+	 * @param value the value, cannot be null
+	 * @return the value already in the map, or null if the value has been put
+	 */
+	public synchronized V putIfAbsent(int key, V value) {
+		V old = get(key);
+		if (old == null) {
+			put(key, value);
+		}
+		return old;
+	}
+
+	/**
+	 * Put the value of key.
+	 *
+	 * @param key   the key
+	 * @param value the value, cannot be null
+	 */
+	public synchronized void put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("value cannot be null");
+		}
+
+		Table table = mTable;
+		int slot = findSlot(table, key);
+		Object old = table.values.get(slot);
+		if (old == null) {
+			/* a new slot is taken, rebuild the table first if it is too full */
+			if ((mUsed + 1) * MAX_LOAD_DIVISOR > table.keys.length) {
+				table = rebuild(mSize + 1);
+				slot = findSlot(table, key);
+			}
+			mUsed++;
+		}
+
+		if (old == null || old == TOMBSTONE) {
+			mSize++;
+		}
+		table.keys[slot] = key;
+		table.values.set(slot, value);
+	}
+
+	/**
+	 * Remove the key.
+	 *
+	 * @param key the key
+	 * @return the value removed, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(int key) {
+		Table table = mTable;
+		int slot = findSlot(table, key);
+		Object old = table.values.get(slot);
+		if (old == null || old == TOMBSTONE) {
+			return null;
+		}
+
+		table.values.set(slot, TOMBSTONE);
+		mSize--;
+		return (V) old;
+	}
+
+	/**
+	 * Remove the key only if it is mapped to the value.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 * @return true if the key has been removed
+	 */
+	public synchronized boolean remove(int key, V value) {
+		if (get(key) != value) {
+			return false;
+		}
+
+		remove(key);
+		return true;
+	}
+
+	/**
+	 * Get the count of entries.
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Get a snapshot of all the values.
+	 *
+	 * @return values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		Table table = mTable;
+		List<V> values = new ArrayList<>(mSize);
+		for (int i = 0; i < table.keys.length; i++) {
+			Object value = table.values.get(i);
+			if (value != null && value != TOMBSTONE) {
+				values.add((V) value);
+			}
+		}
+		return values;
+	}
+
+	/* find the slot of key, or the empty slot where the key should be put */
+	private static int findSlot(Table table, int key) {
+		int i = hash(key) & table.mask;
+		while (table.values.get(i) != null && table.keys[i] != key) {
+			i = (i + 1) & table.mask;
+		}
+		return i;
+	}
+
+	/* rebuild the table without tombstones, the new table is published only after it is filled */
+	private Table rebuild(int size) {
+		int capacity = DEFAULT_CAPACITY;
+		while (size * MAX_LOAD_DIVISOR * 2 > capacity) {
+			capacity <<= 1;
+		}
+
+		Table old = mTable;
+		Table table = new Table(capacity);
+		for (int i = 0; i < old.keys.length; i++) {
+			Object value = old.values.get(i);
+			if (value != null && value != TOMBSTONE) {
+				int slot = findSlot(table, old.keys[i]);
+				table.keys[slot] = old.keys[i];
+				table.values.set(slot, value);
+			}
+		}
+
+		mUsed = mSize;
+		mTable = table;
+		return table;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,36 @@
+package com.tuacy.library.concurrent;
+
+/**
+ * A pausable executor service whose count of worker threads can be changed at runtime.
+ */
+public interface ResizableExecutorService extends PausableExecutorService {
+
+	/**
+	 * Set the count of worker threads. When shrinking, idle threads exit at once and busy threads exit after their current task.
+	 *
+	 * @param count thread count, must be greater than 0
+	 */
+	public void setThreadCount(int count);
+
+	/**
+	 * Get the count of worker threads.
+	 *
+	 * @return thread count
+	 */
+	public int getThreadCount();
+
+	/**
+	 * Get the approximate count of threads running tasks.
+	 *
+	 * @return active count
+	 */
+	public int getActiveCount();
+
+	/**
+	 * Get the count of tasks waiting in queue.
+	 *
+	 * @return queue size
+	 */
+	public int getQueueSize();
+
+}
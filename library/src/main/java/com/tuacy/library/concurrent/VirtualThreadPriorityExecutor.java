@@ -0,0 +1,321 @@
+package com.tuacy.library.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An executor which runs every task on a new virtual thread instead of a pooled platform thread. The tasks wait in a priority queue like
+ * {@link AndroidThreadPool}, and a semaphore lets at most thread count of them run at the same time. A virtual thread blocked in I/O only
+ * parks, so the thread count can be in thousands without the stack of a platform thread each.
+ *
+ * Virtual threads are looked up by reflection, on a runtime without them, such as android or java before 21, a platform thread is created
+ * for every task instead, see {@link #isVirtualThreadSupported()}.
+ */
+public class VirtualThreadPriorityExecutor extends AbstractExecutorService implements ResizableExecutorService {
+
+	private static final String THREAD_NAME_PREFIX = "virtual-priority-";
+
+	private final ThreadFactory                   mThreadFactory;
+	private final PriorityBlockingQueue<Runnable> mQueue      = new PriorityBlockingQueue<>();
+	private final Permits                         mPermits;
+	private final ReentrantLock                   mLock       = new ReentrantLock();
+	private final Condition                       mTerminated = mLock.newCondition();
+
+	/**
+	 * Threads running tasks and the max count of them, guarded by mLock.
+	 */
+	private final Set<Thread> mRunning = new HashSet<>();
+	private       int         mThreadCount;
+
+	private volatile boolean mPaused;
+	private volatile boolean mShutdown;
+
+	/**
+	 * @param threadCount max count of tasks running at the same time
+	 */
+	public VirtualThreadPriorityExecutor(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("thread count must be greater than 0");
+		}
+
+		ThreadFactory factory = newVirtualThreadFactory();
+		mThreadFactory = factory != null ? factory : newPlatformThreadFactory();
+		mThreadCount = threadCount;
+		mPermits = new Permits(threadCount);
+	}
+
+	/**
+	 * Whether or not the runtime has virtual threads.
+	 *
+	 * @return true on java 21 or later
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return newVirtualThreadFactory() != null;
+	}
+
+	/* Thread.ofVirtual().name(prefix, 0).factory(), null if not supported */
+	private static ThreadFactory newVirtualThreadFactory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			return null;
+		}
+	}
+
+	private static ThreadFactory newPlatformThreadFactory() {
+		return new ThreadFactory() {
+
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, THREAD_NAME_PREFIX + mCount.getAndIncrement());
+			}
+		};
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		return new ComparableFutureTask<T>(runnable, value);
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		return new ComparableFutureTask<T>(callable);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		if (mShutdown) {
+			throw new RejectedExecutionException("executor has been shut down");
+		}
+
+		mQueue.offer(command);
+		drain();
+	}
+
+	/* start the queued tasks while there are permits and the executor is not paused */
+	private void drain() {
+		while (!mPaused && mPermits.tryAcquire()) {
+			mLock.lock();
+			try {
+				Runnable task = mQueue.poll();
+				if (task != null) {
+					start(task);
+					continue;
+				}
+			} finally {
+				mLock.unlock();
+			}
+
+			mPermits.release();
+			/* a task queued meanwhile may have found no permit, it is started here */
+			if (mQueue.isEmpty()) {
+				return;
+			}
+		}
+	}
+
+	/* guarded by mLock */
+	private void start(final Runnable task) {
+		Thread thread = mThreadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					finish(Thread.currentThread());
+				}
+			}
+		});
+		mRunning.add(thread);
+		thread.start();
+	}
+
+	private void finish(Thread thread) {
+		mLock.lock();
+		try {
+			mRunning.remove(thread);
+			signalIfTerminated();
+		} finally {
+			mLock.unlock();
+		}
+		mPermits.release();
+		drain();
+	}
+
+	/* guarded by mLock */
+	private void signalIfTerminated() {
+		if (mShutdown && mRunning.isEmpty() && mQueue.isEmpty()) {
+			mTerminated.signalAll();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		mShutdown = true;
+		mLock.lock();
+		try {
+			signalIfTerminated();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		mShutdown = true;
+		List<Runnable> tasks = new ArrayList<>();
+		mLock.lock();
+		try {
+			mQueue.drainTo(tasks);
+			for (Thread thread : mRunning) {
+				thread.interrupt();
+			}
+			signalIfTerminated();
+		} finally {
+			mLock.unlock();
+		}
+		return tasks;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return mShutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		mLock.lock();
+		try {
+			return mShutdown && mRunning.isEmpty() && mQueue.isEmpty();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		mLock.lock();
+		try {
+			while (!(mShutdown && mRunning.isEmpty() && mQueue.isEmpty())) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = mTerminated.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * The queued tasks wait until resumed, the running ones go on.
+	 */
+	@Override
+	public void pause() {
+		mPaused = true;
+	}
+
+	@Override
+	public void resume() {
+		mPaused = false;
+		drain();
+	}
+
+	@Override
+	public boolean isPause() {
+		return mPaused;
+	}
+
+	/**
+	 * Set the max count of tasks running at the same time. When shrinking, the running tasks are not interrupted, no more is started until
+	 * the count has dropped below.
+	 *
+	 * @param count thread count, must be greater than 0
+	 */
+	@Override
+	public void setThreadCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("thread count must be greater than 0");
+		}
+
+		mLock.lock();
+		try {
+			int delta = count - mThreadCount;
+			mThreadCount = count;
+			if (delta > 0) {
+				mPermits.release(delta);
+			} else if (delta < 0) {
+				mPermits.reducePermits(-delta);
+			}
+		} finally {
+			mLock.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public int getThreadCount() {
+		mLock.lock();
+		try {
+			return mThreadCount;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int getActiveCount() {
+		mLock.lock();
+		try {
+			return mRunning.size();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int getQueueSize() {
+		return mQueue.size();
+	}
+
+	/**
+	 * A semaphore whose permits can be reduced below the ones in use.
+	 */
+	private static final class Permits extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		Permits(int permits) {
+			super(permits);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
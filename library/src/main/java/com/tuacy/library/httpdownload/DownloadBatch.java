@@ -0,0 +1,225 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DownloadBatch: a group of download requests which are added to {@link DownloadManager} in one call. The bytes and the files of all the
+ * requests are aggregated, so a bulk job gets one progress callback per frame and one completion callback instead of callbacks for every
+ * file. A batch can only be added once.
+ */
+public class DownloadBatch {
+
+	private final List<DownloadRequest> mRequests = new ArrayList<>();
+
+	/**
+	 * Urls of the requests failed, canceled or stopped.
+	 */
+	private final List<String> mFailedUrls = Collections.synchronizedList(new ArrayList<String>());
+
+	private final AtomicLong    mBytesWritten  = new AtomicLong();
+	private final AtomicLong    mTotalBytes    = new AtomicLong();
+	private final AtomicInteger mSuccessCount  = new AtomicInteger();
+	private final AtomicInteger mFailureCount  = new AtomicInteger();
+	private final AtomicInteger mFinishedCount = new AtomicInteger();
+
+	/**
+	 * Progress of every request last reported, indexed by the batch index of request. Every index is only written by the worker of its
+	 * request.
+	 */
+	private long[] mRequestBytesWritten;
+	private long[] mRequestTotalBytes;
+
+	private volatile int     mTotalCount = 0;
+	private volatile boolean mStarted    = false;
+
+	/**
+	 * Whether or not the progress is waiting for a frame of {@link DownloadDelivery}, written with the lock of delivery.
+	 */
+	private volatile boolean mProgressPending = false;
+
+	private DownloadBatchListener mBatchListener;
+
+	/**
+	 * Add a request into this batch.
+	 *
+	 * @param request download request
+	 * @return this batch object to allow for chaining
+	 */
+	public DownloadBatch add(DownloadRequest request) {
+		if (request == null) {
+			throw new IllegalArgumentException("DownloadRequest cannot be null");
+		}
+		if (mStarted) {
+			throw new IllegalStateException("the batch has been added to download manager");
+		}
+
+		mRequests.add(request);
+		return this;
+	}
+
+	/**
+	 * Set the batch listener.
+	 *
+	 * @param l batch listener
+	 * @return this batch object to allow for chaining
+	 */
+	public DownloadBatch setBatchListener(DownloadBatchListener l) {
+		mBatchListener = l;
+		return this;
+	}
+
+	/**
+	 * Get the batch listener.
+	 *
+	 * @return batch listener
+	 */
+	protected DownloadBatchListener getBatchListener() {
+		return mBatchListener;
+	}
+
+	/**
+	 * Get the count of requests accepted by download manager, the requests already in downloading are not counted.
+	 *
+	 * @return total count
+	 */
+	public int getTotalCount() {
+		return mTotalCount;
+	}
+
+	/**
+	 * Get the count of requests downloaded successfully.
+	 *
+	 * @return success count
+	 */
+	public int getSuccessCount() {
+		return mSuccessCount.get();
+	}
+
+	/**
+	 * Get the count of requests failed, canceled or stopped.
+	 *
+	 * @return failure count
+	 */
+	public int getFailureCount() {
+		return mFailureCount.get();
+	}
+
+	/**
+	 * Get the count of requests which have finished.
+	 *
+	 * @return finished count
+	 */
+	public int getFinishedCount() {
+		return mFinishedCount.get();
+	}
+
+	/**
+	 * Get the bytes of all the requests have written to local disk.
+	 *
+	 * @return bytes written
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten.get();
+	}
+
+	/**
+	 * Get the total bytes of all the requests which have started.
+	 *
+	 * @return total bytes
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes.get();
+	}
+
+	/**
+	 * Get the urls of the requests failed, canceled or stopped.
+	 *
+	 * @return a snapshot of urls
+	 */
+	public List<String> getFailedUrls() {
+		synchronized (mFailedUrls) {
+			return new ArrayList<>(mFailedUrls);
+		}
+	}
+
+	/**
+	 * Get the requests added into this batch.
+	 *
+	 * @return requests
+	 */
+	protected List<DownloadRequest> getRequests() {
+		return mRequests;
+	}
+
+	/**
+	 * Start this batch with the requests accepted by download manager, must be invoked before the requests are executed.
+	 *
+	 * @param accepted the requests accepted
+	 */
+	protected void start(List<DownloadRequest> accepted) {
+		if (mStarted) {
+			throw new IllegalStateException("the batch has been added to download manager");
+		}
+
+		mStarted = true;
+		mRequestBytesWritten = new long[accepted.size()];
+		mRequestTotalBytes = new long[accepted.size()];
+		for (int i = 0; i < accepted.size(); i++) {
+			accepted.get(i).setDownloadBatch(this, i);
+		}
+		mTotalCount = accepted.size();
+	}
+
+	/**
+	 * Update the progress of a request in this batch, invoked in the worker thread of request.
+	 *
+	 * @param request      download request
+	 * @param bytesWritten the bytes of request have written
+	 * @param totalBytes   the total bytes of request
+	 */
+	void updateProgress(DownloadRequest request, long bytesWritten, long totalBytes) {
+		int index = request.getBatchIndex();
+		totalBytes = Math.max(totalBytes, 0);
+
+		/* only add the delta, a request may restart from the beginning when retrying */
+		if (bytesWritten != mRequestBytesWritten[index]) {
+			mBytesWritten.addAndGet(bytesWritten - mRequestBytesWritten[index]);
+			mRequestBytesWritten[index] = bytesWritten;
+		}
+		if (totalBytes != mRequestTotalBytes[index]) {
+			mTotalBytes.addAndGet(totalBytes - mRequestTotalBytes[index]);
+			mRequestTotalBytes[index] = totalBytes;
+		}
+	}
+
+	/**
+	 * Invoked when a request in this batch has finished, the request leaves the batch so it can be added again alone.
+	 *
+	 * @param request    download request
+	 * @param successful whether or not the request has downloaded successfully
+	 * @return true if this is the last request of batch
+	 */
+	boolean finishRequest(DownloadRequest request, boolean successful) {
+		request.setDownloadBatch(null, -1);
+		if (successful) {
+			mSuccessCount.incrementAndGet();
+		} else {
+			mFailedUrls.add(request.getUrl());
+			mFailureCount.incrementAndGet();
+		}
+		/* counted after the success or failure, so the last one sees all of them */
+		return mFinishedCount.incrementAndGet() == mTotalCount;
+	}
+
+	boolean isProgressPending() {
+		return mProgressPending;
+	}
+
+	void setProgressPending(boolean pending) {
+		mProgressPending = pending;
+	}
+}
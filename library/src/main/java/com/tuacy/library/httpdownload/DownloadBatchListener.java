@@ -0,0 +1,28 @@
+package com.tuacy.library.httpdownload;
+
+/**
+ * Interface definition for a callback to be invoked when a {@link DownloadBatch} is downloading. The callbacks carry the aggregated state
+ * of all the requests in the batch, the listeners of every single request are still invoked if they were set.
+ */
+public interface DownloadBatchListener {
+
+	/**
+	 * Invoked when the batch is in progress, at most once per frame of {@link DownloadDelivery}.
+	 *
+	 * @param batch         download batch
+	 * @param bytesWritten  the bytes of all the requests have written to local disk
+	 * @param totalBytes    the total bytes of all the requests which have started, grows when more requests start
+	 * @param finishedCount count of requests which have finished
+	 * @param totalCount    count of requests in the batch
+	 */
+	void onProgress(DownloadBatch batch, long bytesWritten, long totalBytes, int finishedCount, int totalCount);
+
+	/**
+	 * Invoked once when all the requests in the batch have finished.
+	 *
+	 * @param batch        download batch
+	 * @param successCount count of requests downloaded successfully
+	 * @param failureCount count of requests failed, canceled or stopped, see {@link DownloadBatch#getFailedUrls()}
+	 */
+	void onComplete(DownloadBatch batch, int successCount, int failureCount);
+}
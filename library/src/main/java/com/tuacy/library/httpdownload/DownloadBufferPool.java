@@ -0,0 +1,241 @@
+package com.tuacy.library.httpdownload;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download buffer pool: a bounded, thread-safe pool of buffers shared by all the download workers. Buffers are kept in size classes of
+ * power of two, from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}, heap buffers and direct buffers are kept apart. Buffers larger
+ * than {@link #MAX_BUFFER_SIZE} are never retained, and a released buffer is dropped if the pool would retain more than the max retained
+ * bytes.
+ */
+public class DownloadBufferPool {
+
+	private static final String TAG = DownloadBufferPool.class.getSimpleName();
+
+	/**
+	 * The smallest size class.
+	 */
+	public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * The largest size class.
+	 */
+	public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Default max bytes retained by the pool.
+	 */
+	public static final long DEFAULT_MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 20;
+
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> mHeapBuffers   = new ArrayList<>();
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> mDirectBuffers = new ArrayList<>();
+
+	private final AtomicLong mRetainedBytes     = new AtomicLong();
+	private final AtomicLong mPeakRetainedBytes = new AtomicLong();
+	private final AtomicLong mHitCount          = new AtomicLong();
+	private final AtomicLong mMissCount         = new AtomicLong();
+
+	private volatile long    mMaxRetainedBytes;
+	private volatile boolean mLeakDetection;
+
+	/**
+	 * Buffers have been acquired but not released, with the stack of acquiring, only tracked when leak detection is enabled.
+	 */
+	private final Map<ByteBuffer, Throwable> mOutstanding = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+
+	public DownloadBufferPool() {
+		this(DEFAULT_MAX_RETAINED_BYTES);
+	}
+
+	/**
+	 * @param maxRetainedBytes max bytes retained by the pool
+	 */
+	public DownloadBufferPool(long maxRetainedBytes) {
+		for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+			mHeapBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			mDirectBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+		setMaxRetainedBytes(maxRetainedBytes);
+	}
+
+	/**
+	 * Borrow a buffer from the pool, the buffer must be given back by {@link #release(ByteBuffer)}. The capacity of buffer may be larger
+	 * than the size wanted, the buffer is cleared and its limit is the size wanted.
+	 *
+	 * @param size   the size wanted
+	 * @param direct true if a direct buffer is wanted, otherwise a heap buffer which has an accessible array
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire(int size, boolean direct) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("buffer size must be greater than 0");
+		}
+
+		ByteBuffer buffer = null;
+		int index = indexOf(size);
+		if (index >= 0) {
+			buffer = (direct ? mDirectBuffers : mHeapBuffers).get(index).poll();
+		}
+
+		if (buffer != null) {
+			mRetainedBytes.addAndGet(-buffer.capacity());
+			mHitCount.incrementAndGet();
+		} else {
+			int capacity = index >= 0 ? 1 << (index + MIN_SHIFT) : size;
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			mMissCount.incrementAndGet();
+		}
+
+		if (mLeakDetection) {
+			mOutstanding.put(buffer, new Throwable("buffer acquired here"));
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool.
+	 *
+	 * @param buffer the buffer acquired from this pool, may be null
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+
+		if (mLeakDetection && mOutstanding.remove(buffer) == null) {
+			DownloadLog.w(TAG, "release a buffer which is not outstanding, may be released twice", new Throwable());
+			return;
+		}
+
+		int capacity = buffer.capacity();
+		int index = indexOf(capacity);
+		if (index < 0 || 1 << (index + MIN_SHIFT) != capacity) {
+			/* not a size class buffer */
+			return;
+		}
+
+		/* reserve the bytes first, so the pool never retains more than max retained bytes */
+		long retained;
+		do {
+			retained = mRetainedBytes.get();
+			if (retained + capacity > mMaxRetainedBytes) {
+				return;
+			}
+		} while (!mRetainedBytes.compareAndSet(retained, retained + capacity));
+
+		long peak;
+		do {
+			peak = mPeakRetainedBytes.get();
+		} while (retained + capacity > peak && !mPeakRetainedBytes.compareAndSet(peak, retained + capacity));
+
+		buffer.clear();
+		(buffer.isDirect() ? mDirectBuffers : mHeapBuffers).get(index).offer(buffer);
+	}
+
+	/**
+	 * Set max bytes retained by the pool, the buffers already retained are not dropped.
+	 *
+	 * @param maxRetainedBytes max retained bytes
+	 */
+	public void setMaxRetainedBytes(long maxRetainedBytes) {
+		if (maxRetainedBytes < 0) {
+			throw new IllegalArgumentException("max retained bytes cannot be negative");
+		}
+
+		mMaxRetainedBytes = maxRetainedBytes;
+	}
+
+	/**
+	 * Enable or disable leak detection, it records the stack of every acquiring, so only use it in debug. It can only be enabled before the
+	 * first buffer is acquired, a buffer acquired untracked could not be told from one released twice.
+	 *
+	 * @param enable true to enable
+	 * @throws IllegalStateException if enabled after buffers have been acquired
+	 */
+	public void setLeakDetection(boolean enable) {
+		if (enable && !mLeakDetection && mHitCount.get() + mMissCount.get() > 0) {
+			throw new IllegalStateException("leak detection must be enabled before the first buffer is acquired");
+		}
+
+		mLeakDetection = enable;
+		if (!enable) {
+			mOutstanding.clear();
+		}
+	}
+
+	/**
+	 * Log the stack of every buffer which has been acquired but not released. Only available when leak detection is enabled.
+	 *
+	 * @return count of the outstanding buffers
+	 */
+	public int reportLeaks() {
+		List<Throwable> stacks;
+		synchronized (mOutstanding) {
+			stacks = new ArrayList<>(mOutstanding.values());
+		}
+
+		for (Throwable stack : stacks) {
+			DownloadLog.w(TAG, "buffer has not been released", stack);
+		}
+		return stacks.size();
+	}
+
+	/**
+	 * Get the count of acquiring which reused a retained buffer.
+	 *
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * Get the count of acquiring which allocated a new buffer.
+	 *
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Get the bytes retained by the pool now.
+	 *
+	 * @return retained bytes
+	 */
+	public long getRetainedBytes() {
+		return mRetainedBytes.get();
+	}
+
+	/**
+	 * Get the peak of bytes retained by the pool.
+	 *
+	 * @return peak retained bytes
+	 */
+	public long getPeakRetainedBytes() {
+		return mPeakRetainedBytes.get();
+	}
+
+	/* get the index of size class which can hold the size, -1 if the size is larger than the largest size class */
+	private static int indexOf(int size) {
+		if (size > MAX_BUFFER_SIZE) {
+			return -1;
+		}
+
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_BUFFER_SIZE) - 1);
+		return shift - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,18 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Interface definition for the thread where the callbacks are delivered, provided by {@link DownloadPlatform}. Callbacks must run one by
+ * one in the order they are posted.
+ */
+public interface DownloadCallbackExecutor extends Executor {
+
+	/**
+	 * Run the command after the delay.
+	 *
+	 * @param command     the command
+	 * @param delayMillis delay in millisecond
+	 */
+	void executeDelayed(Runnable command, long delayMillis);
+}
@@ -0,0 +1,263 @@
+package com.tuacy.library.httpdownload;
+
+import com.tuacy.library.concurrent.ResizableExecutorService;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download concurrency controller: grows and shrinks the worker threads of download executor at runtime in AIMD style. Every sample
+ * interval it measures the aggregate throughput of all downloads and the latency of their responses: while the executor is saturated and
+ * nothing looks congested one more worker is added, when the response latency rises well above its baseline, or the throughput drops right
+ * after a worker was added, the workers are cut by a quarter. Disabled by default, the thread count is restored when disabled.
+ */
+public class DownloadConcurrencyController {
+
+	private static final String TAG = DownloadConcurrencyController.class.getSimpleName();
+
+	/**
+	 * Default interval between two samples in millisecond.
+	 */
+	public static final long DEFAULT_SAMPLE_INTERVAL = 2000;
+
+	/**
+	 * Response latency above this times of the baseline means the link or the server is congested.
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * Response latency must also rise by at least this time, jitter of a fast link is not congestion.
+	 */
+	private static final long MIN_CONGESTION_DELAY_MILLIS = 50;
+
+	/**
+	 * Throughput dropping by more than this ratio after adding a worker means the link is saturated.
+	 */
+	private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+	/**
+	 * Multiplicative decrease of the workers.
+	 */
+	private static final double DECREASE_FACTOR = 0.75;
+
+	/**
+	 * The baseline latency rises by this ratio per sample, so it follows a network which has become slower.
+	 */
+	private static final double BASELINE_DRIFT = 1.05;
+
+	private final ResizableExecutorService mExecutor;
+	private final DownloadHostScheduler    mHostScheduler;
+
+	private final AtomicLong    mBytesTransferred = new AtomicLong();
+	private final AtomicLong    mLatencyNanos     = new AtomicLong();
+	private final AtomicInteger mLatencySamples   = new AtomicInteger();
+
+	private volatile boolean mEnabled    = false;
+	private volatile double  mThroughput = 0;
+
+	/**
+	 * Limits of thread count and the thread count before enabled, guarded by this.
+	 */
+	private int                      mMinThreads;
+	private int                      mMaxThreads;
+	private int                      mRestoreThreads;
+	private ScheduledExecutorService mScheduler;
+
+	/**
+	 * State of last sample, only used in the thread of scheduler.
+	 */
+	private long    mLastSampleNanos;
+	private double  mLastThroughput;
+	private boolean mLastIncreased;
+	private double  mBaselineLatency;
+
+	DownloadConcurrencyController(ResizableExecutorService executor, DownloadHostScheduler scheduler) {
+		mExecutor = executor;
+		mHostScheduler = scheduler;
+	}
+
+	/**
+	 * Enable the controller with the default sample interval.
+	 *
+	 * @param minThreads the floor of thread count
+	 * @param maxThreads the ceiling of thread count
+	 */
+	public void enable(int minThreads, int maxThreads) {
+		enable(minThreads, maxThreads, DEFAULT_SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Enable the controller, or change its limits if it has been enabled. The thread count is moved into the limits at once.
+	 *
+	 * @param minThreads     the floor of thread count, must be greater than 0
+	 * @param maxThreads     the ceiling of thread count, cannot be less than the floor
+	 * @param sampleInterval interval between two samples in millisecond
+	 */
+	public synchronized void enable(int minThreads, int maxThreads, long sampleInterval) {
+		if (minThreads < 1 || maxThreads < minThreads) {
+			throw new IllegalArgumentException("thread limits must be 0 < min <= max");
+		}
+		if (sampleInterval <= 0) {
+			throw new IllegalArgumentException("sample interval must be greater than 0");
+		}
+
+		if (mScheduler != null) {
+			mScheduler.shutdownNow();
+		} else {
+			mRestoreThreads = mExecutor.getThreadCount();
+		}
+
+		mMinThreads = minThreads;
+		mMaxThreads = maxThreads;
+		int threads = mExecutor.getThreadCount();
+		if (threads < minThreads || threads > maxThreads) {
+			setExecutorThreadCount(Math.max(minThreads, Math.min(maxThreads, threads)));
+		}
+
+		mBytesTransferred.set(0);
+		mLatencyNanos.set(0);
+		mLatencySamples.set(0);
+		mLastSampleNanos = System.nanoTime();
+		mLastThroughput = 0;
+		mLastIncreased = false;
+		mBaselineLatency = 0;
+		mEnabled = true;
+
+		mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DownloadConcurrency");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Disable the controller and restore the thread count before enabled.
+	 */
+	public synchronized void disable() {
+		if (mScheduler == null) {
+			return;
+		}
+
+		mEnabled = false;
+		mScheduler.shutdownNow();
+		mScheduler = null;
+		setExecutorThreadCount(mRestoreThreads);
+	}
+
+	/**
+	 * Set the thread count. If the controller is enabled, the count is moved into the limits and becomes the count restored when disabled.
+	 *
+	 * @param count thread count, must be greater than 0
+	 */
+	public synchronized void setThreadCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("thread count must be greater than 0");
+		}
+
+		if (mScheduler != null) {
+			mRestoreThreads = count;
+			count = Math.max(mMinThreads, Math.min(mMaxThreads, count));
+		}
+		setExecutorThreadCount(count);
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Get the aggregate throughput measured in last sample.
+	 *
+	 * @return bytes per second, 0 if disabled
+	 */
+	public double getThroughput() {
+		return mEnabled ? mThroughput : 0;
+	}
+
+	/**
+	 * Invoked by download workers after bytes have been transferred.
+	 *
+	 * @param bytes count of bytes
+	 */
+	void onBytesTransferred(int bytes) {
+		if (mEnabled) {
+			mBytesTransferred.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Invoked by download workers when the response header has been received.
+	 *
+	 * @param latencyNanos time from opening the connection to the response header in nanosecond
+	 */
+	void onResponse(long latencyNanos) {
+		if (mEnabled) {
+			mLatencyNanos.addAndGet(latencyNanos);
+			mLatencySamples.incrementAndGet();
+		}
+	}
+
+	/* the host scheduler hands more downloads to the executor when it grows */
+	private void setExecutorThreadCount(int count) {
+		mExecutor.setThreadCount(count);
+		mHostScheduler.dispatch();
+	}
+
+	/* measure and adjust the thread count, only invoked in the thread of scheduler */
+	private void sample() {
+		long now = System.nanoTime();
+		long elapsedNanos = Math.max(1, now - mLastSampleNanos);
+		mLastSampleNanos = now;
+
+		double throughput = mBytesTransferred.getAndSet(0) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+		int samples = mLatencySamples.getAndSet(0);
+		double latency = samples == 0 ? 0 : (double) mLatencyNanos.getAndSet(0) / samples;
+		if (latency > 0) {
+			mBaselineLatency = mBaselineLatency == 0 ? latency : Math.min(latency, mBaselineLatency * BASELINE_DRIFT);
+		}
+
+		int threads = mExecutor.getThreadCount();
+		boolean saturated = mExecutor.getActiveCount() >= threads &&
+							(mExecutor.getQueueSize() > 0 || mHostScheduler.hasDispatchableRequest());
+		boolean congested = latency > mBaselineLatency * LATENCY_TOLERANCE &&
+							latency - mBaselineLatency > TimeUnit.MILLISECONDS.toNanos(MIN_CONGESTION_DELAY_MILLIS);
+		boolean regressed = mLastIncreased && throughput < mLastThroughput * (1 - THROUGHPUT_TOLERANCE);
+
+		int target = threads;
+		if (congested || regressed) {
+			target = (int) (threads * DECREASE_FACTOR);
+		} else if (saturated) {
+			target = threads + 1;
+		}
+
+		synchronized (this) {
+			if (!mEnabled) {
+				return;
+			}
+
+			target = Math.max(mMinThreads, Math.min(mMaxThreads, target));
+			if (target != threads) {
+				setExecutorThreadCount(target);
+				DownloadLog.i(TAG, "thread count " + threads + " -> " + target + ", throughput: " + (long) throughput + " B/s, latency: " +
+								   TimeUnit.NANOSECONDS.toMillis((long) latency) + " ms");
+			}
+		}
+
+		mLastIncreased = target > threads;
+		mLastThroughput = throughput;
+		mThroughput = throughput;
+	}
+}
@@ -0,0 +1,47 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Interface definition for a connection opened by {@link DownloadTransport}.
+ */
+public interface DownloadConnection {
+
+	/**
+	 * Get the status code of response.
+	 *
+	 * @return status code
+	 * @throws IOException if the response cannot be read
+	 */
+	int getResponseCode() throws IOException;
+
+	/**
+	 * Get the status message of response.
+	 *
+	 * @return status message
+	 * @throws IOException if the response cannot be read
+	 */
+	String getResponseMessage() throws IOException;
+
+	/**
+	 * Get the value of response header.
+	 *
+	 * @param name header name
+	 * @return header value, or null if not existed
+	 */
+	String getHeaderField(String name);
+
+	/**
+	 * Get the input stream of response body.
+	 *
+	 * @return input stream
+	 * @throws IOException if the body cannot be read
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Release the connection. If the response body has been read completely the connection is kept for reuse, otherwise it is closed.
+	 */
+	void release();
+}
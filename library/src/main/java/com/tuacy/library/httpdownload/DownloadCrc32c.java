@@ -0,0 +1,156 @@
+package com.tuacy.library.httpdownload;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC32C(Castagnoli) of download data. java.util.zip.CRC32C is not available before Java 9 nor on android, so it is computed here with
+ * slicing-by-8 tables. The checksums of adjacent byte ranges can be combined into the checksum of the whole range without the bytes, so
+ * the segments of a file are checksummed in parallel and combined at the end.
+ */
+final class DownloadCrc32c {
+
+	/**
+	 * Reversed Castagnoli polynomial.
+	 */
+	private static final int POLYNOMIAL = 0x82f63b78;
+
+	private static final int[][] TABLES = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLES[0][i] = crc;
+		}
+		for (int i = 0; i < 256; i++) {
+			for (int t = 1; t < 8; t++) {
+				TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xff];
+			}
+		}
+	}
+
+	private DownloadCrc32c() {
+	}
+
+	/**
+	 * Continue the checksum with bytes.
+	 *
+	 * @param crc    checksum of the bytes before, 0 for none
+	 * @param buffer bytes
+	 * @param offset offset of the first byte
+	 * @param length count of bytes
+	 * @return checksum including the bytes
+	 */
+	static int update(int crc, byte[] buffer, int offset, int length) {
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		int end = offset + length;
+		crc = ~crc;
+		while (end - offset >= 8) {
+			int low = crc ^ ((buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8 | (buffer[offset + 2] & 0xff) << 16 |
+							 (buffer[offset + 3] & 0xff) << 24);
+			crc = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24] ^ t3[buffer[offset + 4] & 0xff] ^
+				  t2[buffer[offset + 5] & 0xff] ^ t1[buffer[offset + 6] & 0xff] ^ t0[buffer[offset + 7] & 0xff];
+			offset += 8;
+		}
+		while (offset < end) {
+			crc = (crc >>> 8) ^ t0[(crc ^ buffer[offset++]) & 0xff];
+		}
+		return ~crc;
+	}
+
+	/**
+	 * Continue the checksum with the remaining bytes of buffer, the position of buffer is not changed.
+	 *
+	 * @param crc     checksum of the bytes before, 0 for none
+	 * @param buffer  bytes between position and limit
+	 * @param scratch array used to copy the bytes of a direct buffer
+	 * @return checksum including the bytes
+	 */
+	static int update(int crc, ByteBuffer buffer, byte[] scratch) {
+		if (buffer.hasArray()) {
+			return update(crc, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+
+		ByteBuffer source = buffer.duplicate();
+		while (source.hasRemaining()) {
+			int length = Math.min(scratch.length, source.remaining());
+			source.get(scratch, 0, length);
+			crc = update(crc, scratch, 0, length);
+		}
+		return crc;
+	}
+
+	/**
+	 * Combine the checksums of two adjacent byte ranges.
+	 *
+	 * @param crc1    checksum of the first range
+	 * @param crc2    checksum of the second range
+	 * @param length2 length of the second range
+	 * @return checksum of both ranges
+	 */
+	static int combine(int crc1, int crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		/* shift crc1 over length2 zero bytes by squaring the operator of one zero bit, as zlib does */
+		int[] even = new int[32];
+		int[] odd = new int[32];
+		odd[0] = POLYNOMIAL;
+		int row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static int times(int[] matrix, int vector) {
+		int sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(int[] square, int[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * Format the checksum as 8 hex digits, the same as the big-endian bytes of it.
+	 *
+	 * @param crc checksum
+	 * @return hex string
+	 */
+	static String toHex(int crc) {
+		String hex = Integer.toHexString(crc);
+		return "00000000".substring(hex.length()) + hex;
+	}
+}
@@ -1,23 +1,88 @@
 package com.tuacy.library.httpdownload;
 
-import android.os.Handler;
-
-import java.util.concurrent.Executor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
- * Download delivery: used to delivery callback to call back in main thread.
+ * Download delivery: used to delivery callback to call back in main thread. Progress events are coalesced: the latest progress of every
+ * download is kept in a slot, and at most one frame carrying the progress of all the changed downloads is posted per frame interval. The
+ * progress of a {@link DownloadBatch} is carried by the same frames, and nothing is posted for a download without listener.
  */
 public class DownloadDelivery {
 
-	private final Executor mDownloadPoster;
+	/**
+	 * Default interval between two progress frames in millisecond.
+	 */
+	private static final long DEFAULT_FRAME_INTERVAL = 50;
 
-	public DownloadDelivery(final Handler handler) {
-		mDownloadPoster = new Executor() {
-			@Override
-			public void execute(Runnable command) {
-				handler.post(command);
-			}
-		};
+	/**
+	 * Initial count of progress slots, grows when needed.
+	 */
+	private static final int INITIAL_SLOT_COUNT = 16;
+
+	private final DownloadCallbackExecutor mDownloadPoster;
+
+	/**
+	 * Progress slots, the slot index of a request is kept in the request. Guarded by this.
+	 */
+	private DownloadRequest[] mSlotRequests     = new DownloadRequest[INITIAL_SLOT_COUNT];
+	private long[]            mSlotBytesWritten = new long[INITIAL_SLOT_COUNT];
+	private long[]            mSlotTotalBytes   = new long[INITIAL_SLOT_COUNT];
+	private boolean[]         mSlotDirty        = new boolean[INITIAL_SLOT_COUNT];
+	private int[]             mFreeSlots        = new int[INITIAL_SLOT_COUNT];
+	private int               mFreeSlotCount    = 0;
+	private int               mUsedSlotCount    = 0;
+
+	/**
+	 * Progress of current frame copied out of the slots, only used in callback thread.
+	 */
+	private DownloadRequest[] mFrameRequests     = new DownloadRequest[INITIAL_SLOT_COUNT];
+	private long[]            mFrameBytesWritten = new long[INITIAL_SLOT_COUNT];
+	private long[]            mFrameTotalBytes   = new long[INITIAL_SLOT_COUNT];
+
+	/**
+	 * Batches whose progress has changed since last frame, guarded by this.
+	 */
+	private final List<DownloadBatch> mPendingBatches = new ArrayList<>();
+
+	/**
+	 * Batches of current frame, only used in callback thread.
+	 */
+	private final List<DownloadBatch> mFrameBatches = new ArrayList<>();
+
+	private boolean       mFrameScheduled      = false;
+	private long          mLastFrameTimestamp  = 0;
+	private volatile long mFrameInterval       = DEFAULT_FRAME_INTERVAL;
+
+	/**
+	 * Deliver the progress of all changed downloads.
+	 */
+	private final Runnable mFrameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			deliverFrame();
+		}
+	};
+
+	/**
+	 * @param executor the executor where the callbacks are delivered, the main thread on android
+	 */
+	public DownloadDelivery(DownloadCallbackExecutor executor) {
+		mDownloadPoster = executor;
+	}
+
+	/**
+	 * Set the interval between two progress frames.
+	 *
+	 * @param millisec interval in millisecond
+	 */
+	public void setFrameInterval(long millisec) {
+		if (millisec < 0) {
+			throw new IllegalArgumentException("frame interval cannot be negative");
+		}
+
+		mFrameInterval = millisec;
 	}
 
 	/**
@@ -27,6 +92,10 @@ public class DownloadDelivery {
 	 * @param totalBytes total bytes
 	 */
 	protected void postStart(final DownloadRequest request, final long totalBytes) {
+		if (request.getDownloadListener() == null) {
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
@@ -43,6 +112,10 @@ public class DownloadDelivery {
 	 * @param request download request
 	 */
 	protected void postRetry(final DownloadRequest request) {
+		if (request.getDownloadListener() == null) {
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
@@ -60,27 +133,212 @@ public class DownloadDelivery {
 	 * @param bytesWritten the bytes have written to file
 	 * @param totalBytes   the total bytes of current file in downloading
 	 */
-	protected void postProgress(final DownloadRequest request, final long bytesWritten, final long totalBytes) {
+	protected void postProgress(DownloadRequest request, long bytesWritten, long totalBytes) {
+		if (request.getDownloadListener() == null) {
+			return;
+		}
+
+		long delay;
+		synchronized (this) {
+			int slot = request.getProgressSlot();
+			if (slot < 0) {
+				slot = obtainSlot(request);
+			}
+
+			mSlotBytesWritten[slot] = bytesWritten;
+			mSlotTotalBytes[slot] = totalBytes;
+			mSlotDirty[slot] = true;
+
+			/* the frame will carry this progress if it has been scheduled */
+			if (mFrameScheduled) {
+				return;
+			}
+			mFrameScheduled = true;
+			delay = mLastFrameTimestamp + mFrameInterval - System.currentTimeMillis();
+		}
+
+		mDownloadPoster.executeDelayed(mFrameRunnable, Math.max(0, delay));
+	}
+
+	/**
+	 * Post download batch progress event, the progress is read from the batch when the frame is delivered.
+	 *
+	 * @param batch download batch
+	 */
+	protected void postBatchProgress(DownloadBatch batch) {
+		/* checked out of lock first, the workers of a batch report far more often than frames */
+		if (batch.getBatchListener() == null || batch.isProgressPending()) {
+			return;
+		}
+
+		long delay;
+		synchronized (this) {
+			if (batch.isProgressPending()) {
+				return;
+			}
+			batch.setProgressPending(true);
+			mPendingBatches.add(batch);
+
+			if (mFrameScheduled) {
+				return;
+			}
+			mFrameScheduled = true;
+			delay = mLastFrameTimestamp + mFrameInterval - System.currentTimeMillis();
+		}
+
+		mDownloadPoster.executeDelayed(mFrameRunnable, Math.max(0, delay));
+	}
+
+	/**
+	 * Post download batch complete event, invoked once after the final event of the last request in batch has been posted.
+	 *
+	 * @param batch download batch
+	 */
+	protected void postBatchComplete(final DownloadBatch batch) {
+		if (batch.getBatchListener() == null) {
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
-				if (request.getDownloadListener() != null) {
-					request.getDownloadListener()
-						   .onProgress(request.getDownloadId(), request.getUrl(), request.getDestFilePath(), bytesWritten, totalBytes);
+				synchronized (DownloadDelivery.this) {
+					if (batch.isProgressPending()) {
+						batch.setProgressPending(false);
+						mPendingBatches.remove(batch);
+					}
 				}
+
+				deliverBatchProgress(batch);
+				batch.getBatchListener().onComplete(batch, batch.getSuccessCount(), batch.getFailureCount());
 			}
 		});
 	}
 
+	/* copy the changed progress out of slots and deliver them, only invoked in callback thread */
+	private void deliverFrame() {
+		int count = 0;
+		synchronized (this) {
+			mFrameScheduled = false;
+			mLastFrameTimestamp = System.currentTimeMillis();
+
+			if (mFrameRequests.length < mSlotRequests.length) {
+				mFrameRequests = new DownloadRequest[mSlotRequests.length];
+				mFrameBytesWritten = new long[mSlotRequests.length];
+				mFrameTotalBytes = new long[mSlotRequests.length];
+			}
+
+			for (int slot = 0; slot < mUsedSlotCount; slot++) {
+				if (mSlotDirty[slot]) {
+					mSlotDirty[slot] = false;
+					mFrameRequests[count] = mSlotRequests[slot];
+					mFrameBytesWritten[count] = mSlotBytesWritten[slot];
+					mFrameTotalBytes[count] = mSlotTotalBytes[slot];
+					count++;
+				}
+			}
+
+			for (DownloadBatch batch : mPendingBatches) {
+				batch.setProgressPending(false);
+				mFrameBatches.add(batch);
+			}
+			mPendingBatches.clear();
+		}
+
+		for (int i = 0; i < count; i++) {
+			deliverProgress(mFrameRequests[i], mFrameBytesWritten[i], mFrameTotalBytes[i]);
+			mFrameRequests[i] = null;
+		}
+
+		for (DownloadBatch batch : mFrameBatches) {
+			deliverBatchProgress(batch);
+		}
+		mFrameBatches.clear();
+	}
+
+	private void deliverBatchProgress(DownloadBatch batch) {
+		batch.getBatchListener()
+			 .onProgress(batch, batch.getBytesWritten(), batch.getTotalBytes(), batch.getFinishedCount(), batch.getTotalCount());
+	}
+
+	/*
+	 * Deliver the progress not delivered yet and release the slot, invoked in callback thread before the final event of a download. Without
+	 * delivering it is also invoked by the workers for a download whose final event is not posted.
+	 */
+	private void flushProgress(DownloadRequest request, boolean deliver) {
+		long bytesWritten;
+		long totalBytes;
+		synchronized (this) {
+			int slot = request.getProgressSlot();
+			if (slot < 0) {
+				return;
+			}
+
+			boolean dirty = mSlotDirty[slot];
+			bytesWritten = mSlotBytesWritten[slot];
+			totalBytes = mSlotTotalBytes[slot];
+			releaseSlot(slot);
+			if (!dirty || !deliver) {
+				return;
+			}
+		}
+
+		deliverProgress(request, bytesWritten, totalBytes);
+	}
+
+	private void deliverProgress(DownloadRequest request, long bytesWritten, long totalBytes) {
+		if (request.getDownloadListener() != null) {
+			request.getDownloadListener()
+				   .onProgress(request.getDownloadId(), request.getUrl(), request.getDestFilePath(), bytesWritten, totalBytes);
+		}
+	}
+
+	/* take a free slot for the request, guarded by this */
+	private int obtainSlot(DownloadRequest request) {
+		int slot;
+		if (mFreeSlotCount > 0) {
+			slot = mFreeSlots[--mFreeSlotCount];
+		} else {
+			if (mUsedSlotCount == mSlotRequests.length) {
+				int length = mSlotRequests.length * 2;
+				mSlotRequests = Arrays.copyOf(mSlotRequests, length);
+				mSlotBytesWritten = Arrays.copyOf(mSlotBytesWritten, length);
+				mSlotTotalBytes = Arrays.copyOf(mSlotTotalBytes, length);
+				mSlotDirty = Arrays.copyOf(mSlotDirty, length);
+				mFreeSlots = Arrays.copyOf(mFreeSlots, length);
+			}
+			slot = mUsedSlotCount++;
+		}
+
+		mSlotRequests[slot] = request;
+		request.setProgressSlot(slot);
+		return slot;
+	}
+
+	/* give the slot back, guarded by this */
+	private void releaseSlot(int slot) {
+		mSlotRequests[slot].setProgressSlot(-1);
+		mSlotRequests[slot] = null;
+		mSlotDirty[slot] = false;
+		mFreeSlots[mFreeSlotCount++] = slot;
+	}
+
 	/**
 	 * Post download success event.
 	 *
 	 * @param request download request
 	 */
 	protected void postSuccess(final DownloadRequest request) {
+		/* the listener may have been removed after some progress was posted, the slot is given back all the same */
+		if (request.getDownloadListener() == null && request.getSimpleDownloadListener() == null) {
+			flushProgress(request, false);
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
+				flushProgress(request, true);
 				if (request.getDownloadListener() != null) {
 					request.getDownloadListener().onSuccess(request.getDownloadId(), request.getUrl(), request.getDestFilePath());
 				}
@@ -100,9 +358,15 @@ public class DownloadDelivery {
 	 * @param errMsg     error message
 	 */
 	protected void postFailure(final DownloadRequest request, final int statusCode, final String errMsg) {
+		if (request.getDownloadListener() == null && request.getSimpleDownloadListener() == null) {
+			flushProgress(request, false);
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
+				flushProgress(request, true);
 				if (request.getDownloadListener() != null) {
 					request.getDownloadListener()
 						   .onFailure(request.getDownloadId(), request.getUrl(), request.getDestFilePath(), statusCode, errMsg);
@@ -121,9 +385,15 @@ public class DownloadDelivery {
 	 * @param request download request
 	 */
 	protected void postCancel(final DownloadRequest request) {
+		if (request.getDownloadListener() == null) {
+			flushProgress(request, false);
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
+				flushProgress(request, false);
 				if (request.getDownloadListener() != null) {
 					request.getDownloadListener().onCancel(request.getDownloadId(), request.getUrl(), request.getDestFilePath());
 				}
@@ -138,9 +408,15 @@ public class DownloadDelivery {
 	 * @param request download request
 	 */
 	protected void postStop(final DownloadRequest request) {
+		if (request.getDownloadListener() == null) {
+			flushProgress(request, false);
+			return;
+		}
+
 		mDownloadPoster.execute(new Runnable() {
 			@Override
 			public void run() {
+				flushProgress(request, true);
 				if (request.getDownloadListener() != null) {
 					request.getDownloadListener().onStop(request.getDownloadId(), request.getUrl(), request.getDestFilePath());
 				}
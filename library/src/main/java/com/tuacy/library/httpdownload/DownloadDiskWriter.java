@@ -0,0 +1,290 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Download disk writer: the write-behind stage of a download. The segment threads only read the network, every buffer they fill is handed
+ * over through a bounded queue and written to the temp file by this writer in its own thread, so a slow disk write does not stall the
+ * socket and a slow socket does not delay the disk. When the queue is full the segment threads wait, so at most {@link #QUEUE_SIZE}
+ * buffers are in flight. A selector I/O thread must not wait, it posts its buffers beyond the limit and stops reading while
+ * {@link #isFull()}, the listener is told once the queue has room again.
+ *
+ * The buffers waiting in queue are drained together, adjacent buffers of a segment become one gathering write. The bytes are checksummed
+ * and the position of segment is moved only after they have been written, so the journal never records a byte which is not in the file.
+ */
+class DownloadDiskWriter implements Runnable {
+
+	private static final String TAG = DownloadDiskWriter.class.getSimpleName();
+
+	/**
+	 * Max count of filled buffers waiting to be written.
+	 */
+	static final int QUEUE_SIZE = 8;
+
+	/**
+	 * Max count of buffers written by one gathering write.
+	 */
+	private static final int MAX_BATCH_SIZE = 16;
+
+	/**
+	 * Size of the array used to checksum direct buffers.
+	 */
+	private static final int SCRATCH_SIZE = 4096;
+
+	/**
+	 * Marker queued after the last buffer.
+	 */
+	private static final Chunk END = new Chunk(null, 0, null, false);
+
+	private final BlockingQueue<Chunk> mQueue = new LinkedBlockingQueue<>();
+
+	/**
+	 * Free places in queue, a chunk which has taken one gives it back once written.
+	 */
+	private final Semaphore mSlots = new Semaphore(QUEUE_SIZE);
+
+	/**
+	 * Whether or not the queue has been seen full by {@link #isFull()}, the listener is told when a slot is given back.
+	 */
+	private volatile boolean mDrainWanted;
+
+	private final String             mFilePath;
+	private final DownloadJournal    mJournal;
+	private final DownloadVerifier   mVerifier;
+	private final DownloadBufferPool mBufferPool;
+	private final Listener           mListener;
+
+	/**
+	 * Listener of the writer, invoked in the writer thread.
+	 */
+	interface Listener {
+
+		/**
+		 * Some bytes have been written and the positions of their segments moved.
+		 *
+		 * @param length count of bytes
+		 */
+		void onBytesWritten(long length);
+
+		/**
+		 * The queue seen full has room again, the parked connections can read again.
+		 */
+		void onDrained();
+
+		/**
+		 * The temp file cannot be written, the buffers queued later are discarded.
+		 *
+		 * @param e the cause
+		 */
+		void onWriteFailed(IOException e);
+	}
+
+	DownloadDiskWriter(DownloadRequest request,
+					   DownloadJournal journal,
+					   DownloadVerifier verifier,
+					   DownloadBufferPool bufferPool,
+					   Listener listener) {
+		mFilePath = request.getTmpDestinationPath();
+		mJournal = journal;
+		mVerifier = verifier;
+		mBufferPool = bufferPool;
+		mListener = listener;
+	}
+
+	/**
+	 * Queue the bytes received by a segment, waits while the queue is full. The buffer is owned by the writer from now on and is released
+	 * to the buffer pool once written.
+	 *
+	 * @param segment  segment receiving the bytes
+	 * @param position position of the first byte in file
+	 * @param buffer   bytes between position and limit, acquired from the buffer pool
+	 * @throws InterruptedException if interrupted while waiting, the buffer has been released
+	 */
+	void write(DownloadSegment segment, long position, ByteBuffer buffer) throws InterruptedException {
+		try {
+			mSlots.acquire();
+		} catch (InterruptedException e) {
+			mBufferPool.release(buffer);
+			throw e;
+		}
+		mQueue.add(new Chunk(segment, position, buffer, true));
+	}
+
+	/**
+	 * Queue the bytes received by a segment without waiting, even if the queue is full. The caller must stop queueing while
+	 * {@link #isFull()}. The buffer is owned by the writer from now on.
+	 *
+	 * @param segment  segment receiving the bytes
+	 * @param position position of the first byte in file
+	 * @param buffer   bytes between position and limit, acquired from the buffer pool
+	 */
+	void post(DownloadSegment segment, long position, ByteBuffer buffer) {
+		mQueue.add(new Chunk(segment, position, buffer, mSlots.tryAcquire()));
+	}
+
+	/**
+	 * Whether or not the queue is full, the bytes queued from now on wait for the disk.
+	 *
+	 * @return true if full
+	 */
+	boolean isFull() {
+		if (mSlots.availablePermits() > 0) {
+			return false;
+		}
+		/* ask to be told before checking again, so a slot given back meanwhile is either seen here or told */
+		mDrainWanted = true;
+		return mSlots.availablePermits() == 0;
+	}
+
+	/**
+	 * Tell the writer no more bytes will be queued, it quits after the bytes queued before have been written.
+	 */
+	void finish() {
+		mQueue.add(END);
+	}
+
+	@Override
+	public void run() {
+		RandomAccessFile raf = null;
+		IOException error = null;
+		List<Chunk> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		byte[] scratch = mVerifier != null ? new byte[SCRATCH_SIZE] : null;
+		boolean finished = false;
+
+		try {
+			raf = new RandomAccessFile(mFilePath, "rw");
+		} catch (IOException e) {
+			error = e;
+			mListener.onWriteFailed(e);
+		}
+
+		while (!finished) {
+			batch.clear();
+			try {
+				batch.add(mQueue.take());
+			} catch (InterruptedException e) {
+				/* the segment threads may be waiting for the queue, keep draining until the end */
+				DownloadLog.w(TAG, "interrupted while waiting for buffers", e);
+				continue;
+			}
+			mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+			int end = batch.indexOf(END);
+			if (end >= 0) {
+				finished = true;
+				batch.remove(end);
+			}
+
+			if (error != null) {
+				release(batch, 0, batch.size());
+				continue;
+			}
+
+			try {
+				writeBatch(raf.getChannel(), batch, scratch);
+			} catch (IOException e) {
+				error = e;
+				mListener.onWriteFailed(e);
+			}
+		}
+
+		try {
+			if (raf != null) {
+				raf.close();
+			}
+		} catch (IOException e) {
+			DownloadLog.w(TAG, "cannot close file", e);
+		}
+	}
+
+	/* write the runs of adjacent buffers of the same segment, every buffer is released whether written or not */
+	private void writeBatch(FileChannel channel, List<Chunk> batch, byte[] scratch) throws IOException {
+		int start = 0;
+		try {
+			while (start < batch.size()) {
+				int end = start + 1;
+				Chunk last = batch.get(start);
+				while (end < batch.size()) {
+					Chunk next = batch.get(end);
+					if (next.mSegment != last.mSegment || next.mPosition != last.mPosition + last.mBuffer.remaining()) {
+						break;
+					}
+					last = next;
+					end++;
+				}
+
+				writeRun(channel, batch, start, end, scratch);
+				release(batch, start, end);
+				start = end;
+			}
+		} finally {
+			release(batch, start, batch.size());
+		}
+	}
+
+	/* write batch[start, end) with one gathering write, then checksum the bytes and move the position of segment */
+	private void writeRun(FileChannel channel, List<Chunk> batch, int start, int end, byte[] scratch) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[end - start];
+		long length = 0;
+		for (int i = start; i < end; i++) {
+			/* write duplicates, the positions of buffers are needed again to checksum them */
+			buffers[i - start] = batch.get(i).mBuffer.duplicate();
+			length += buffers[i - start].remaining();
+		}
+
+		channel.position(batch.get(start).mPosition);
+		for (long written = 0; written < length; ) {
+			written += channel.write(buffers);
+		}
+
+		for (int i = start; i < end; i++) {
+			Chunk chunk = batch.get(i);
+			if (mVerifier != null) {
+				chunk.mSegment.advance(chunk.mBuffer.remaining(), mVerifier.update(chunk.mSegment, chunk.mBuffer, scratch));
+			} else {
+				chunk.mSegment.advance(chunk.mBuffer.remaining());
+			}
+		}
+		mJournal.onBytesWritten(length);
+		mListener.onBytesWritten(length);
+	}
+
+	private void release(List<Chunk> batch, int start, int end) {
+		boolean drained = false;
+		for (int i = start; i < end; i++) {
+			Chunk chunk = batch.get(i);
+			mBufferPool.release(chunk.mBuffer);
+			if (chunk.mSlot) {
+				mSlots.release();
+				drained = true;
+			}
+		}
+		if (drained && mDrainWanted) {
+			mDrainWanted = false;
+			mListener.onDrained();
+		}
+	}
+
+	private static class Chunk {
+
+		private final DownloadSegment mSegment;
+		private final long            mPosition;
+		private final ByteBuffer      mBuffer;
+		private final boolean         mSlot;
+
+		Chunk(DownloadSegment segment, long position, ByteBuffer buffer, boolean slot) {
+			mSegment = segment;
+			mPosition = position;
+			mBuffer = buffer;
+			mSlot = slot;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Download histogram: distribution of a non-negative value, such as the connect time of downloads. The values are counted in log-linear
+ * buckets, every power of two is split into 4 buckets, so a percentile is accurate within 25% whatever the range of values is. Recording
+ * is lock free and takes a few atomic adds, cheap enough for every connection and every download.
+ *
+ * The histograms of {@link DownloadMetrics} keep counting, the histograms of {@link DownloadMetrics.Snapshot} are frozen copies.
+ */
+public final class DownloadHistogram {
+
+	/**
+	 * Every power of two is split into 2^SUB_BUCKET_BITS buckets.
+	 */
+	private static final int SUB_BUCKET_BITS  = 2;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Values below SUB_BUCKET_COUNT have their own buckets, each power of two above up to 2^62 has SUB_BUCKET_COUNT buckets.
+	 */
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray mBuckets;
+	private final AtomicLong      mCount;
+	private final AtomicLong      mSum;
+	private final AtomicLong      mMax;
+
+	DownloadHistogram() {
+		mBuckets = new AtomicLongArray(BUCKET_COUNT);
+		mCount = new AtomicLong();
+		mSum = new AtomicLong();
+		mMax = new AtomicLong();
+	}
+
+	private DownloadHistogram(DownloadHistogram source) {
+		long[] buckets = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = source.mBuckets.get(i);
+			count += buckets[i];
+		}
+		mBuckets = new AtomicLongArray(buckets);
+		/* the buckets are the truth of count, the values recorded meanwhile may be in buckets but not in sum yet */
+		mCount = new AtomicLong(count);
+		mSum = new AtomicLong(source.mSum.get());
+		mMax = new AtomicLong(source.mMax.get());
+	}
+
+	/**
+	 * Count a value.
+	 *
+	 * @param value the value, negative is counted as 0
+	 */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		mBuckets.incrementAndGet(indexOf(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		long max = mMax.get();
+		while (value > max && !mMax.compareAndSet(max, value)) {
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * Take a frozen copy of this histogram.
+	 *
+	 * @return copy
+	 */
+	DownloadHistogram snapshot() {
+		return new DownloadHistogram(this);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getSum() {
+		return mSum.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Get the mean of the values.
+	 *
+	 * @return mean, 0 if nothing counted
+	 */
+	public double getMean() {
+		long count = mCount.get();
+		return count == 0 ? 0 : (double) mSum.get() / count;
+	}
+
+	/**
+	 * Get the value below which the given percent of the values fall, the upper bound of the bucket holding it.
+	 *
+	 * @param percentile percent in [0, 100], such as 50 for the median or 99
+	 * @return the value, 0 if nothing counted
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be in [0, 100]");
+		}
+
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += mBuckets.get(i);
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mBuckets.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50) + ", p90=" + getPercentile(90) +
+			   ", p99=" + getPercentile(99) + ", max=" + getMax();
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+		return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + sub;
+	}
+
+	/* the largest value counted in the bucket */
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+		long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+		return ((SUB_BUCKET_COUNT + sub + 1) << shift) - 1;
+	}
+}
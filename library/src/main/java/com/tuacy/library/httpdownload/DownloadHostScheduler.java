@@ -0,0 +1,394 @@
+package com.tuacy.library.httpdownload;
+
+import com.tuacy.library.concurrent.ResizableExecutorService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Host-aware scheduler in front of the download executor. Downloads wait here and are handed to the executor only when a worker is free,
+ * so the order is decided here instead of in the queue of executor: higher priorities go first, within a priority the hosts take turns in
+ * round-robin, and a host never has more than {@link #getMaxRequestsPerHost()} downloads in flight. A burst of downloads to one slow host
+ * therefore cannot occupy every worker while the downloads of other hosts wait.
+ *
+ * With preemption enabled, when every worker is busy and a download of higher priority could start, the running download of lowest
+ * priority is preempted: it stops at its breakpoint and waits here again, so its worker goes to the higher one.
+ */
+public class DownloadHostScheduler {
+
+	/**
+	 * Default max downloads in flight per host.
+	 */
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+	private final ResizableExecutorService mExecutor;
+
+	/**
+	 * Hosts having downloads waiting, in the round-robin order of every priority, guarded by this.
+	 */
+	private final Map<DownloadRequest.Priority, ArrayDeque<HostQueue>> mReadyHosts = new EnumMap<>(DownloadRequest.Priority.class);
+
+	/**
+	 * Waiting and in flight downloads of every host, guarded by this.
+	 */
+	private final Map<String, HostQueue> mHosts = new HashMap<>();
+
+	/**
+	 * Downloads in flight which have freed their worker, guarded by this.
+	 */
+	private final Set<DownloadPrioritizedRunnable> mDetached = new HashSet<>();
+
+	/**
+	 * Downloads told to give their worker up and not finished yet, guarded by this.
+	 */
+	private final Set<DownloadPrioritizedRunnable> mPreempted = new HashSet<>();
+
+	/**
+	 * Count of downloads handed to the executor and not finished, count of downloads waiting, and the limits, guarded by this.
+	 */
+	private int     mDispatchedCount    = 0;
+	private int     mWaitingCount       = 0;
+	private int     mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+	private boolean mPreemption         = false;
+
+	DownloadHostScheduler(ResizableExecutorService executor) {
+		mExecutor = executor;
+		for (DownloadRequest.Priority priority : DownloadRequest.Priority.values()) {
+			mReadyHosts.put(priority, new ArrayDeque<HostQueue>());
+		}
+	}
+
+	/**
+	 * Set the max downloads in flight per host, the downloads already running are not interrupted when lowering it.
+	 *
+	 * @param max max downloads, must be greater than 0
+	 */
+	public void setMaxRequestsPerHost(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max requests per host must be greater than 0");
+		}
+
+		synchronized (this) {
+			mMaxRequestsPerHost = max;
+		}
+		dispatch();
+	}
+
+	public synchronized int getMaxRequestsPerHost() {
+		return mMaxRequestsPerHost;
+	}
+
+	/**
+	 * Enable or disable preemption of running downloads by waiting downloads of higher priority.
+	 *
+	 * @param enable true to enable, disabled by default
+	 */
+	public void setPreemption(boolean enable) {
+		synchronized (this) {
+			mPreemption = enable;
+		}
+		dispatch();
+	}
+
+	public synchronized boolean isPreemption() {
+		return mPreemption;
+	}
+
+	/**
+	 * Get the count of downloads waiting for a worker.
+	 *
+	 * @return waiting count
+	 */
+	public synchronized int getWaitingCount() {
+		return mWaitingCount;
+	}
+
+	/**
+	 * Get the count of downloads in flight of a host.
+	 *
+	 * @param url any url of the host
+	 * @return in flight count
+	 */
+	public synchronized int getRunningCount(String url) {
+		HostQueue host = mHosts.get(DownloadUtils.getOrigin(url));
+		return host == null ? 0 : host.mRunning.size();
+	}
+
+	/**
+	 * Queue a download and hand it to the executor if a worker is free.
+	 *
+	 * @param runnable download runnable
+	 */
+	void submit(DownloadPrioritizedRunnable runnable) {
+		synchronized (this) {
+			enqueue(runnable);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Queue downloads with one lock acquisition.
+	 *
+	 * @param runnables download runnables
+	 */
+	void submitAll(List<DownloadPrioritizedRunnable> runnables) {
+		synchronized (this) {
+			for (DownloadPrioritizedRunnable runnable : runnables) {
+				enqueue(runnable);
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * Invoked by the download worker when the download has finished, its worker becomes free for the next one.
+	 *
+	 * @param runnable download runnable
+	 */
+	void finish(DownloadPrioritizedRunnable runnable) {
+		synchronized (this) {
+			/* a runnable executed directly has never been dispatched */
+			HostQueue host = mHosts.get(runnable.getHost());
+			if (host == null || !host.mRunning.remove(runnable)) {
+				return;
+			}
+
+			if (!mDetached.remove(runnable)) {
+				mDispatchedCount--;
+			}
+			mPreempted.remove(runnable);
+			/* a host waiting at its limit has kept its turn in the ready hosts */
+			if (host.isIdle()) {
+				mHosts.remove(host.mHost);
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * Invoked by the download worker when the download goes on without it, such as on the selector engine. The worker becomes free for the
+	 * next one, but the download still counts against its host until {@link #finish(DownloadPrioritizedRunnable)}.
+	 *
+	 * @param runnable download runnable
+	 */
+	void detach(DownloadPrioritizedRunnable runnable) {
+		synchronized (this) {
+			HostQueue host = mHosts.get(runnable.getHost());
+			if (host == null || !host.mRunning.contains(runnable) || !mDetached.add(runnable)) {
+				return;
+			}
+
+			mDispatchedCount--;
+		}
+		dispatch();
+	}
+
+	/**
+	 * Move a waiting download to the queue of its new priority, invoked after the priority of its request has changed. It goes behind the
+	 * downloads already waiting at that priority. A download not waiting here is left alone, the new priority applies when it is queued
+	 * again.
+	 *
+	 * @param request     download request
+	 * @param oldPriority the priority it is waiting with
+	 */
+	void reprioritize(DownloadRequest request, DownloadRequest.Priority oldPriority) {
+		synchronized (this) {
+			for (HostQueue host : mHosts.values()) {
+				ArrayDeque<DownloadPrioritizedRunnable> waiting = host.mWaiting.get(oldPriority);
+				if (waiting == null) {
+					continue;
+				}
+
+				for (Iterator<DownloadPrioritizedRunnable> iterator = waiting.iterator(); iterator.hasNext(); ) {
+					DownloadPrioritizedRunnable runnable = iterator.next();
+					if (runnable.getRequest() != request) {
+						continue;
+					}
+
+					iterator.remove();
+					if (waiting.isEmpty()) {
+						mReadyHosts.get(oldPriority).remove(host);
+					}
+					mWaitingCount--;
+					enqueue(runnable);
+					break;
+				}
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * Whether or not any waiting download could start if there were more workers, used to tell whether the executor is saturated.
+	 *
+	 * @return true if a download is only waiting for a worker
+	 */
+	synchronized boolean hasDispatchableRequest() {
+		for (ArrayDeque<HostQueue> hosts : mReadyHosts.values()) {
+			for (HostQueue host : hosts) {
+				if (host.mRunning.size() < mMaxRequestsPerHost) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hand waiting downloads to the executor while it has free workers, invoked after anything that may free a worker.
+	 */
+	void dispatch() {
+		List<DownloadPrioritizedRunnable> ready = new ArrayList<>();
+		DownloadPrioritizedRunnable victim;
+		synchronized (this) {
+			DownloadPrioritizedRunnable runnable;
+			while (mDispatchedCount < mExecutor.getThreadCount() && (runnable = next()) != null) {
+				mDispatchedCount++;
+				ready.add(runnable);
+			}
+			victim = findPreemptionVictim();
+		}
+
+		/* out of lock, the executor may run the task in this thread when rejecting */
+		for (DownloadPrioritizedRunnable runnable : ready) {
+			mExecutor.execute(runnable);
+		}
+		if (victim != null) {
+			victim.preempt();
+		}
+	}
+
+	/*
+	 * Find the running download of lowest priority below the highest download that could start if a worker were free, guarded by this.
+	 * Only one download is preempted at a time, the next one is looked for when it has given its worker up.
+	 */
+	private DownloadPrioritizedRunnable findPreemptionVictim() {
+		if (!mPreemption || !mPreempted.isEmpty()) {
+			return null;
+		}
+
+		DownloadRequest.Priority waiting = getHighestDispatchablePriority();
+		if (waiting == null) {
+			return null;
+		}
+
+		DownloadPrioritizedRunnable victim = null;
+		for (HostQueue host : mHosts.values()) {
+			for (DownloadPrioritizedRunnable runnable : host.mRunning) {
+				/* a detached download holds no worker */
+				if (mDetached.contains(runnable) || runnable.getPriority().ordinal() >= waiting.ordinal()) {
+					continue;
+				}
+				if (victim == null || runnable.getPriority().ordinal() < victim.getPriority().ordinal()) {
+					victim = runnable;
+				}
+			}
+		}
+		if (victim != null) {
+			mPreempted.add(victim);
+		}
+		return victim;
+	}
+
+	/* the highest priority of the waiting downloads whose host is below its limit, guarded by this */
+	private DownloadRequest.Priority getHighestDispatchablePriority() {
+		DownloadRequest.Priority[] priorities = DownloadRequest.Priority.values();
+		for (int i = priorities.length - 1; i >= 0; i--) {
+			for (HostQueue host : mReadyHosts.get(priorities[i])) {
+				if (host.mRunning.size() < mMaxRequestsPerHost) {
+					return priorities[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	/* guarded by this */
+	private void enqueue(DownloadPrioritizedRunnable runnable) {
+		HostQueue host = mHosts.get(runnable.getHost());
+		if (host == null) {
+			host = new HostQueue(runnable.getHost());
+			mHosts.put(host.mHost, host);
+		}
+
+		DownloadRequest.Priority priority = runnable.getPriority();
+		ArrayDeque<DownloadPrioritizedRunnable> waiting = host.mWaiting.get(priority);
+		if (waiting == null) {
+			waiting = new ArrayDeque<>();
+			host.mWaiting.put(priority, waiting);
+		}
+		if (waiting.isEmpty()) {
+			mReadyHosts.get(priority).addLast(host);
+		}
+		waiting.addLast(runnable);
+		mWaitingCount++;
+	}
+
+	/* take the next download in priority and round-robin order, guarded by this */
+	private DownloadPrioritizedRunnable next() {
+		DownloadRequest.Priority[] priorities = DownloadRequest.Priority.values();
+		for (int i = priorities.length - 1; i >= 0; i--) {
+			ArrayDeque<HostQueue> hosts = mReadyHosts.get(priorities[i]);
+			for (Iterator<HostQueue> iterator = hosts.iterator(); iterator.hasNext(); ) {
+				HostQueue host = iterator.next();
+				if (host.mRunning.size() >= mMaxRequestsPerHost) {
+					continue;
+				}
+
+				/* the host goes to the tail, so the other hosts of this priority go first next time */
+				iterator.remove();
+				ArrayDeque<DownloadPrioritizedRunnable> waiting = host.mWaiting.get(priorities[i]);
+				DownloadPrioritizedRunnable runnable = waiting.pollFirst();
+				if (!waiting.isEmpty()) {
+					hosts.addLast(host);
+				}
+				host.mRunning.add(runnable);
+				mWaitingCount--;
+				return runnable;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Downloads of a host, guarded by the scheduler.
+	 */
+	private static class HostQueue {
+
+		private final String mHost;
+
+		/**
+		 * Waiting downloads of every priority in the order they were added.
+		 */
+		private final Map<DownloadRequest.Priority, ArrayDeque<DownloadPrioritizedRunnable>> mWaiting =
+			new EnumMap<>(DownloadRequest.Priority.class);
+
+		/**
+		 * Downloads handed to the executor and not finished.
+		 */
+		private final Set<DownloadPrioritizedRunnable> mRunning = new HashSet<>();
+
+		HostQueue(String host) {
+			mHost = host;
+		}
+
+		boolean isIdle() {
+			if (!mRunning.isEmpty()) {
+				return false;
+			}
+			for (ArrayDeque<DownloadPrioritizedRunnable> waiting : mWaiting.values()) {
+				if (!waiting.isEmpty()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Download journal: a small binary file next to the temp file, it records the total bytes, the validator(ETag/Last-Modified), the
+ * destination file path resolved with the first response and the committed position of every segment, with the CRC32C of the bytes before
+ * the position if the download is verified. The temp file is synced to disk before the positions are written, so a position in the journal
+ * is always durable and the download can resume from exactly there after the process was killed.
+ */
+class DownloadJournal {
+
+	private static final String TAG = DownloadJournal.class.getSimpleName();
+
+	/**
+	 * Magic number at the head of journal file.
+	 */
+	private static final int MAGIC = 0x48444a4c;
+
+	/**
+	 * Version of journal format, version 2 adds the checksums of segments, version 3 adds the resolved destination file path.
+	 */
+	private static final int VERSION = 3;
+
+	/**
+	 * Commit the journal after so many bytes have written.
+	 */
+	private static final long COMMIT_BYTES = 1024 * 1024;
+
+	/**
+	 * Commit the journal after so much time(millisecond) even if there are not enough bytes.
+	 */
+	private static final long COMMIT_INTERVAL = 2000;
+
+	private final File                  mJournalFile;
+	private final File                  mDataFile;
+	private final long                  mTotalBytes;
+	private final String                mETag;
+	private final String                mLastModified;
+	private final String                mDestFilePath;
+	private final List<DownloadSegment> mSegments;
+
+	/**
+	 * Bytes written since last commit.
+	 */
+	private long mUncommittedBytes;
+
+	/**
+	 * Timestamp of last commit.
+	 */
+	private long mLastCommitTimestamp;
+
+	/**
+	 * Whether or not this journal has been discarded.
+	 */
+	private boolean mDiscarded;
+
+	/**
+	 * Whether or not the checksums of segments are maintained.
+	 */
+	private volatile boolean mChecksummed;
+
+	private DownloadJournal(DownloadRequest request,
+							long totalBytes,
+							String eTag,
+							String lastModified,
+							String destFilePath,
+							List<DownloadSegment> segments) {
+		mJournalFile = new File(request.getJournalPath());
+		mDataFile = new File(request.getTmpDestinationPath());
+		mTotalBytes = totalBytes;
+		mETag = eTag;
+		mLastModified = lastModified;
+		mDestFilePath = destFilePath;
+		mSegments = Collections.unmodifiableList(segments);
+		mLastCommitTimestamp = System.currentTimeMillis();
+		mChecksummed = request.getDigestAlgorithm() != null;
+	}
+
+	/**
+	 * Create a new journal for a download which starts from the beginning, the temp file will be created if not existed and preallocated if
+	 * the request asks for it. The destination file path of request has been resolved with the response and is recorded as well.
+	 *
+	 * @param request      download request
+	 * @param totalBytes   total bytes of the file
+	 * @param eTag         ETag in response header, may be null
+	 * @param lastModified Last-Modified in response header, may be null
+	 * @param segments     the segments of the file
+	 * @return the journal
+	 * @throws IOException if the temp file or the journal cannot be written
+	 */
+	static DownloadJournal create(DownloadRequest request,
+								  long totalBytes,
+								  String eTag,
+								  String lastModified,
+								  List<DownloadSegment> segments) throws IOException {
+		DownloadJournal journal = new DownloadJournal(request, totalBytes, eTag, lastModified, request.getDestFilePath(), segments);
+		RandomAccessFile data = new RandomAccessFile(journal.mDataFile, "rw");
+		try {
+			/* the positions of journal say which bytes are durable, so the length of a preallocated file does not matter when resuming */
+			if (request.isPreallocate()) {
+				DownloadPlatform.get().allocate(data, totalBytes);
+			}
+		} finally {
+			data.close();
+		}
+		journal.commit();
+		return journal;
+	}
+
+	/**
+	 * Load the journal of download request.
+	 *
+	 * @param request download request
+	 * @return the journal, or null if it is not existed, torn or does not match the temp file
+	 */
+	static DownloadJournal load(DownloadRequest request) {
+		File journalFile = new File(request.getJournalPath());
+		File dataFile = new File(request.getTmpDestinationPath());
+		if (!journalFile.exists() || !dataFile.exists()) {
+			return null;
+		}
+
+		DataInputStream in = null;
+		try {
+			byte[] bytes = new byte[(int) journalFile.length()];
+			in = new DataInputStream(new FileInputStream(journalFile));
+			in.readFully(bytes);
+			in.close();
+
+			/* the last 8 bytes is the checksum of content */
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			in = new DataInputStream(new ByteArrayInputStream(bytes));
+			int version;
+			if (in.readInt() != MAGIC || (version = in.readInt()) > VERSION) {
+				return null;
+			}
+
+			long totalBytes = in.readLong();
+			String eTag = emptyToNull(in.readUTF());
+			String lastModified = emptyToNull(in.readUTF());
+			String destFilePath = version >= 3 ? emptyToNull(in.readUTF()) : null;
+			/* the checksums of version 1 are unknown */
+			boolean checksummed = version >= 2 && in.readBoolean();
+			int count = in.readInt();
+			List<DownloadSegment> segments = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				long start = in.readLong();
+				long end = in.readLong();
+				long position = in.readLong();
+				int segmentCrc = version >= 2 ? in.readInt() : 0;
+				/* the bytes before the position must be in the temp file */
+				if (position < start || position > end + 1 || (position > start && dataFile.length() < position)) {
+					return null;
+				}
+				segments.add(new DownloadSegment(start, end, position, segmentCrc));
+			}
+			if (in.readLong() != crc.getValue()) {
+				return null;
+			}
+
+			DownloadJournal journal = new DownloadJournal(request, totalBytes, eTag, lastModified, destFilePath, segments);
+			/* the checksums are stale if the download went on without verification */
+			journal.mChecksummed &= checksummed;
+			return journal;
+		} catch (IOException | RuntimeException e) {
+			DownloadLog.w(TAG, "cannot load journal, download id: " + request.getDownloadId(), e);
+			return null;
+		} finally {
+			silentClose(in);
+		}
+	}
+
+	/**
+	 * Delete the journal file of download request.
+	 *
+	 * @param request download request
+	 */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	static void delete(DownloadRequest request) {
+		File journalFile = new File(request.getJournalPath());
+		journalFile.delete();
+		getTmpFile(journalFile).delete();
+	}
+
+	long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+	/**
+	 * Get the destination file path resolved with the first response, the file keeps its name when committed by a later process.
+	 *
+	 * @return file path, or null if the journal was written by an older version
+	 */
+	String getDestFilePath() {
+		return mDestFilePath;
+	}
+
+	List<DownloadSegment> getSegments() {
+		return mSegments;
+	}
+
+	/**
+	 * Get the validator used in If-Range header. Weak ETag is not allowed in If-Range, use Last-Modified instead.
+	 *
+	 * @return validator, or null if the server gave neither
+	 */
+	String getValidator() {
+		if (mETag != null && !mETag.startsWith("W/")) {
+			return mETag;
+		}
+		return mLastModified;
+	}
+
+	/**
+	 * Whether or not the checksums of segments are maintained, false if the journal was written without verification.
+	 *
+	 * @return true if checksummed
+	 */
+	boolean isChecksummed() {
+		return mChecksummed;
+	}
+
+	void setChecksummed(boolean checksummed) {
+		mChecksummed = checksummed;
+	}
+
+	/**
+	 * Get the bytes have written of all segments.
+	 *
+	 * @return bytes written
+	 */
+	long getBytesWritten() {
+		long bytesWritten = 0;
+		for (DownloadSegment segment : mSegments) {
+			bytesWritten += segment.getPosition() - segment.getStart();
+		}
+		return bytesWritten;
+	}
+
+	/**
+	 * Get the first segment which has not completed.
+	 *
+	 * @return the segment, or null if all the segments have completed
+	 */
+	DownloadSegment getFirstIncompleteSegment() {
+		for (DownloadSegment segment : mSegments) {
+			if (!segment.isComplete()) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Invoked after bytes have written into temp file, the journal will be committed in batches.
+	 *
+	 * @param length bytes written
+	 */
+	synchronized void onBytesWritten(long length) {
+		mUncommittedBytes += length;
+		if (mUncommittedBytes >= COMMIT_BYTES || System.currentTimeMillis() - mLastCommitTimestamp >= COMMIT_INTERVAL) {
+			try {
+				commit();
+			} catch (IOException e) {
+				DownloadLog.w(TAG, "cannot commit journal", e);
+			}
+		}
+	}
+
+	/**
+	 * Sync the temp file to disk and then write the positions of segments into journal, the new journal replaces the old one by a rename.
+	 *
+	 * @throws IOException if the journal cannot be written
+	 */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	synchronized void commit() throws IOException {
+		if (mDiscarded) {
+			return;
+		}
+
+		/* take the positions before syncing, so every committed byte is on disk */
+		long[] positions = new long[mSegments.size()];
+		int[] crcs = new int[mSegments.size()];
+		for (int i = 0; i < positions.length; i++) {
+			DownloadSegment segment = mSegments.get(i);
+			synchronized (segment) {
+				positions[i] = segment.getPosition();
+				crcs[i] = segment.getCrc();
+			}
+		}
+
+		RandomAccessFile data = new RandomAccessFile(mDataFile, "rw");
+		try {
+			data.getFD().sync();
+		} finally {
+			data.close();
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mTotalBytes);
+		out.writeUTF(mETag == null ? "" : mETag);
+		out.writeUTF(mLastModified == null ? "" : mLastModified);
+		out.writeUTF(mDestFilePath == null ? "" : mDestFilePath);
+		out.writeBoolean(mChecksummed);
+		out.writeInt(mSegments.size());
+		for (int i = 0; i < positions.length; i++) {
+			DownloadSegment segment = mSegments.get(i);
+			out.writeLong(segment.getStart());
+			out.writeLong(segment.getEnd());
+			out.writeLong(positions[i]);
+			out.writeInt(crcs[i]);
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bos.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+
+		/* written aside and renamed over the old journal, a crash leaves either the old journal or the new one, never a torn one */
+		File tmpFile = getTmpFile(mJournalFile);
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			fos.write(bos.toByteArray());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmpFile.renameTo(mJournalFile)) {
+			/* some file systems cannot rename over an existing file */
+			mJournalFile.delete();
+			if (!tmpFile.renameTo(mJournalFile)) {
+				throw new IOException("cannot rename " + tmpFile + " to " + mJournalFile);
+			}
+		}
+		DownloadPlatform.get().syncDirectory(mJournalFile.getAbsoluteFile().getParentFile());
+
+		mUncommittedBytes = 0;
+		mLastCommitTimestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Discard this journal and delete the journal file, used when the temp file cannot be trusted any more.
+	 */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	synchronized void discard() {
+		mDiscarded = true;
+		mJournalFile.delete();
+		getTmpFile(mJournalFile).delete();
+	}
+
+	/* the new journal being written, renamed to the journal file once synced */
+	private static File getTmpFile(File journalFile) {
+		return new File(journalFile.getPath() + ".tmp");
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.length() == 0 ? null : value;
+	}
+
+	private static void silentClose(DataInputStream in) {
+		try {
+			if (in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+			DownloadLog.w(TAG, "cannot close journal", e);
+		}
+	}
+}
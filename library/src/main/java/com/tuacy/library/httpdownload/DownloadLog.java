@@ -0,0 +1,22 @@
+package com.tuacy.library.httpdownload;
+
+/**
+ * Log of download engine, the output goes to the logger of {@link DownloadPlatform}.
+ */
+final class DownloadLog {
+
+	private DownloadLog() {
+	}
+
+	static void i(String tag, String msg) {
+		DownloadPlatform.get().getLogger().i(tag, msg);
+	}
+
+	static void w(String tag, String msg) {
+		DownloadPlatform.get().getLogger().w(tag, msg, null);
+	}
+
+	static void w(String tag, String msg, Throwable tr) {
+		DownloadPlatform.get().getLogger().w(tag, msg, tr);
+	}
+}
@@ -0,0 +1,24 @@
+package com.tuacy.library.httpdownload;
+
+/**
+ * Interface definition for the log output of download engine, provided by {@link DownloadPlatform}.
+ */
+public interface DownloadLogger {
+
+	/**
+	 * Log an info message.
+	 *
+	 * @param tag tag of the source class
+	 * @param msg message
+	 */
+	void i(String tag, String msg);
+
+	/**
+	 * Log a warning message.
+	 *
+	 * @param tag tag of the source class
+	 * @param msg message
+	 * @param tr  the cause, may be null
+	 */
+	void w(String tag, String msg, Throwable tr);
+}
@@ -1,11 +1,21 @@
 package com.tuacy.library.httpdownload;
 
-import android.os.Handler;
-import android.os.Looper;
+import com.tuacy.library.concurrent.ResizableExecutorService;
 
-import com.tuacy.library.concurrent.AndroidExecutors;
-import com.tuacy.library.concurrent.PausableExecutorService;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Download manager: queues the download requests and runs them in a priority thread pool.
+ *
+ * On android, set a platform created with the application context before the first request, e.g. in {@code Application.onCreate()}:
+ * {@code DownloadPlatform.set(new AndroidDownloadPlatform(context))}. The default platform has no context, it cannot detect the network
+ * type, so {@link DownloadRequest#setAllowedNetworkTypes(int)} throws an IllegalStateException for a request restricted to wifi or to
+ * mobile network. The context also needs permission android.permission.ACCESS_NETWORK_STATE.
+ */
 public class DownloadManager {
 
 	private final static int DEFAULT_THREADS = 3;
@@ -25,6 +35,32 @@ public class DownloadManager {
 	 */
 	public static final int HTTP_ERROR_NETWORK = 1 << 2;
 
+	/**
+	 * custom http code digest of file mismatch
+	 */
+	public static final int HTTP_ERROR_DIGEST = 1 << 3;
+
+	/**
+	 * custom http code not enough space for the file
+	 */
+	public static final int HTTP_ERROR_SPACE = 1 << 4;
+
+	/**
+	 * Engine mode values: how the bodies of downloads are received.
+	 */
+	public enum EngineMode {
+		/**
+		 * Every download is received by its download thread with the transport of manager(default).
+		 */
+		THREAD,
+		/**
+		 * The bodies of plain http downloads are received by a few I/O threads on non-blocking sockets, the download thread is free for the
+		 * next download once the header has arrived, so the downloads in flight are not limited by the thread count. Https downloads keep
+		 * the transport of manager.
+		 */
+		SELECTOR,
+	}
+
 	/**
 	 * range not satisfiable
 	 */
@@ -33,7 +69,7 @@ public class DownloadManager {
 	/**
 	 * singleton instance
 	 */
-	private static DownloadManager          mInstance                 = null;
+	private static volatile DownloadManager mInstance                 = null;
 	/**
 	 * manager the request we have joined the thread pool(then we can control the request)
 	 */
@@ -41,19 +77,80 @@ public class DownloadManager {
 	/**
 	 * thread pool(pause able, priority task)
 	 */
-	private        PausableExecutorService  mPausableExecutorService  = null;
+	private        ResizableExecutorService mPausableExecutorService  = null;
 	/**
 	 * download delivery: used to delivery callback to call back in main thread.
 	 */
 	private        DownloadDelivery         mDownloadDelivery         = null;
+	/**
+	 * buffer pool shared by all the download workers
+	 */
+	private        DownloadBufferPool       mDownloadBufferPool       = null;
+	/**
+	 * http transport used by all the download workers
+	 */
+	private volatile DownloadTransport      mDownloadTransport        = null;
+	/**
+	 * rate limiter shared by all the downloads
+	 */
+	private        DownloadRateLimiter      mDownloadRateLimiter      = null;
+	/**
+	 * rate limiters shared by the downloads of the same priority
+	 */
+	private        Map<DownloadRequest.Priority, DownloadRateLimiter> mPriorityRateLimiters = null;
+	/**
+	 * host-aware scheduler in front of the thread pool
+	 */
+	private        DownloadHostScheduler    mHostScheduler            = null;
+	/**
+	 * scheduler of the downloads waiting for retry
+	 */
+	private        DownloadRetryScheduler   mRetryScheduler           = null;
+	/**
+	 * final targets of the urls redirected
+	 */
+	private        DownloadRedirectCache    mRedirectCache            = null;
+	/**
+	 * adaptive controller of the thread count
+	 */
+	private        DownloadConcurrencyController mConcurrencyController = null;
+	/**
+	 * counters and histograms of all the downloads
+	 */
+	private        DownloadMetrics          mMetrics                  = null;
+	/**
+	 * how the bodies of downloads are received
+	 */
+	private volatile EngineMode             mEngineMode               = EngineMode.THREAD;
+	/**
+	 * the I/O threads of selector engine, created when first used
+	 */
+	private        DownloadSelectorEngine   mSelectorEngine           = null;
+	/**
+	 * the running transfers park at it while paused
+	 */
+	private        DownloadTransferGate     mTransferGate             = null;
 
 	/**
 	 * @param nThreads thread pool threads max count
 	 */
 	private DownloadManager(int nThreads) {
 		mDownloadRequestHelpQueue = new DownloadRequestHelpQueue();
-		mPausableExecutorService = AndroidExecutors.newFixedPriorityExecutor(nThreads);
-		mDownloadDelivery = new DownloadDelivery(new Handler(Looper.getMainLooper()));
+		mPausableExecutorService = DownloadPlatform.get().newDownloadExecutor(nThreads);
+		mDownloadDelivery = new DownloadDelivery(DownloadPlatform.get().newCallbackExecutor());
+		mDownloadBufferPool = new DownloadBufferPool();
+		mDownloadTransport = new UrlConnectionTransport();
+		mDownloadRateLimiter = new DownloadRateLimiter();
+		mPriorityRateLimiters = new EnumMap<>(DownloadRequest.Priority.class);
+		for (DownloadRequest.Priority priority : DownloadRequest.Priority.values()) {
+			mPriorityRateLimiters.put(priority, new DownloadRateLimiter());
+		}
+		mHostScheduler = new DownloadHostScheduler(mPausableExecutorService);
+		mRetryScheduler = new DownloadRetryScheduler(this);
+		mRedirectCache = new DownloadRedirectCache();
+		mConcurrencyController = new DownloadConcurrencyController(mPausableExecutorService, mHostScheduler);
+		mMetrics = new DownloadMetrics(mPausableExecutorService, mHostScheduler);
+		mTransferGate = new DownloadTransferGate();
 	}
 
 
@@ -68,14 +165,22 @@ public class DownloadManager {
 		return mInstance;
 	}
 
+	/**
+	 * Get the download manager, the thread count is changed if the manager has been created.
+	 *
+	 * @param nThreads thread pool threads count
+	 * @return download manager
+	 */
 	public static DownloadManager getInstance(final int nThreads) {
 		if (null == mInstance) {
 			synchronized (DownloadManager.class) {
 				if (null == mInstance) {
 					mInstance = new DownloadManager(nThreads);
+					return mInstance;
 				}
 			}
 		}
+		mInstance.setThreadCount(nThreads);
 		return mInstance;
 	}
 
@@ -93,14 +198,86 @@ public class DownloadManager {
 
 		request.cleanCancelOrStopState();
 		if (mDownloadRequestHelpQueue.add(request)) {
-			/** add to thread pool */
-			DownloadPrioritizedRunnable downloadRunnable = new DownloadPrioritizedRunnable(request, mDownloadDelivery);
-			mPausableExecutorService.execute(downloadRunnable);
+			/** add to thread pool through the host scheduler */
+			DownloadPrioritizedRunnable downloadRunnable = new DownloadPrioritizedRunnable(request, this);
+			mHostScheduler.submit(downloadRunnable);
 			return request.getDownloadId();
 		}
 		return -1;
 	}
 
+	/**
+	 * Add all the requests of batch to queue and ready to download. The requests are registered with one lock acquisition, a request
+	 * already in downloading is skipped and not counted in the batch.
+	 *
+	 * @param batch download batch
+	 * @return count of requests added
+	 */
+	public int add(DownloadBatch batch) {
+		if (batch == null) {
+			throw new IllegalArgumentException("DownloadBatch cannot be null");
+		}
+
+		for (DownloadRequest request : batch.getRequests()) {
+			request.cleanCancelOrStopState();
+		}
+
+		List<DownloadRequest> added = mDownloadRequestHelpQueue.addAll(batch.getRequests());
+		batch.start(added);
+		if (added.isEmpty()) {
+			mDownloadDelivery.postBatchComplete(batch);
+			return 0;
+		}
+
+		List<DownloadPrioritizedRunnable> runnables = new ArrayList<>(added.size());
+		for (DownloadRequest request : added) {
+			runnables.add(new DownloadPrioritizedRunnable(request, this));
+		}
+		mHostScheduler.submitAll(runnables);
+		return added.size();
+	}
+
+	/**
+	 * Change the priority of a download which has been added. A waiting download is queued by its new priority at once, a running one
+	 * keeps running unless preemption is enabled and a download of higher priority is waiting.
+	 *
+	 * @param downloadId the request download id
+	 * @param priority   new priority
+	 * @return true if the download is in queue
+	 * @see #setPreemption(boolean)
+	 */
+	public boolean setPriority(int downloadId, DownloadRequest.Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException("Priority cannot be null");
+		}
+
+		DownloadRequest request = mDownloadRequestHelpQueue.get(downloadId);
+		if (request == null) {
+			return false;
+		}
+
+		DownloadRequest.Priority oldPriority;
+		synchronized (request) {
+			oldPriority = request.getPriority();
+			request.setPriority(priority);
+		}
+		if (oldPriority != priority) {
+			mHostScheduler.reprioritize(request, oldPriority);
+		}
+		return true;
+	}
+
+	/**
+	 * Enable or disable preemption: when every download thread is busy and a download of higher priority is waiting, the running download
+	 * of lowest priority stops at its breakpoint and waits again, then resumes without another start callback. A download whose server does
+	 * not support range requests starts over when resumed. Disabled by default.
+	 *
+	 * @param enable true to enable
+	 */
+	public void setPreemption(boolean enable) {
+		mHostScheduler.setPreemption(enable);
+	}
+
 	/**
 	 * Cancel the download request by download id will delete the temp file
 	 *
@@ -108,6 +285,7 @@ public class DownloadManager {
 	 */
 	public void cancel(int downloadId) {
 		mDownloadRequestHelpQueue.cancel(downloadId);
+		mRetryScheduler.wakeUpFinished();
 	}
 
 	/**
@@ -117,6 +295,7 @@ public class DownloadManager {
 	 */
 	public void cancel(String url) {
 		mDownloadRequestHelpQueue.cancel(url);
+		mRetryScheduler.wakeUpFinished();
 	}
 
 	/**
@@ -126,6 +305,7 @@ public class DownloadManager {
 	 */
 	public void stop(int downloadId) {
 		mDownloadRequestHelpQueue.stop(downloadId);
+		mRetryScheduler.wakeUpFinished();
 	}
 
 	/**
@@ -135,6 +315,7 @@ public class DownloadManager {
 	 */
 	public void stop(String url) {
 		mDownloadRequestHelpQueue.stop(url);
+		mRetryScheduler.wakeUpFinished();
 	}
 
 	/**
@@ -142,6 +323,7 @@ public class DownloadManager {
 	 */
 	public void cancelAll() {
 		mDownloadRequestHelpQueue.cancelAll();
+		mRetryScheduler.wakeUpFinished();
 	}
 
 	/**
@@ -149,10 +331,193 @@ public class DownloadManager {
 	 */
 	public void stopAll() {
 		mDownloadRequestHelpQueue.stopAll();
+		mRetryScheduler.wakeUpFinished();
+	}
+
+	/**
+	 * Get the buffer pool shared by all the download workers, used to config the pool or read its counters.
+	 *
+	 * @return buffer pool
+	 */
+	public DownloadBufferPool getBufferPool() {
+		return mDownloadBufferPool;
+	}
+
+	/**
+	 * Set the http transport used by the download workers, the downloads already started keep their transport.
+	 *
+	 * @param transport download transport
+	 */
+	public void setTransport(DownloadTransport transport) {
+		if (transport == null) {
+			throw new IllegalArgumentException("DownloadTransport cannot be null");
+		}
+
+		mDownloadTransport = transport;
+	}
+
+	/**
+	 * Get the http transport used by the download workers.
+	 *
+	 * @return download transport
+	 */
+	public DownloadTransport getTransport() {
+		return mDownloadTransport;
+	}
+
+	/**
+	 * Cap the total bytes per second of all the downloads, the running downloads share the budget and slow down at once.
+	 *
+	 * @param bytesPerSecond max bytes per second, {@link DownloadRateLimiter#UNLIMITED} for no limit
+	 */
+	public void setMaxBytesPerSecond(long bytesPerSecond) {
+		mDownloadRateLimiter.setBytesPerSecond(bytesPerSecond);
+	}
+
+	/**
+	 * Cap the total bytes per second of the downloads with the priority, the global cap still applies.
+	 *
+	 * @param priority       download priority
+	 * @param bytesPerSecond max bytes per second, {@link DownloadRateLimiter#UNLIMITED} for no limit
+	 */
+	public void setMaxBytesPerSecond(DownloadRequest.Priority priority, long bytesPerSecond) {
+		getRateLimiter(priority).setBytesPerSecond(bytesPerSecond);
 	}
 
 	/**
-	 * Pause the thread pool (if the thread already start will continue do until end if the thread not start will pause )
+	 * Get the rate limiter shared by all the downloads.
+	 *
+	 * @return rate limiter
+	 */
+	public DownloadRateLimiter getRateLimiter() {
+		return mDownloadRateLimiter;
+	}
+
+	/**
+	 * Get the rate limiter shared by the downloads with the priority.
+	 *
+	 * @param priority download priority
+	 * @return rate limiter
+	 */
+	protected DownloadRateLimiter getRateLimiter(DownloadRequest.Priority priority) {
+		return mPriorityRateLimiters.get(priority);
+	}
+
+	/**
+	 * Set the count of download threads, the running downloads are not interrupted when shrinking.
+	 *
+	 * @param nThreads thread count
+	 * @see DownloadConcurrencyController#setThreadCount(int)
+	 */
+	public void setThreadCount(int nThreads) {
+		mConcurrencyController.setThreadCount(nThreads);
+	}
+
+	/**
+	 * Cap the downloads in flight per host, so one slow host cannot occupy every download thread.
+	 *
+	 * @param max max downloads per host, {@link DownloadHostScheduler#DEFAULT_MAX_REQUESTS_PER_HOST} by default
+	 */
+	public void setMaxRequestsPerHost(int max) {
+		mHostScheduler.setMaxRequestsPerHost(max);
+	}
+
+	/**
+	 * Set how the bodies of downloads are received, the downloads already started keep their mode.
+	 *
+	 * @param mode engine mode, {@link EngineMode#THREAD} by default
+	 */
+	public void setEngineMode(EngineMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("EngineMode cannot be null");
+		}
+
+		mEngineMode = mode;
+	}
+
+	public EngineMode getEngineMode() {
+		return mEngineMode;
+	}
+
+	/**
+	 * Get the selector engine, the I/O threads are started when first used.
+	 *
+	 * @return selector engine
+	 * @throws IOException if the selectors cannot be opened
+	 */
+	synchronized DownloadSelectorEngine getSelectorEngine() throws IOException {
+		if (mSelectorEngine == null) {
+			mSelectorEngine = new DownloadSelectorEngine(DownloadSelectorEngine.DEFAULT_IO_THREADS, mDownloadBufferPool);
+		}
+		return mSelectorEngine;
+	}
+
+	/**
+	 * Wake the I/O threads of the selector engine if started, the connections parked by a pause or by a full writer read again at once.
+	 */
+	synchronized void wakeSelectorEngine() {
+		if (mSelectorEngine != null) {
+			mSelectorEngine.wakeup();
+		}
+	}
+
+	/**
+	 * Get the host-aware scheduler which decides the order the downloads start.
+	 *
+	 * @return host scheduler
+	 */
+	public DownloadHostScheduler getHostScheduler() {
+		return mHostScheduler;
+	}
+
+	/**
+	 * Get the scheduler of retries, used to config the backoff.
+	 *
+	 * @return retry scheduler
+	 */
+	public DownloadRetryScheduler getRetryScheduler() {
+		return mRetryScheduler;
+	}
+
+	/**
+	 * Get the cache of redirect targets, the downloads of a redirected url connect to its target directly.
+	 *
+	 * @return redirect cache
+	 */
+	public DownloadRedirectCache getRedirectCache() {
+		return mRedirectCache;
+	}
+
+	/**
+	 * Get the adaptive controller of thread count, it is disabled by default.
+	 *
+	 * @return concurrency controller
+	 */
+	public DownloadConcurrencyController getConcurrencyController() {
+		return mConcurrencyController;
+	}
+
+	/**
+	 * Get the metrics of all the downloads, used to take snapshots or set the sink.
+	 *
+	 * @return download metrics
+	 */
+	public DownloadMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Get the download delivery.
+	 *
+	 * @return download delivery
+	 */
+	protected DownloadDelivery getDelivery() {
+		return mDownloadDelivery;
+	}
+
+	/**
+	 * Pause the thread pool (if the thread already start will continue do until end if the thread not start will pause ), see
+	 * {@link #pauseTransfers()} to pause the running downloads too.
 	 */
 	public void threadPollPause() {
 		mPausableExecutorService.pause();
@@ -164,4 +529,51 @@ public class DownloadManager {
 	public void threadPollResume() {
 		mPausableExecutorService.resume();
 	}
+
+	/**
+	 * Pause all the downloads: the waiting ones do not start, the running ones park between two reads and keep their connections, so
+	 * the network is free at once. A download paused longer than the keep alive time stops at its breakpoint, releases its connection and
+	 * waits again, then resumes without another start callback.
+	 */
+	public void pauseTransfers() {
+		mPausableExecutorService.pause();
+		mTransferGate.pause();
+	}
+
+	/**
+	 * Resume the downloads paused by {@link #pauseTransfers()}, the parked ones go on with the connections they kept.
+	 */
+	public void resumeTransfers() {
+		mTransferGate.resume();
+		wakeSelectorEngine();
+		mPausableExecutorService.resume();
+	}
+
+	/**
+	 * Whether or not the downloads have been paused by {@link #pauseTransfers()}.
+	 *
+	 * @return true if paused
+	 */
+	public boolean isTransfersPaused() {
+		return mTransferGate.isPaused();
+	}
+
+	/**
+	 * Set the max time a paused download keeps its connection, default is 30 seconds. Servers close the connections idle for too long,
+	 * the download then releases it and connects again when resumed.
+	 *
+	 * @param keepAlive time in millisecond, 0 to release the connections as soon as paused
+	 */
+	public void setPauseKeepAlive(long keepAlive) {
+		mTransferGate.setKeepAlive(keepAlive);
+	}
+
+	/**
+	 * Get the gate the running transfers park at while paused.
+	 *
+	 * @return transfer gate
+	 */
+	DownloadTransferGate getTransferGate() {
+		return mTransferGate;
+	}
 }
@@ -0,0 +1,390 @@
+package com.tuacy.library.httpdownload;
+
+import com.tuacy.library.concurrent.ResizableExecutorService;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download metrics: counters and histograms of all the downloads of manager, to see where the download time goes. Every attempt of a
+ * download is measured from waiting in queue, through connecting and the first byte, to transferring and its final result, the metrics of
+ * an attempt are also reported to the sink if set.
+ *
+ * The counters and histograms only take atomic adds while downloading. {@link #snapshot()} copies them, the rates such as bytes per second
+ * and worker utilization are computed between two snapshots.
+ */
+public class DownloadMetrics {
+
+	private static final String TAG = DownloadMetrics.class.getSimpleName();
+
+	private final ResizableExecutorService mExecutor;
+	private final DownloadHostScheduler    mHostScheduler;
+
+	private final AtomicLong mAttempts         = new AtomicLong();
+	private final AtomicLong mSucceeded        = new AtomicLong();
+	private final AtomicLong mFailed           = new AtomicLong();
+	private final AtomicLong mRetried          = new AtomicLong();
+	private final AtomicLong mCanceled         = new AtomicLong();
+	private final AtomicLong mStopped          = new AtomicLong();
+	private final AtomicLong mPreempted        = new AtomicLong();
+	private final AtomicLong mPauseReleased    = new AtomicLong();
+	private final AtomicLong mConnections      = new AtomicLong();
+	private final AtomicLong mRedirects        = new AtomicLong();
+	private final AtomicLong mBytesTransferred = new AtomicLong();
+
+	/**
+	 * Downloads being run by the workers, the sum of their start time, and the time of the downloads finished running, guarded by this.
+	 * The busy time up to now is mBusyNanos + mActiveWorkers * now - mActiveStartNanos.
+	 */
+	private int  mActiveWorkers    = 0;
+	private long mActiveStartNanos = 0;
+	private long mBusyNanos        = 0;
+
+	private final DownloadHistogram mQueueWait       = new DownloadHistogram();
+	private final DownloadHistogram mConnectTime     = new DownloadHistogram();
+	private final DownloadHistogram mTimeToFirstByte = new DownloadHistogram();
+	private final DownloadHistogram mBytesPerSecond  = new DownloadHistogram();
+	private final DownloadHistogram mDuration        = new DownloadHistogram();
+
+	private volatile DownloadMetricsSink mSink;
+
+	DownloadMetrics(ResizableExecutorService executor, DownloadHostScheduler hostScheduler) {
+		mExecutor = executor;
+		mHostScheduler = hostScheduler;
+	}
+
+	/**
+	 * Set the receiver of the metrics of every finished attempt.
+	 *
+	 * @param sink metrics sink, null for none
+	 */
+	public void setSink(DownloadMetricsSink sink) {
+		mSink = sink;
+	}
+
+	public DownloadMetricsSink getSink() {
+		return mSink;
+	}
+
+	/**
+	 * Copy the counters and histograms, cheap enough to be taken every second.
+	 *
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/* a worker has picked an attempt up */
+	void onAttemptStart(DownloadRequestMetrics metrics) {
+		mAttempts.incrementAndGet();
+		synchronized (this) {
+			mActiveWorkers++;
+			mActiveStartNanos += metrics.getStartNanos();
+		}
+		mQueueWait.record(TimeUnit.NANOSECONDS.toMillis(metrics.getQueueWaitNanos()));
+	}
+
+	/* the worker has finished running the attempt */
+	void onAttemptEnd(DownloadRequestMetrics metrics) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			mActiveWorkers--;
+			mActiveStartNanos -= metrics.getStartNanos();
+			mBusyNanos += now - metrics.getStartNanos();
+		}
+	}
+
+	void onConnection(DownloadRequestMetrics metrics, long connectNanos, long firstByteNanos) {
+		metrics.onConnection(connectNanos, firstByteNanos);
+		mConnections.incrementAndGet();
+		mConnectTime.record(TimeUnit.NANOSECONDS.toMillis(connectNanos));
+		mTimeToFirstByte.record(TimeUnit.NANOSECONDS.toMillis(firstByteNanos));
+	}
+
+	void onRedirect(DownloadRequestMetrics metrics) {
+		metrics.onRedirect();
+		mRedirects.incrementAndGet();
+	}
+
+	void onBytesTransferred(DownloadRequestMetrics metrics, long length) {
+		metrics.onBytesTransferred(length);
+		mBytesTransferred.addAndGet(length);
+	}
+
+	/* the attempt has its final result, or failed and will be retried */
+	void onAttemptFinished(DownloadRequestMetrics metrics, DownloadRequestMetrics.Outcome outcome, int statusCode) {
+		if (!metrics.finish(outcome, statusCode)) {
+			return;
+		}
+
+		switch (outcome) {
+			case SUCCESS:
+				mSucceeded.incrementAndGet();
+				break;
+			case FAILURE:
+				mFailed.incrementAndGet();
+				break;
+			case RETRY:
+				mRetried.incrementAndGet();
+				break;
+			case CANCEL:
+				mCanceled.incrementAndGet();
+				break;
+			case STOP:
+				mStopped.incrementAndGet();
+				break;
+			case PREEMPT:
+				mPreempted.incrementAndGet();
+				break;
+			case PAUSE_RELEASE:
+				mPauseReleased.incrementAndGet();
+				break;
+			default:
+				break;
+		}
+		mDuration.record(TimeUnit.NANOSECONDS.toMillis(metrics.getDurationNanos()));
+		if (metrics.getBytesTransferred() > 0) {
+			mBytesPerSecond.record(metrics.getBytesPerSecond());
+		}
+
+		DownloadMetricsSink sink = mSink;
+		if (sink != null) {
+			try {
+				sink.onAttemptFinished(metrics);
+			} catch (RuntimeException e) {
+				DownloadLog.w(TAG, "metrics sink failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of download metrics: the counters and histograms at a moment. The counters only grow, the difference of two snapshots is
+	 * what happened between them.
+	 */
+	public static final class Snapshot {
+
+		private final long mTimestampNanos;
+		private final long mAttempts;
+		private final long mSucceeded;
+		private final long mFailed;
+		private final long mRetried;
+		private final long mCanceled;
+		private final long mStopped;
+		private final long mPreempted;
+		private final long mPauseReleased;
+		private final long mConnections;
+		private final long mRedirects;
+		private final long mBytesTransferred;
+		private final int  mActiveWorkers;
+		private final int  mThreadCount;
+		private final int  mWaitingCount;
+		private final long mBusyNanos;
+
+		private final DownloadHistogram mQueueWait;
+		private final DownloadHistogram mConnectTime;
+		private final DownloadHistogram mTimeToFirstByte;
+		private final DownloadHistogram mBytesPerSecond;
+		private final DownloadHistogram mDuration;
+
+		private Snapshot(DownloadMetrics metrics) {
+			/* the running downloads count as busy up to now */
+			synchronized (metrics) {
+				mTimestampNanos = System.nanoTime();
+				mActiveWorkers = metrics.mActiveWorkers;
+				mBusyNanos = metrics.mBusyNanos + mActiveWorkers * mTimestampNanos - metrics.mActiveStartNanos;
+			}
+			mAttempts = metrics.mAttempts.get();
+			mSucceeded = metrics.mSucceeded.get();
+			mFailed = metrics.mFailed.get();
+			mRetried = metrics.mRetried.get();
+			mCanceled = metrics.mCanceled.get();
+			mStopped = metrics.mStopped.get();
+			mPreempted = metrics.mPreempted.get();
+			mPauseReleased = metrics.mPauseReleased.get();
+			mConnections = metrics.mConnections.get();
+			mRedirects = metrics.mRedirects.get();
+			mBytesTransferred = metrics.mBytesTransferred.get();
+			mThreadCount = metrics.mExecutor.getThreadCount();
+			mWaitingCount = metrics.mHostScheduler.getWaitingCount();
+			mQueueWait = metrics.mQueueWait.snapshot();
+			mConnectTime = metrics.mConnectTime.snapshot();
+			mTimeToFirstByte = metrics.mTimeToFirstByte.snapshot();
+			mBytesPerSecond = metrics.mBytesPerSecond.snapshot();
+			mDuration = metrics.mDuration.snapshot();
+		}
+
+		/**
+		 * Get the count of attempts picked up by workers, a retry is another attempt.
+		 *
+		 * @return attempt count
+		 */
+		public long getAttempts() {
+			return mAttempts;
+		}
+
+		public long getSucceeded() {
+			return mSucceeded;
+		}
+
+		/**
+		 * Get the count of downloads failed finally, the failures retried are not included.
+		 *
+		 * @return failure count
+		 */
+		public long getFailed() {
+			return mFailed;
+		}
+
+		/**
+		 * Get the count of failed attempts queued again to retry.
+		 *
+		 * @return retry count
+		 */
+		public long getRetries() {
+			return mRetried;
+		}
+
+		public long getCanceled() {
+			return mCanceled;
+		}
+
+		public long getStopped() {
+			return mStopped;
+		}
+
+		/**
+		 * Get the count of attempts preempted by downloads of higher priority, they are queued again.
+		 *
+		 * @return preemption count
+		 */
+		public long getPreempted() {
+			return mPreempted;
+		}
+
+		/**
+		 * Get the count of attempts which released their connections because a pause outlasted the keep alive time, they are queued again.
+		 *
+		 * @return release count
+		 */
+		public long getPauseReleased() {
+			return mPauseReleased;
+		}
+
+		public long getConnections() {
+			return mConnections;
+		}
+
+		public long getRedirects() {
+			return mRedirects;
+		}
+
+		/**
+		 * Get the bytes received from network by all the downloads.
+		 *
+		 * @return bytes
+		 */
+		public long getBytesTransferred() {
+			return mBytesTransferred;
+		}
+
+		/**
+		 * Get the count of downloads being run by the workers.
+		 *
+		 * @return active workers
+		 */
+		public int getActiveWorkers() {
+			return mActiveWorkers;
+		}
+
+		public int getThreadCount() {
+			return mThreadCount;
+		}
+
+		/**
+		 * Get the count of downloads waiting in the host scheduler for a worker.
+		 *
+		 * @return waiting count
+		 */
+		public int getWaitingCount() {
+			return mWaitingCount;
+		}
+
+		/**
+		 * Get the distribution of the time waiting in queue, in millisecond.
+		 *
+		 * @return histogram
+		 */
+		public DownloadHistogram getQueueWait() {
+			return mQueueWait;
+		}
+
+		/**
+		 * Get the distribution of the time to open a connection, in millisecond.
+		 *
+		 * @return histogram
+		 */
+		public DownloadHistogram getConnectTime() {
+			return mConnectTime;
+		}
+
+		/**
+		 * Get the distribution of the time from opening a connection to its response header, in millisecond.
+		 *
+		 * @return histogram
+		 */
+		public DownloadHistogram getTimeToFirstByte() {
+			return mTimeToFirstByte;
+		}
+
+		/**
+		 * Get the distribution of the bytes per second of the attempts which have transferred data.
+		 *
+		 * @return histogram
+		 */
+		public DownloadHistogram getBytesPerSecond() {
+			return mBytesPerSecond;
+		}
+
+		/**
+		 * Get the distribution of the time of attempts from picked up to finished, in millisecond.
+		 *
+		 * @return histogram
+		 */
+		public DownloadHistogram getDuration() {
+			return mDuration;
+		}
+
+		/**
+		 * Get the bytes received per second by all the downloads since an earlier snapshot.
+		 *
+		 * @param since the earlier snapshot
+		 * @return bytes per second
+		 */
+		public long getBytesPerSecond(Snapshot since) {
+			long nanos = mTimestampNanos - since.mTimestampNanos;
+			return nanos <= 0 ? 0 : (mBytesTransferred - since.mBytesTransferred) * TimeUnit.SECONDS.toNanos(1) / nanos;
+		}
+
+		/**
+		 * Get the ratio of time the workers were running downloads since an earlier snapshot.
+		 *
+		 * @param since the earlier snapshot
+		 * @return utilization in [0, 1]
+		 */
+		public double getWorkerUtilization(Snapshot since) {
+			long nanos = (mTimestampNanos - since.mTimestampNanos) * mThreadCount;
+			return nanos <= 0 ? 0 : Math.min(1, (double) (mBusyNanos - since.mBusyNanos) / nanos);
+		}
+
+		@Override
+		public String toString() {
+			return "attempts: " + mAttempts + ", succeeded: " + mSucceeded + ", failed: " + mFailed + ", retries: " + mRetried +
+				   ", canceled: " + mCanceled + ", stopped: " + mStopped + ", preempted: " + mPreempted + ", pause released: " +
+				   mPauseReleased + ", connections: " + mConnections + ", redirects: " + mRedirects + ", bytes: " + mBytesTransferred +
+				   ", workers: " + mActiveWorkers + "/" + mThreadCount + ", waiting: " + mWaitingCount +
+				   "\nqueue wait(ms): " + mQueueWait + "\nconnect(ms): " + mConnectTime + "\nttfb(ms): " + mTimeToFirstByte +
+				   "\nbytes per second: " + mBytesPerSecond + "\nduration(ms): " + mDuration;
+		}
+	}
+}
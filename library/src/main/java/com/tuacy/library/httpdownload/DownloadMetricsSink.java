@@ -0,0 +1,15 @@
+package com.tuacy.library.httpdownload;
+
+/**
+ * Interface definition for the receiver of download metrics, set by {@link DownloadMetrics#setSink(DownloadMetricsSink)}, such as an
+ * adapter of the metrics library of application.
+ */
+public interface DownloadMetricsSink {
+
+	/**
+	 * An attempt of download has finished, invoked in the download thread, so it must return quickly.
+	 *
+	 * @param metrics metrics of the attempt
+	 */
+	void onAttemptFinished(DownloadRequestMetrics metrics);
+}
@@ -0,0 +1,14 @@
+package com.tuacy.library.httpdownload;
+
+/**
+ * Interface definition for the detection of active network type, provided by {@link DownloadPlatform}.
+ */
+public interface DownloadNetworkDetector {
+
+	/**
+	 * Get the type of active network.
+	 *
+	 * @return {@link DownloadRequest#NETWORK_WIFI}, {@link DownloadRequest#NETWORK_MOBILE}, or 0 if there is no network or it is unknown
+	 */
+	int getActiveNetworkType();
+}
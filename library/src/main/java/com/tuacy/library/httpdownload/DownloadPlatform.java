@@ -0,0 +1,164 @@
+package com.tuacy.library.httpdownload;
+
+import com.tuacy.library.concurrent.AndroidExecutors;
+import com.tuacy.library.concurrent.ResizableExecutorService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Download platform: everything the download engine needs from the platform it runs on, so the engine itself does not depend on android.
+ * By default the android platform is used when the android classes are found, otherwise {@link JvmDownloadPlatform}. The platform should be
+ * set before {@link DownloadManager} is created.
+ */
+public abstract class DownloadPlatform {
+
+	private static final String TAG = DownloadPlatform.class.getSimpleName();
+
+	private static final String ANDROID_PLATFORM = "com.tuacy.library.httpdownload.android.AndroidDownloadPlatform";
+
+	private static volatile DownloadPlatform sPlatform;
+
+	/**
+	 * Get the platform in use.
+	 *
+	 * @return download platform
+	 */
+	public static DownloadPlatform get() {
+		DownloadPlatform platform = sPlatform;
+		if (platform == null) {
+			synchronized (DownloadPlatform.class) {
+				if (sPlatform == null) {
+					sPlatform = findPlatform();
+				}
+				platform = sPlatform;
+			}
+		}
+		return platform;
+	}
+
+	/**
+	 * Set the platform to use.
+	 *
+	 * @param platform download platform
+	 */
+	public static void set(DownloadPlatform platform) {
+		if (platform == null) {
+			throw new IllegalArgumentException("DownloadPlatform cannot be null");
+		}
+
+		sPlatform = platform;
+	}
+
+	/**
+	 * Replace the default android platform by one created with the context, so it can detect the network type. A platform which can
+	 * detect it already or has been set by the app is kept. Only for the deprecated {@code DownloadRequest.setAllowedNetworkTypes(Context,
+	 * int)}, the context is an {@code android.content.Context}.
+	 *
+	 * @param context android context
+	 */
+	static void installContext(Object context) {
+		synchronized (DownloadPlatform.class) {
+			DownloadPlatform platform = get();
+			if (context == null || platform.isNetworkDetectable() || !ANDROID_PLATFORM.equals(platform.getClass().getName())) {
+				return;
+			}
+			try {
+				Class<?> contextClass = Class.forName("android.content.Context");
+				sPlatform = (DownloadPlatform) Class.forName(ANDROID_PLATFORM).getConstructor(contextClass).newInstance(context);
+			} catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException |
+				InvocationTargetException e) {
+				DownloadLog.w(TAG, "cannot create the platform with a context", e);
+			}
+		}
+	}
+
+	/* the android platform is loaded by name, so this class can be loaded without android, consumer-proguard-rules.pro keeps it */
+	private static DownloadPlatform findPlatform() {
+		try {
+			Class.forName("android.os.Build");
+			return (DownloadPlatform) Class.forName(ANDROID_PLATFORM).newInstance();
+		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | LinkageError e) {
+			return new JvmDownloadPlatform();
+		}
+	}
+
+	/**
+	 * Get the logger.
+	 *
+	 * @return logger
+	 */
+	public abstract DownloadLogger getLogger();
+
+	/**
+	 * Create the executor where the callbacks are delivered.
+	 *
+	 * @return callback executor
+	 */
+	public abstract DownloadCallbackExecutor newCallbackExecutor();
+
+	/**
+	 * Create the executor running the downloads. The default is a fixed pool of platform threads, a JVM on java 21 may return
+	 * {@link AndroidExecutors#newVirtualThreadPriorityExecutor(int)} so the downloads blocked in I/O only park their virtual thread.
+	 *
+	 * @param nThreads count of downloads running at the same time
+	 * @return download executor, must order the tasks by priority
+	 */
+	public ResizableExecutorService newDownloadExecutor(int nThreads) {
+		return AndroidExecutors.newFixedPriorityExecutor(nThreads);
+	}
+
+	/**
+	 * Get the network detector.
+	 *
+	 * @return network detector
+	 */
+	public abstract DownloadNetworkDetector getNetworkDetector();
+
+	/**
+	 * Whether or not the network detector can tell the network type, a request restricted to some network types cannot be downloaded
+	 * without it.
+	 *
+	 * @return true by default
+	 */
+	public boolean isNetworkDetectable() {
+		return true;
+	}
+
+	/**
+	 * Lower the priority of current thread, invoked by download workers so they do not compete with the foreground.
+	 */
+	public abstract void setBackgroundThreadPriority();
+
+	/**
+	 * Get the directory where the files are saved if the request has no destination.
+	 *
+	 * @return absolute path of directory
+	 */
+	public abstract String getDefaultDirectory();
+
+	/**
+	 * Reserve the space of file before downloading, invoked when the request asks for preallocation. The default implementation only sets
+	 * the length, most file systems then create a sparse file without reserving the blocks.
+	 *
+	 * @param file   the temp file
+	 * @param length total bytes of file
+	 * @throws IOException if the space cannot be reserved
+	 */
+	public void allocate(RandomAccessFile file, long length) throws IOException {
+		if (file.length() < length) {
+			file.setLength(length);
+		}
+	}
+
+	/**
+	 * Sync a directory to disk, so a file renamed in it survives a crash. The default implementation does nothing, a directory cannot be
+	 * opened by java.io.
+	 *
+	 * @param directory the directory
+	 */
+	public void syncDirectory(File directory) {
+	}
+}
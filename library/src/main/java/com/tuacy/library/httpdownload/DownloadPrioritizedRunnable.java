@@ -1,17 +1,34 @@
 package com.tuacy.library.httpdownload;
 
-import android.os.Process;
-import android.util.Log;
+import com.tuacy.library.concurrent.AndroidExecutors;
+import com.tuacy.library.concurrent.PausableExecutorService;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.tuacy.library.httpdownload.DownloadManager.HTTP_ERROR_DIGEST;
 import static com.tuacy.library.httpdownload.DownloadManager.HTTP_ERROR_NETWORK;
 import static com.tuacy.library.httpdownload.DownloadManager.HTTP_ERROR_SIZE;
+import static com.tuacy.library.httpdownload.DownloadManager.HTTP_ERROR_SPACE;
 import static com.tuacy.library.httpdownload.DownloadManager.HTTP_INVALID;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
@@ -29,24 +46,49 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 	private static final String TAG = DownloadPrioritizedRunnable.class.getSimpleName();
 
 	/**
-	 * Sleep time before download.
-	 */
-	private static final int SLEEP_BEFORE_DOWNLOAD = 1500;
-
-	/**
-	 * Sleep time before retrying download.
+	 * Steps of a download attempt, driven by the loop of {@link #executeDownload(DownloadRequest)}. A redirect goes back to CONNECT, a
+	 * failure posts its message or a retry and goes to DONE, so an attempt never recurses.
 	 */
-	private static final int SLEEP_BEFORE_RETRY = 3500;
+	private enum Step {
+		/**
+		 * Load the journal and find the url to connect, a cached redirect target is used directly.
+		 */
+		RESOLVE,
+		/**
+		 * Open the connection and check the response.
+		 */
+		CONNECT,
+		/**
+		 * Download the incomplete segments.
+		 */
+		TRANSFER,
+		/**
+		 * Make sure all the bytes have been written.
+		 */
+		VERIFY,
+		/**
+		 * Rename the temp file and deliver success.
+		 */
+		COMMIT,
+		/**
+		 * The segments are being received by the selector engine, which goes on with the steps when they finish. The worker is free.
+		 */
+		SUSPEND,
+		/**
+		 * The final message or a retry has been posted.
+		 */
+		DONE
+	}
 
 	/**
-	 * Http connection time out.
+	 * Buffer size used in data transfer.
 	 */
-	private static final int DEFAUL_TIME_OUT = 20 * 1000;
+	private static final int BUFFER_SIZE = 4096;
 
 	/**
-	 * Buffer size used in data transfer.
+	 * Buffer size used in channel transfer mode.
 	 */
-	private static final int BUFFER_SIZE = 4096;
+	private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
 
 	/**
 	 * Maximum of redirection, should not more than 7.
@@ -64,9 +106,14 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 	private static final int HTTP_TEMP_REDIRECT = 307;
 
 	/**
-	 * Accept encoding in request header.
+	 * Http permanent redirect.
 	 */
-	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final int HTTP_PERM_REDIRECT = 308;
+
+	/**
+	 * Too many requests.
+	 */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
 
 	/**
 	 * Transfer encoding in header.
@@ -78,6 +125,41 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 	 */
 	private static final String CONTENT_LENGTH = "Content-Length";
 
+	/**
+	 * Content disposition in header, carries the real filename.
+	 */
+	private static final String CONTENT_DISPOSITION = "Content-Disposition";
+
+	/**
+	 * Content range in header.
+	 */
+	private static final String CONTENT_RANGE = "Content-Range";
+
+	/**
+	 * Range in request header.
+	 */
+	private static final String RANGE = "Range";
+
+	/**
+	 * Validator used to make sure the file has not changed when resuming.
+	 */
+	private static final String IF_RANGE = "If-Range";
+
+	/**
+	 * Entity tag in header.
+	 */
+	private static final String ETAG = "ETag";
+
+	/**
+	 * Last modified time in header.
+	 */
+	private static final String LAST_MODIFIED = "Last-Modified";
+
+	/**
+	 * Wait asked by the server before retrying.
+	 */
+	private static final String RETRY_AFTER = "Retry-After";
+
 	/**
 	 * Redirect location.
 	 */
@@ -98,46 +180,284 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 	 */
 	private static final String IDLE_THREAD_NAME = "DownloadDispatcher-Idle";
 
+	/**
+	 * Max time in millisecond a paused transfer waits before checking whether it has been stopped or canceled.
+	 */
+	private static final long PAUSE_CHECK_INTERVAL = 200;
+
+	/**
+	 * Thread pool used to download the segments except the first one in segmented mode.
+	 */
+	private static final PausableExecutorService SEGMENT_EXECUTOR = AndroidExecutors.newCachedThreadPool();
+
+	/**
+	 * Threads of the write-behind stages, one for every writer running. A writer only finishes after the segments feeding it, so it must
+	 * never wait for a thread of the segment pool, nor take one the segments need.
+	 */
+	private static final ExecutorService WRITER_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DownloadWriter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Used for generating the sequence numbers of runnables, a runnable gets its number when created to be queued.
+	 */
+	private static final AtomicLong SEQUENCE_GENERATOR = new AtomicLong();
+
 	/**
 	 * Redirection time happens in this request.
 	 */
 	private int mRedirectionCount = 0;
 
+	/**
+	 * Url connected in this attempt, the original url, a cached redirect target or the location of last redirect. Read by the segment
+	 * threads.
+	 */
+	private volatile String mUrl;
+
+	/**
+	 * Whether or not the url connected is a cached redirect target, and whether or not every redirect followed is permanent.
+	 */
+	private boolean mCachedUrl;
+	private boolean mPermanentRedirects;
+
+	/**
+	 * Connection and journal of this attempt, passed between the steps.
+	 */
+	private DownloadConnection mConnection;
+	private DownloadJournal    mJournal;
+
+	/**
+	 * Verifier of this attempt, null if the request has no expected digest. Used by the segment threads.
+	 */
+	private volatile DownloadVerifier mVerifier;
+
 	/**
 	 * Save total bytes in case.
 	 */
 	private long mTotalBytes = 0;
 
+	/**
+	 * Save bytes written in case.
+	 */
+	private volatile long mBytesWritten = 0;
+
 	/**
 	 * Used to save last progress timestamp.
 	 */
-	private long mLastProgressTimestamp;
+	private volatile long mLastProgressTimestamp;
 
 	/**
-	 * Used to tell us this dispatcher has dead.
+	 * Used to tell the segments to quit when one of them failed or the download was interrupted.
 	 */
-	private volatile boolean mQuit = false;
+	private volatile boolean mSegmentsAborted = false;
 
-	private DownloadDelivery mDelivery = null;
-	private DownloadRequest  mRequest  = null;
+	/**
+	 * Status code and error message of the first failed segment.
+	 */
+	private int    mSegmentStatusCode;
+	private String mSegmentErrMsg;
+
+	private DownloadDelivery   mDelivery   = null;
+	private DownloadBufferPool mBufferPool = null;
+	private DownloadTransport  mTransport  = null;
+	private DownloadRequest    mRequest    = null;
+	private DownloadManager    mManager    = null;
 
-	public DownloadPrioritizedRunnable(DownloadRequest request, DownloadDelivery downloadDelivery) {
+	/**
+	 * Origin of the request url, used to schedule the downloads per host.
+	 */
+	private final String mHost;
+
+	/**
+	 * Time the runnable was queued, and the metrics of the attempt it runs.
+	 */
+	private final long                   mQueueNanos = System.nanoTime();
+	private       DownloadRequestMetrics mMetrics;
+
+	/**
+	 * Sequence number of this runnable, the runnables of the same priority run in the order they were queued.
+	 */
+	private final long mSequence = SEQUENCE_GENERATOR.incrementAndGet();
+
+	/**
+	 * Whether or not the plain http connections of this attempt are opened by the selector engine.
+	 */
+	private boolean          mSelectorMode;
+	/**
+	 * The transfer going on in the selector engine, the worker leaves the attempt to it.
+	 */
+	private SelectorTransfer mSelectorTransfer;
+
+	/**
+	 * Whether or not this runnable resumes a download preempted by a higher priority one, its start has been delivered.
+	 */
+	private boolean mResumed;
+
+	/**
+	 * Whether or not the attempt has been stopped because a pause outlasted the keep alive time, set by the segment threads.
+	 */
+	private volatile boolean mPauseReleased;
+
+	public DownloadPrioritizedRunnable(DownloadRequest request, DownloadManager manager) {
 		mRequest = request;
-		mDelivery = downloadDelivery;
+		mManager = manager;
+		/* a redirected download is scheduled by the host it will connect to */
+		String target = manager.getRedirectCache().get(request.getUrl());
+		mHost = DownloadUtils.getOrigin(target != null ? target : request.getUrl());
+		mDelivery = manager.getDelivery();
+		mBufferPool = manager.getBufferPool();
+		mTransport = manager.getTransport();
 	}
 
 	@Override
 	public void run() {
 
-		android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		DownloadPlatform.get().setBackgroundThreadPriority();
 
 		Thread.currentThread().setName(DEFAULT_THREAD_NAME);
 
 		mTotalBytes = 0;
+		mBytesWritten = 0;
 		mRedirectionCount = 0;
+		mSelectorMode = mManager.getEngineMode() == DownloadManager.EngineMode.SELECTOR;
+		mSelectorTransfer = null;
+
+		long startNanos = System.nanoTime();
+		mMetrics = new DownloadRequestMetrics(mRequest, mRequest.getRetryAttempt(), startNanos - mQueueNanos, startNanos);
+		mManager.getMetrics().onAttemptStart(mMetrics);
 
 		/** start download */
-		executeDownload(mRequest);
+		try {
+			/* stopped or canceled while waiting in queue or for retry */
+			if (mRequest.isCanceled()) {
+				updateCancel(mRequest);
+			} else if (mRequest.isStop()) {
+				updateStop(mRequest);
+			} else {
+				executeDownload(mRequest, Step.RESOLVE);
+			}
+		} finally {
+			mManager.getMetrics().onAttemptEnd(mMetrics);
+			if (mSelectorTransfer != null) {
+				/* free the worker for the next download, the download still counts against its host until the transfer finishes */
+				mManager.getHostScheduler().detach(this);
+				mSelectorTransfer.onSegmentFinished();
+			} else {
+				/* free the worker for the next download of host scheduler */
+				mManager.getHostScheduler().finish(this);
+			}
+		}
+	}
+
+	String getHost() {
+		return mHost;
+	}
+
+	DownloadRequest.Priority getPriority() {
+		return mRequest.getPriority();
+	}
+
+	DownloadRequest getRequest() {
+		return mRequest;
+	}
+
+	/* ask the download to give its worker up for a higher priority one, it stops at the breakpoint and is queued again */
+	void preempt() {
+		DownloadLog.i(TAG, "preempt download id: " + mRequest.getDownloadId());
+		mRequest.preempt();
+	}
+
+	/* open the connection and wait for the response header, the latency is measured for the concurrency controller and the metrics */
+	private DownloadConnection openConnection(String url, Map<String, String> headers) throws IOException {
+		long start = System.nanoTime();
+		DownloadConnection conn = mSelectorMode && DownloadSelectorEngine.supports(url) ? mManager.getSelectorEngine().open(url, headers) :
+								  mTransport.open(url, headers);
+		long connected = System.nanoTime();
+		try {
+			conn.getResponseCode();
+		} catch (IOException e) {
+			conn.release();
+			throw e;
+		}
+		long responded = System.nanoTime();
+		/* a selector connection is opened before it has connected */
+		long connectNanos = connected - start;
+		if (conn instanceof DownloadSelectorConnection) {
+			connectNanos = ((DownloadSelectorConnection) conn).getConnectNanos();
+		}
+		mManager.getConcurrencyController().onResponse(responded - start);
+		mManager.getMetrics().onConnection(mMetrics, connectNanos, responded - start);
+		return conn;
+	}
+
+	/* count the bytes received for the concurrency controller and the metrics */
+	private void onBytesTransferred(int length) {
+		mManager.getConcurrencyController().onBytesTransferred(length);
+		mManager.getMetrics().onBytesTransferred(mMetrics, length);
+	}
+
+	/* the attempt has its final result or will be retried, the metrics of request are the ones of this attempt from now on */
+	private void finishMetrics(DownloadRequest request, DownloadRequestMetrics.Outcome outcome, int statusCode) {
+		mManager.getMetrics().onAttemptFinished(mMetrics, outcome, statusCode);
+		request.setMetrics(mMetrics);
+	}
+
+	/* wait until the rate limiters of request, of its priority and of the manager all allow more bytes */
+	private void throttle(DownloadRequest request, int length) {
+		long waitNanos = reserve(request, length);
+		if (waitNanos <= 0) {
+			return;
+		}
+
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (InterruptedException e) {
+			/* the transfer loop checks the flag and quits */
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Park while the transfers of manager are paused, the connection is kept. Returns false if the transfer should quit: it has been
+	 * stopped or canceled, or the pause has outlasted the keep alive time and the download is released at its breakpoint.
+	 */
+	private boolean awaitTransfer(DownloadRequest request) {
+		DownloadTransferGate gate = mManager.getTransferGate();
+		try {
+			while (gate.isPaused()) {
+				if (mSegmentsAborted || request.isCanceled() || request.isStop()) {
+					return false;
+				}
+				if (!gate.await(PAUSE_CHECK_INTERVAL)) {
+					release(request);
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			mSegmentsAborted = true;
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/* the pause has lasted too long, stop at the breakpoint and wait again like a preempted download */
+	private void release(DownloadRequest request) {
+		DownloadLog.i(TAG, "release paused download id: " + request.getDownloadId());
+		mPauseReleased = true;
+		request.preempt();
+	}
+
+	/* take the bytes from the rate limiters of request, of its priority and of the manager, returns the nanoseconds to wait */
+	private long reserve(DownloadRequest request, int length) {
+		long waitNanos = request.getRateLimiter().reserve(length);
+		waitNanos = Math.max(waitNanos, mManager.getRateLimiter(request.getPriority()).reserve(length));
+		return Math.max(waitNanos, mManager.getRateLimiter().reserve(length));
 	}
 
 	/* update download state */
@@ -147,8 +467,8 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 
 	/* update download start state */
 	private void updateStart(DownloadRequest request, long totalBytes) {
-		/* if the request has failed before, donnot deliver callback */
-		if (request.getDownloadState() == DownloadRequest.DownloadState.FAILURE) {
+		/* if the request has failed before or was preempted, donnot deliver callback */
+		if (request.getDownloadState() == DownloadRequest.DownloadState.FAILURE || mResumed) {
 			updateState(request, DownloadRequest.DownloadState.RUNNING);
 			return;
 		}
@@ -158,13 +478,15 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 		mDelivery.postStart(request, totalBytes);
 	}
 
-	/* update download retrying */
-	private void updateRetry(DownloadRequest request) {
-		mDelivery.postRetry(request);
-	}
-
 	/* update download progress */
-	private void updateProgress(DownloadRequest request, long bytesWritten, long totalBytes) {
+	private synchronized void updateProgress(DownloadRequest request, long bytesWritten, long totalBytes) {
+		/* the batch aggregates every progress, its callback is throttled by delivery frames */
+		DownloadBatch batch = request.getDownloadBatch();
+		if (batch != null) {
+			batch.updateProgress(request, bytesWritten, totalBytes);
+			mDelivery.postBatchProgress(batch);
+		}
+
 		long currentTimestamp = System.currentTimeMillis();
 		if (bytesWritten != totalBytes && currentTimestamp - mLastProgressTimestamp < request.getProgressInterval()) {
 			return;
@@ -182,6 +504,7 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private void updateSuccess(DownloadRequest request) {
 		updateState(request, DownloadRequest.DownloadState.SUCCESSFUL);
+		finishMetrics(request, DownloadRequestMetrics.Outcome.SUCCESS, 0);
 
 		/* notify the request download finish */
 		request.finish();
@@ -193,47 +516,45 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 
 		/* deliver success message */
 		mDelivery.postSuccess(request);
+		updateBatch(request, true);
 	}
 
 	/* update download failure */
 	private void updateFailure(DownloadRequest request, int statusCode, String errMsg) {
-		updateState(request, DownloadRequest.DownloadState.FAILURE);
-
-		/* if the status code is 0, may be cause by the net error */
-		if ((statusCode == HTTP_INVALID || statusCode == HTTP_ERROR_SIZE) && request.getRetryTime() >= 0) {
-			try {
-				/* update progress in case */
-				long bytesWritten = new File(request.getTmpDestinationPath()).length();
-				updateProgress(request, bytesWritten, mTotalBytes);
+		updateFailure(request, statusCode, errMsg, -1);
+	}
 
-				/* sleep a while before retrying */
-				Thread.sleep(SLEEP_BEFORE_RETRY);
-			} catch (InterruptedException e) {
-				/* we may have been interrupted because it was time to quit */
-				if (mQuit) {
-					request.finish();
-					return;
-				}
-			}
+	/* update download failure, a transient failure is queued again with backoff instead of blocking this worker */
+	private void updateFailure(DownloadRequest request, int statusCode, String errMsg, long retryAfter) {
+		updateState(request, DownloadRequest.DownloadState.FAILURE);
 
-			/* retry downloading */
-			if (!request.isCanceled()) {
-				updateRetry(request);
-				executeDownload(request);
-			}
+		/* net error, broken file, or the server asks to come back later */
+		boolean retryable = statusCode == HTTP_INVALID || statusCode == HTTP_ERROR_SIZE || statusCode == HTTP_ERROR_DIGEST ||
+							statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HTTP_UNAVAILABLE;
+		if (retryable && retryAfter <= DownloadRetryScheduler.MAX_RETRY_AFTER && request.getRetryTime() >= 0) {
+			/* update progress in case */
+			updateProgress(request, mBytesWritten, mTotalBytes);
+			finishMetrics(request, DownloadRequestMetrics.Outcome.RETRY, statusCode);
 
+			DownloadRetryScheduler scheduler = mManager.getRetryScheduler();
+			scheduler.schedule(request, scheduler.getDelay(request.nextRetryAttempt(), retryAfter));
 			return;
 		}
 
+		finishMetrics(request, DownloadRequestMetrics.Outcome.FAILURE, statusCode);
+
 		/* notify the request that downloading has finished */
 		request.finish();
 
 		/* deliver failure message */
 		mDelivery.postFailure(request, statusCode, errMsg);
+		updateBatch(request, false);
 	}
 
 	/* update download cancel */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private void updateCancel(DownloadRequest request) {
+		finishMetrics(request, DownloadRequestMetrics.Outcome.CANCEL, 0);
 
 		/* notify the request that downloading has finished */
 		request.finish();
@@ -241,125 +562,393 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 		if (file.exists()) {
 			file.delete();
 		}
+		DownloadJournal.delete(request);
 		/* deliver cancel message */
 		mDelivery.postCancel(request);
+		updateBatch(request, false);
 	}
 
 	/* update download success */
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private void updateStop(DownloadRequest request) {
+		/* preempted by a higher priority download or released by a long pause, wait in the host scheduler again and resume there */
+		if (request.clearPreemption()) {
+			DownloadRequestMetrics.Outcome outcome = mPauseReleased ? DownloadRequestMetrics.Outcome.PAUSE_RELEASE :
+													 DownloadRequestMetrics.Outcome.PREEMPT;
+			finishMetrics(request, outcome, 0);
+			updateState(request, DownloadRequest.DownloadState.PENDING);
+			DownloadPrioritizedRunnable resumed = new DownloadPrioritizedRunnable(request, mManager);
+			resumed.mResumed = true;
+			mManager.getHostScheduler().submit(resumed);
+			return;
+		}
+
+		finishMetrics(request, DownloadRequestMetrics.Outcome.STOP, 0);
 		/* notify the request that downloading has finished */
 		request.finish();
 		/* deliver stop message */
 		mDelivery.postStop(request);
+		updateBatch(request, false);
+	}
+
+	/* update the batch of request after the final message has been delivered, the last request delivers the batch complete message */
+	private void updateBatch(DownloadRequest request, boolean successful) {
+		DownloadBatch batch = request.getDownloadBatch();
+		if (batch != null && batch.finishRequest(request, successful)) {
+			mDelivery.postBatchComplete(batch);
+		}
 	}
 
 	/* read response header from server */
-	private long getContentLength(HttpURLConnection conn) {
+	private long getContentLength(DownloadConnection conn) {
 		String transferEncoding = conn.getHeaderField(TRANSFER_ENCODING);
 		if (transferEncoding == null || transferEncoding.equalsIgnoreCase("chunked")) {
-			return conn.getHeaderFieldInt(CONTENT_LENGTH, -1);
+			/* the file may be larger than 2GB */
+			String contentLength = conn.getHeaderField(CONTENT_LENGTH);
+			try {
+				return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
 		} else {
 			return -1;
 		}
 	}
 
-	/* transfer data from server to local file */
-	private void transferData(HttpURLConnection conn, DownloadRequest request) throws IOException {
-		long contentLength = getContentLength(conn);
-		if (contentLength == -1) {
-			return;
+	/*
+	 * Transfer data from server to local file. Every incomplete segment in journal is downloaded by its own connection in parallel, the
+	 * connection we already have is used for the first incomplete segment. Returns true if every segment has completed, otherwise the
+	 * final message or a retry has been posted.
+	 */
+	private boolean transferSegments(DownloadConnection conn, final DownloadRequest request, final DownloadJournal journal) {
+		final AtomicLong bytesWritten = beginTransfer(request, journal);
+		final DownloadSegment firstSegment = journal.getFirstIncompleteSegment();
+
+		/* the disk writes of write-behind are done in a writer thread of its own, fed by the segments */
+		final DownloadDiskWriter writer = request.isWriteBehind() ? createDiskWriter(request, journal, bytesWritten) : null;
+		Future<?> writerFuture = writer != null ? WRITER_EXECUTOR.submit(writer) : null;
+
+		/* the other incomplete segments are downloaded in the segment thread pool */
+		List<Future<?>> futures = new ArrayList<>();
+		for (final DownloadSegment segment : journal.getSegments()) {
+			if (segment == firstSegment || segment.isComplete()) {
+				continue;
+			}
+
+			futures.add(SEGMENT_EXECUTOR.submit(new Runnable() {
+				@Override
+				public void run() {
+					DownloadPlatform.get().setBackgroundThreadPriority();
+					downloadSegment(null, request, journal, segment, bytesWritten, writer);
+				}
+			}));
 		}
 
-		InputStream is = null;
-		File file = new File(request.getTmpDestinationPath());
-		RandomAccessFile raf = new RandomAccessFile(file, "rw");
-		long bytesWritten = file.length();
-		contentLength += bytesWritten;
-		/* if the file has existed, seek to breakpoint */
-		if (bytesWritten > 0) {
-			raf.seek(bytesWritten);
+		/* the first incomplete segment reuses the connection we already have */
+		if (firstSegment != null) {
+			downloadSegment(conn, request, journal, firstSegment, bytesWritten, writer);
+		}
+		/* give the connection and its permit back at once, the other segments may be waiting for a permit of the same host */
+		releaseConnection();
+
+		/* wait for all the segments finish, then for the writer to write what they have received */
+		boolean interrupted = waitFor(futures);
+		if (writer != null) {
+			writer.finish();
+			interrupted |= waitFor(Collections.<Future<?>>singletonList(writerFuture));
 		}
+		return finishTransfer(request, journal, bytesWritten, interrupted);
+	}
 
-		mTotalBytes = contentLength;
+	/* reset the failure of segments and deliver start, returns the counter of bytes written by all the segments */
+	private AtomicLong beginTransfer(DownloadRequest request, DownloadJournal journal) {
+		AtomicLong bytesWritten = new AtomicLong(journal.getBytesWritten());
+		mSegmentsAborted = false;
+		mSegmentStatusCode = 0;
+		mSegmentErrMsg = null;
+
+		mTotalBytes = journal.getTotalBytes();
+		mBytesWritten = bytesWritten.get();
 		/* deliver start callback */
-		updateStart(request, contentLength);
+		updateStart(request, mTotalBytes);
+		mMetrics.onTransferStart();
+		return bytesWritten;
+	}
 
+	/*
+	 * Commit the journal after every segment has finished. Returns true if every segment has completed, otherwise the final message or a
+	 * retry has been posted.
+	 */
+	private boolean finishTransfer(DownloadRequest request, DownloadJournal journal, AtomicLong bytesWritten, boolean interrupted) {
+		mMetrics.onTransferEnd();
+
+		mBytesWritten = bytesWritten.get();
+		if (request.isCanceled()) {
+			DownloadLog.i(TAG, "download has canceled, download id: " + request.getDownloadId());
+			journal.discard();
+			updateCancel(request);
+			return false;
+		}
+
+		/* record the last durable position of every segment, so that the download can resume from there */
 		try {
-			/* get input stream from connection */
+			journal.commit();
+		} catch (IOException e) {
+			DownloadLog.w(TAG, "cannot commit journal, download id: " + request.getDownloadId(), e);
+		}
+
+		if (interrupted || request.isStop() || (mSegmentsAborted && mSegmentStatusCode == 0)) {
+			DownloadLog.i(TAG, "download has stop, download id: " + request.getDownloadId());
+			updateStop(request);
+			return false;
+		}
+
+		if (mSegmentStatusCode != 0) {
+			updateFailure(request, mSegmentStatusCode, mSegmentErrMsg);
+			return false;
+		}
+		return true;
+	}
+
+	/* create the write-behind stage, it delivers the progress as the bytes reach the file */
+	private DownloadDiskWriter createDiskWriter(final DownloadRequest request,
+												final DownloadJournal journal,
+												final AtomicLong bytesWritten) {
+		return new DownloadDiskWriter(request, journal, mVerifier, mBufferPool, new DownloadDiskWriter.Listener() {
+			@Override
+			public void onBytesWritten(long length) {
+				updateProgress(request, bytesWritten.addAndGet(length), journal.getTotalBytes());
+			}
+
+			@Override
+			public void onDrained() {
+				mManager.wakeSelectorEngine();
+			}
+
+			@Override
+			public void onWriteFailed(IOException e) {
+				abortSegments(HTTP_INVALID, e.getMessage());
+			}
+		});
+	}
+
+	/* wait for the tasks finish, returns true if interrupted meanwhile */
+	private boolean waitFor(List<Future<?>> futures) {
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					mSegmentsAborted = true;
+				} catch (ExecutionException e) {
+					abortSegments(HTTP_INVALID, e.getMessage());
+					break;
+				}
+			}
+		}
+		return interrupted;
+	}
+
+	/*
+	 * Download one segment into the temp file, a new connection will be opened if conn is null. The bytes are written by this thread, or
+	 * queued to the writer if it is not null.
+	 */
+	private void downloadSegment(DownloadConnection conn,
+								 DownloadRequest request,
+								 DownloadJournal journal,
+								 DownloadSegment segment,
+								 AtomicLong bytesWritten,
+								 DownloadDiskWriter writer) {
+		boolean ownConnection = conn == null;
+		InputStream is = null;
+		RandomAccessFile raf = null;
+		ByteBuffer pooledBuffer = null;
+
+		try {
+			if (ownConnection) {
+				Map<String, String> headers = new HashMap<>();
+				headers.put(RANGE, segment.getRangeHeader());
+				if (journal.getValidator() != null) {
+					headers.put(IF_RANGE, journal.getValidator());
+				}
+
+				conn = openConnection(mUrl, headers);
+				int statusCode = conn.getResponseCode();
+				if (statusCode == HTTP_OK) {
+					/* the file has changed on server, the temp file cannot be trusted any more */
+					journal.discard();
+					abortSegments(HTTP_INVALID, "file has changed on server");
+					return;
+				} else if (statusCode != HTTP_PARTIAL) {
+					abortSegments(statusCode, conn.getResponseMessage());
+					return;
+				}
+			}
+
 			is = conn.getInputStream();
-			if (is != null) {
-				byte[] buffer = new byte[BUFFER_SIZE];
-				int length;
-
-				while (true) {
-					/** if the request has interrupted */
-					if (Thread.currentThread().isInterrupted()) {
-						Log.i(TAG, "thread interrupted, download id: " + request.getDownloadId());
-						updateStop(request);
-						return;
-					}
+			boolean useChannel = request.getTransferMode() == DownloadRequest.TransferMode.CHANNEL;
+			if (writer != null) {
+				receiveSegment(request, segment, is, useChannel, writer);
+				return;
+			}
 
-					/** if the request has cancel */
-					if (request.isCanceled()) {
-						Log.i(TAG, "download has canceled, download id: " + request.getDownloadId());
-						updateCancel(request);
-						return;
-					}
-					/** if the request has stop */
-					if (request.isStop()) {
-						Log.i(TAG, "download has stop, download id: " + request.getDownloadId());
-						updateStop(request);
-						return;
-					}
+			/* seek to the breakpoint of this segment */
+			raf = new RandomAccessFile(request.getTmpDestinationPath(), "rw");
+			raf.seek(segment.getPosition());
+
+			int bufferSize = request.getBufferSize() > 0 ? request.getBufferSize() : (useChannel ? CHANNEL_BUFFER_SIZE : BUFFER_SIZE);
+			/* borrow the buffer from the pool shared by all workers, direct buffer for channel, heap buffer for its array */
+			pooledBuffer = mBufferPool.acquire(bufferSize, useChannel);
+			byte[] buffer = useChannel ? null : pooledBuffer.array();
+			ByteBuffer directBuffer = useChannel ? pooledBuffer : null;
+			ReadableByteChannel source = useChannel ? Channels.newChannel(is) : null;
+			FileChannel fileChannel = useChannel ? raf.getChannel() : null;
+			DownloadVerifier verifier = mVerifier;
+			byte[] scratch = useChannel && verifier != null ? new byte[BUFFER_SIZE] : null;
+			while (!segment.isComplete()) {
+				/* if other segment has failed or the request has stop or cancel */
+				if (mSegmentsAborted || request.isCanceled() || request.isStop()) {
+					return;
+				}
 
-					/* if current is not wifi and mobile network is not allowed, stop */
-					if (request.getAllowedNetworkTypes() != 0 &&
-						!DownloadUtils.isWifi(request.getContext()) &&
-						(request.getAllowedNetworkTypes() & DownloadRequest.NETWORK_MOBILE) == 0) {
-						updateFailure(request, HTTP_ERROR_NETWORK, "network error");
-						return;
-					}
+				if (Thread.currentThread().isInterrupted()) {
+					mSegmentsAborted = true;
+					return;
+				}
 
-					/* read data into buffer from input stream */
-					length = readFromInputStream(buffer, is);
-					if (length == -1) {
-						long fileSize = new File(request.getTmpDestinationPath()).length();
-
-						/* deliver progress callback before deliver success */
-						updateProgress(request, fileSize, contentLength);
-
-						/* if file size equals total bytes, then download successfully */
-						if (fileSize == contentLength) {
-							updateSuccess(request);
-						} else {
-							updateFailure(request, HTTP_INVALID, "file size error");
-						}
-
-						return;
-					} else if (length == Integer.MIN_VALUE) {
-						updateFailure(request, HTTP_ERROR_SIZE, "transfer data error");
-						return;
-					}
+				/* parked while the transfers are paused */
+				if (!awaitTransfer(request)) {
+					return;
+				}
 
-					bytesWritten += length;
-					/* write buffer into local file */
-					raf.write(buffer, 0, length);
+				/* if current is not wifi and mobile network is not allowed, stop */
+				if (!DownloadUtils.isNetworkAllowed(request.getAllowedNetworkTypes())) {
+					abortSegments(HTTP_ERROR_NETWORK, "network error");
+					return;
+				}
+
+				/* never read beyond the end of this segment */
+				int limit = (int) Math.min(bufferSize, segment.getRemaining());
+				int length = useChannel ? readFromChannel(directBuffer, limit, source, is) : readFromInputStream(buffer, limit, is);
+				if (length == -1) {
+					abortSegments(HTTP_INVALID, "file size error");
+					return;
+				} else if (length == Integer.MIN_VALUE) {
+					abortSegments(HTTP_ERROR_SIZE, "transfer data error");
+					return;
+				}
 
-					/* deliver progress callback */
-					updateProgress(request, bytesWritten, contentLength);
+				/* checksum the bytes as received, before they are written */
+				int crc = 0;
+				if (verifier != null) {
+					crc = useChannel ? verifier.update(segment, directBuffer, scratch) : verifier.update(segment, buffer, length);
 				}
+
+				if (useChannel) {
+					writeToChannel(directBuffer, segment.getPosition(), fileChannel);
+				} else {
+					raf.write(buffer, 0, length);
+				}
+				if (verifier != null) {
+					segment.advance(length, crc);
+				} else {
+					segment.advance(length);
+				}
+				journal.onBytesWritten(length);
+
+				/* deliver the combined progress of all segments */
+				updateProgress(request, bytesWritten.addAndGet(length), journal.getTotalBytes());
+				onBytesTransferred(length);
+
+				throttle(request, length);
 			}
+		} catch (IOException e) {
+			abortSegments(HTTP_INVALID, e.getMessage());
 		} finally {
-			raf.close();
+			mBufferPool.release(pooledBuffer);
+			silentCloseFile(raf);
 			silentCloseInputStream(is);
+			if (ownConnection && conn != null) {
+				conn.release();
+			}
+		}
+	}
+
+	/*
+	 * Read one segment from the network and queue every filled buffer to the writer, which owns the buffer from then on. The position of
+	 * segment is moved by the writer, so the bytes read are counted here. A buffer is filled as far as the bytes already arrived allow,
+	 * the writer gets fewer and larger writes.
+	 */
+	private void receiveSegment(DownloadRequest request,
+								DownloadSegment segment,
+								InputStream is,
+								boolean useChannel,
+								DownloadDiskWriter writer) {
+		int bufferSize = request.getBufferSize() > 0 ? request.getBufferSize() : CHANNEL_BUFFER_SIZE;
+		ReadableByteChannel source = Channels.newChannel(is);
+		long position = segment.getPosition();
+		while (position <= segment.getEnd()) {
+			/* if other segment has failed or the request has stop or cancel */
+			if (mSegmentsAborted || request.isCanceled() || request.isStop()) {
+				return;
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+				mSegmentsAborted = true;
+				return;
+			}
+
+			/* parked while the transfers are paused */
+			if (!awaitTransfer(request)) {
+				return;
+			}
+
+			/* if current is not wifi and mobile network is not allowed, stop */
+			if (!DownloadUtils.isNetworkAllowed(request.getAllowedNetworkTypes())) {
+				abortSegments(HTTP_ERROR_NETWORK, "network error");
+				return;
+			}
+
+			/* never read beyond the end of this segment */
+			int limit = (int) Math.min(bufferSize, segment.getEnd() - position + 1);
+			ByteBuffer buffer = mBufferPool.acquire(bufferSize, useChannel);
+			int length = readFromChannel(buffer, limit, source, is);
+			if (length == -1 || length == Integer.MIN_VALUE) {
+				mBufferPool.release(buffer);
+				abortSegments(length == -1 ? HTTP_INVALID : HTTP_ERROR_SIZE, length == -1 ? "file size error" : "transfer data error");
+				return;
+			}
+
+			try {
+				writer.write(segment, position, buffer);
+			} catch (InterruptedException e) {
+				mSegmentsAborted = true;
+				Thread.currentThread().interrupt();
+				return;
+			}
+			position += length;
+
+			onBytesTransferred(length);
+			throttle(request, length);
 		}
 	}
 
+	/* record the failure of the first failed segment and tell the others to quit */
+	private synchronized void abortSegments(int statusCode, String errMsg) {
+		if (mSegmentStatusCode == 0) {
+			mSegmentStatusCode = statusCode;
+			mSegmentErrMsg = errMsg;
+		}
+		mSegmentsAborted = true;
+	}
+
 	/* read data from input stream */
-	private int readFromInputStream(byte[] buffer, InputStream is) {
+	private int readFromInputStream(byte[] buffer, int length, InputStream is) {
 		try {
-			return is.read(buffer);
+			return is.read(buffer, 0, length);
 		} catch (IOException e) {
 			if (END_OF_STREAM.equals(e.getMessage())) {
 				return -1;
@@ -369,6 +958,33 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 		}
 	}
 
+	/* fill the buffer from channel until it is full or no more data available now, then local file gets fewer and larger writes */
+	private int readFromChannel(ByteBuffer buffer, int length, ReadableByteChannel source, InputStream is) {
+		buffer.clear();
+		buffer.limit(length);
+		try {
+			do {
+				if (source.read(buffer) == -1) {
+					break;
+				}
+			} while (buffer.hasRemaining() && is.available() > 0);
+		} catch (IOException e) {
+			if (!END_OF_STREAM.equals(e.getMessage())) {
+				return Integer.MIN_VALUE;
+			}
+		}
+
+		buffer.flip();
+		return buffer.hasRemaining() ? buffer.remaining() : -1;
+	}
+
+	/* write the whole buffer into file channel at position */
+	private static void writeToChannel(ByteBuffer buffer, long position, FileChannel channel) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
 	/* a utility function to close an input stream without raising an exception */
 	private static void silentCloseInputStream(InputStream is) {
 		try {
@@ -376,75 +992,363 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 				is.close();
 			}
 		} catch (IOException e) {
-			Log.w(TAG, "cannot close input stream", e);
+			DownloadLog.w(TAG, "cannot close input stream", e);
 		}
 	}
 
-	private void executeDownload(DownloadRequest request) {
-		if (Thread.currentThread().isInterrupted()) {
-			return;
+	/* a utility function to close a file without raising an exception */
+	private static void silentCloseFile(RandomAccessFile raf) {
+		try {
+			if (raf != null) {
+				raf.close();
+			}
+		} catch (IOException e) {
+			DownloadLog.w(TAG, "cannot close file", e);
 		}
+	}
 
-		//TODO: handle https url
-		/* use http url connection to download file */
-		HttpURLConnection conn = null;
+	/* read total bytes of the file from content range header, such as "bytes 0-1023/4096" */
+	private long getTotalBytesFromContentRange(DownloadConnection conn) {
+		String contentRange = conn.getHeaderField(CONTENT_RANGE);
+		if (contentRange == null) {
+			return -1;
+		}
+
+		int index = contentRange.lastIndexOf('/');
+		if (index < 0) {
+			return -1;
+		}
 
 		try {
-			URL url = new URL(request.getUrl());
-			conn = (HttpURLConnection) url.openConnection();
+			return Long.parseLong(contentRange.substring(index + 1).trim());
+		} catch (NumberFormatException e) {
+			/* the total bytes is unknown("*") */
+			return -1;
+		}
+	}
 
-			/* config http url connection */
-			conn.setInstanceFollowRedirects(false);
-			conn.setUseCaches(false);
-			conn.setRequestProperty(ACCEPT_ENCODING, "identity");
-			conn.setConnectTimeout(DEFAUL_TIME_OUT);
-			conn.setReadTimeout(DEFAUL_TIME_OUT);
+	/* drive the steps of download in a loop, redirects and fallbacks go back to an earlier step instead of recursing */
+	private void executeDownload(DownloadRequest request, Step step) {
+		try {
+			while (step != Step.DONE && step != Step.SUSPEND) {
+				if (Thread.currentThread().isInterrupted()) {
+					updateStop(request);
+					return;
+				}
 
-			/* if the file existed, restart from breakpoint */
+				switch (step) {
+					case RESOLVE:
+						step = resolve(request);
+						break;
+					case CONNECT:
+						step = connect(request);
+						break;
+					case TRANSFER:
+						step = transfer(request);
+						break;
+					case VERIFY:
+						step = verify(request);
+						break;
+					case COMMIT:
+						step = commit(request);
+						break;
+					default:
+						step = Step.DONE;
+						break;
+				}
+			}
+		} catch (IOException e) {
+			updateFailure(request, HTTP_INVALID, e.getMessage());
+		} finally {
+			/* the connection is kept for reuse if its body has been read completely */
+			releaseConnection();
+		}
+	}
+
+	/* load the journal and find the url to connect */
+	private Step resolve(DownloadRequest request) {
+		mJournal = DownloadJournal.load(request);
+		if (mJournal != null) {
+			/* the filename given by the server, a completed journal is committed without connecting again */
+			request.restoreDestFilePath(mJournal.getDestFilePath());
+		}
+		String target = mManager.getRedirectCache().get(request.getUrl());
+		mCachedUrl = target != null;
+		mUrl = mCachedUrl ? target : request.getUrl();
+		mPermanentRedirects = true;
+
+		/* if the journal says every segment has completed, the process was killed before renaming the temp file */
+		return mJournal != null && mJournal.getFirstIncompleteSegment() == null ? Step.TRANSFER : Step.CONNECT;
+	}
+
+	/* open the connection and decide the next step by the response */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	private Step connect(DownloadRequest request) throws IOException {
+		/* if the journal is valid, restart from the breakpoint of the first incomplete segment */
+		Map<String, String> headers = new HashMap<>();
+		if (mJournal != null) {
+			/* set the range to continue the downloading, the server sends the whole file if it has changed */
+			headers.put(RANGE, mJournal.getFirstIncompleteSegment().getRangeHeader());
+			if (mJournal.getValidator() != null) {
+				headers.put(IF_RANGE, mJournal.getValidator());
+			}
+		} else {
+			/* without a journal we cannot know which bytes of temp file are durable, so start over */
+			DownloadJournal.delete(request);
 			File file = new File(request.getTmpDestinationPath());
 			if (file.exists()) {
-				long breakpoint = file.length();
-				/* set the range to continue the downloading */
-				conn.setRequestProperty("Range", "bytes=" + breakpoint + "-");
+				file.delete();
 			}
 
-			/* status code */
-			int statusCode = conn.getResponseCode();
-			switch (statusCode) {
-				case HTTP_OK:
-				case HTTP_PARTIAL:
-					transferData(conn, request);
-					break;
+			/* ask for the whole file as a range, a partial content response tells us the server supports range requests */
+			if (getSegmentCount(request) > 1) {
+				headers.put(RANGE, "bytes=0-");
+			}
+		}
+
+		int statusCode;
+		try {
+			mConnection = openConnection(mUrl, headers);
+			statusCode = mConnection.getResponseCode();
+		} catch (IOException e) {
+			if (mCachedUrl) {
+				return forgetRedirect(request);
+			}
+			throw e;
+		}
+
+		switch (statusCode) {
+			case HTTP_PARTIAL:
+			case HTTP_OK:
+				/* the real filename comes with the response itself, no extra request is needed */
+				request.resolveDestFilePath(mConnection.getHeaderField(CONTENT_DISPOSITION), mUrl);
+				if (mRedirectionCount > 0) {
+					mManager.getRedirectCache().put(request.getUrl(), mUrl, mPermanentRedirects);
+				}
+				break;
+
+			case HTTP_MOVED_PERM:
+			case HTTP_MOVED_TEMP:
+			case HTTP_SEE_OTHER:
+			case HTTP_TEMP_REDIRECT:
+			case HTTP_PERM_REDIRECT:
+				String location = mConnection.getHeaderField(LOCATION);
+				releaseConnection();
+				if (location == null || mRedirectionCount++ >= MAX_REDIRECTION) {
+					/* redirect to many times */
+					updateFailure(request, statusCode, "redirect too many times");
+					return Step.DONE;
+				}
 
-				case HTTP_MOVED_PERM:
-				case HTTP_MOVED_TEMP:
-				case HTTP_TEMP_REDIRECT:
-				case HTTP_SEE_OTHER:
-					if (mRedirectionCount++ < MAX_REDIRECTION) {
-						Log.i(TAG, "redirect for download id: " + request.getDownloadId());
-						/* take redirect url and call executeDownload recursively */
-						String redirectUrl = conn.getHeaderField(LOCATION);
-						request.setUrl(redirectUrl);
-						executeDownload(request);
-					} else {
-						/* redirect to many times */
-						updateFailure(request, statusCode, "redirect too many times");
+				DownloadLog.i(TAG, "redirect for download id: " + request.getDownloadId());
+				mManager.getMetrics().onRedirect(mMetrics);
+				mPermanentRedirects &= statusCode == HTTP_MOVED_PERM || statusCode == HTTP_PERM_REDIRECT;
+				mUrl = DownloadUtils.resolveUrl(mUrl, location);
+				return Step.CONNECT;
+
+			default:
+				if (mCachedUrl) {
+					return forgetRedirect(request);
+				}
+				break;
+		}
+
+		switch (statusCode) {
+			case HTTP_PARTIAL:
+				long totalBytes = getTotalBytesFromContentRange(mConnection);
+				if (mJournal != null) {
+					if (totalBytes != -1 && totalBytes != mJournal.getTotalBytes()) {
+						/* the file has changed on server, start over when retrying */
+						mJournal.discard();
+						updateFailure(request, HTTP_INVALID, "file has changed on server");
+						return Step.DONE;
 					}
-					break;
+				} else if (getSegmentCount(request) > 1 && totalBytes > 0) {
+					if (!checkFreeSpace(request, totalBytes)) {
+						return Step.DONE;
+					}
+					mJournal = DownloadJournal.create(request, totalBytes, mConnection.getHeaderField(ETAG),
+													  mConnection.getHeaderField(LAST_MODIFIED),
+													  DownloadSegment.split(totalBytes, getSegmentCount(request)));
+				}
+				return Step.TRANSFER;
+
+			case HTTP_OK:
+				/* the server does not support range requests or the file has changed, download the whole file in single stream */
+				if (mJournal != null) {
+					mJournal.discard();
+					mJournal = null;
+					new File(request.getTmpDestinationPath()).delete();
+				}
+				return Step.TRANSFER;
+
+			case HTTP_TOO_MANY_REQUESTS:
+			case HTTP_UNAVAILABLE:
+				long retryAfter = DownloadUtils.parseRetryAfter(mConnection.getHeaderField(RETRY_AFTER));
+				updateFailure(request, statusCode, mConnection.getResponseMessage(), retryAfter);
+				return Step.DONE;
+
+			case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+			case HTTP_INTERNAL_ERROR:
+			default:
+				updateFailure(request, statusCode, mConnection.getResponseMessage());
+				return Step.DONE;
+		}
+	}
 
-				case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
-				case HTTP_UNAVAILABLE:
-				case HTTP_INTERNAL_ERROR:
-				default:
-					updateFailure(request, statusCode, conn.getResponseMessage());
-					break;
+	/* the cached redirect target does not work any more, connect to the original url */
+	private Step forgetRedirect(DownloadRequest request) {
+		DownloadLog.i(TAG, "forget redirect target for download id: " + request.getDownloadId());
+		releaseConnection();
+		mManager.getRedirectCache().remove(request.getUrl());
+		mCachedUrl = false;
+		mUrl = request.getUrl();
+		return Step.CONNECT;
+	}
+
+	/* download the incomplete segments, in a single stream from the beginning if there is no journal */
+	private Step transfer(DownloadRequest request) throws IOException {
+		if (mJournal == null) {
+			long contentLength = getContentLength(mConnection);
+			if (contentLength == -1) {
+				updateFailure(request, HTTP_INVALID, "content length unknown");
+				return Step.DONE;
 			}
-		} catch (IOException e) {
-			updateFailure(request, HTTP_INVALID, e.getMessage());
-		} finally {
-			if (conn != null) {
-				conn.disconnect();
+			if (!checkFreeSpace(request, contentLength)) {
+				return Step.DONE;
+			}
+
+			List<DownloadSegment> segments = new ArrayList<>(1);
+			segments.add(new DownloadSegment(0, contentLength - 1));
+			mJournal = DownloadJournal.create(request, contentLength, mConnection.getHeaderField(ETAG),
+											  mConnection.getHeaderField(LAST_MODIFIED), segments);
+		} else if (!checkFreeSpace(request, mJournal.getTotalBytes())) {
+			return Step.DONE;
+		}
+
+		mVerifier = DownloadVerifier.create(request, mJournal, mBufferPool);
+		if (mConnection instanceof DownloadSelectorConnection) {
+			return transferOnSelector(request, mJournal);
+		}
+
+		boolean completed = transferSegments(mConnection, request, mJournal);
+		releaseConnection();
+		return completed ? Step.VERIFY : Step.DONE;
+	}
+
+	/*
+	 * Hand every incomplete segment to a receiver in the selector engine, the connection we already have is used for the first one. The
+	 * other connections are opened without waiting for their response, the receivers check it.
+	 */
+	private Step transferOnSelector(DownloadRequest request, DownloadJournal journal) {
+		AtomicLong bytesWritten = beginTransfer(request, journal);
+		List<DownloadSegment> segments = new ArrayList<>();
+		for (DownloadSegment segment : journal.getSegments()) {
+			if (!segment.isComplete()) {
+				segments.add(segment);
+			}
+		}
+
+		/* the I/O threads must not block, the bytes are written to disk by a writer thread */
+		DownloadDiskWriter writer = createDiskWriter(request, journal, bytesWritten);
+		mSelectorTransfer = new SelectorTransfer(bytesWritten, writer, WRITER_EXECUTOR.submit(writer), segments.size());
+		DownloadSelectorConnection first = (DownloadSelectorConnection) mConnection;
+		/* the first receiver owns the connection from now on, without any segment left nobody does */
+		mConnection = null;
+		if (segments.isEmpty()) {
+			first.release();
+		}
+		for (DownloadSegment segment : segments) {
+			boolean isFirst = segment == segments.get(0);
+			SegmentReceiver receiver = new SegmentReceiver(mSelectorTransfer, segment, isFirst);
+			if (isFirst) {
+				first.receive(receiver);
+				continue;
+			}
+
+			Map<String, String> headers = new HashMap<>();
+			headers.put(RANGE, segment.getRangeHeader());
+			if (journal.getValidator() != null) {
+				headers.put(IF_RANGE, journal.getValidator());
+			}
+			try {
+				mManager.getSelectorEngine().open(mUrl, headers).receive(receiver);
+			} catch (IOException e) {
+				receiver.onFailure(e);
+			}
+		}
+		return Step.SUSPEND;
+	}
+
+	/*
+	 * The segments of a new download are capped by the connections its host can give: the ones left once every other download the host
+	 * scheduler may run on the same host has one.
+	 */
+	private int getSegmentCount(DownloadRequest request) {
+		DownloadTransport transport = mTransport;
+		if (!(transport instanceof UrlConnectionTransport)) {
+			return request.getSegmentCount();
+		}
+
+		int connections = ((UrlConnectionTransport) transport).getMaxConnectionsPerHost();
+		int share = connections - (mManager.getHostScheduler().getMaxRequestsPerHost() - 1);
+		return Math.max(1, Math.min(request.getSegmentCount(), share));
+	}
+
+	/* fail before transferring if the disk cannot hold the rest of file, the temp file grows to the total bytes */
+	private boolean checkFreeSpace(DownloadRequest request, long totalBytes) {
+		File file = new File(request.getTmpDestinationPath());
+		long neededBytes = totalBytes - (file.exists() ? file.length() : 0);
+		long usableBytes = DownloadUtils.getUsableSpace(file);
+		if (neededBytes > 0 && usableBytes >= 0 && usableBytes < neededBytes) {
+			updateFailure(request, HTTP_ERROR_SPACE, "not enough space, need " + neededBytes + " bytes, usable " + usableBytes + " bytes");
+			return false;
+		}
+		return true;
+	}
+
+	/* make sure all the bytes of every segment have written and match the expected digest */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	private Step verify(DownloadRequest request) throws IOException {
+		/* deliver progress callback before deliver success */
+		updateProgress(request, mBytesWritten, mTotalBytes);
+
+		if (mBytesWritten != mTotalBytes) {
+			updateFailure(request, HTTP_INVALID, "file size error");
+			return Step.DONE;
+		}
+
+		if (mVerifier != null && !mVerifier.verify()) {
+			List<DownloadSegment> corrupt = mVerifier.findCorruptSegments();
+			if (corrupt.isEmpty()) {
+				/* the file was received intact but is not the one expected, start over when retrying */
+				mJournal.discard();
+				new File(request.getTmpDestinationPath()).delete();
+			} else {
+				/* only the segments corrupted on the way to disk are downloaded again when retrying */
+				for (DownloadSegment segment : corrupt) {
+					DownloadLog.i(TAG, "segment corrupt: " + segment.getRangeHeader() + ", download id: " + request.getDownloadId());
+					segment.reset();
+				}
+				mJournal.commit();
 			}
+			updateFailure(request, HTTP_ERROR_DIGEST, "digest mismatch");
+			return Step.DONE;
+		}
+		return Step.COMMIT;
+	}
+
+	/* rename the temp file to the destination and deliver success */
+	private Step commit(DownloadRequest request) {
+		mJournal.discard();
+		updateSuccess(request);
+		return Step.DONE;
+	}
+
+	private void releaseConnection() {
+		if (mConnection != null) {
+			mConnection.release();
+			mConnection = null;
 		}
 	}
 
@@ -455,9 +1359,163 @@ public class DownloadPrioritizedRunnable implements Runnable, Comparable<Downloa
 
 		/*
 		 * High-priority requests are "lesser" so they are sorted to the front.
-		 * Equal priorities are sorted by timestamp to provide FIFO ordering.
+		 * Equal priorities are sorted by sequence number to provide FIFO ordering, a retried or preempted download queues behind the ones
+		 * already waiting.
+		 */
+		return left == right ? DownloadRequest.compareSequence(this.mSequence, another.mSequence) : right.ordinal() - left.ordinal();
+	}
+
+	/**
+	 * Transfer of an attempt in the selector engine. The worker counts as one more segment until it has left the attempt, the last one
+	 * finished goes on with the steps in the segment thread pool.
+	 */
+	private class SelectorTransfer {
+
+		private final AtomicLong         mBytesWritten;
+		private final DownloadDiskWriter mWriter;
+		private final Future<?>          mWriterFuture;
+		private final AtomicInteger      mPending;
+
+		SelectorTransfer(AtomicLong bytesWritten, DownloadDiskWriter writer, Future<?> writerFuture, int segmentCount) {
+			mBytesWritten = bytesWritten;
+			mWriter = writer;
+			mWriterFuture = writerFuture;
+			mPending = new AtomicInteger(segmentCount + 1);
+		}
+
+		/* a segment or the worker has finished */
+		void onSegmentFinished() {
+			if (mPending.decrementAndGet() != 0) {
+				return;
+			}
+
+			SEGMENT_EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					DownloadPlatform.get().setBackgroundThreadPriority();
+					try {
+						/* wait for the writer to write what the segments have received */
+						mWriter.finish();
+						boolean interrupted = waitFor(Collections.<Future<?>>singletonList(mWriterFuture));
+						boolean completed = finishTransfer(mRequest, mJournal, mBytesWritten, interrupted);
+						executeDownload(mRequest, completed ? Step.VERIFY : Step.DONE);
+					} finally {
+						mManager.getHostScheduler().finish(DownloadPrioritizedRunnable.this);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Receiver of one segment in the I/O thread of its connection, it never blocks: the bytes are copied to a pooled buffer and posted to
+	 * the writer of transfer as they arrive. The connection pauses reading while the rate limiters say so, and parks while the queue of
+	 * writer is full, so a slow disk only holds back its own download instead of every connection of the I/O thread.
+	 */
+	private class SegmentReceiver implements DownloadSelectorConnection.BodyHandler {
+
+		private final SelectorTransfer mTransfer;
+		private final DownloadSegment  mSegment;
+
+		/**
+		 * Position of the next byte received, the position of segment is moved by the writer.
+		 */
+		private long mPosition;
+
+		/**
+		 * The response of the first connection has been checked when connecting.
 		 */
-		return left == right ? (int) (this.mRequest.getDownloadRequestAddTimestamp() - another.mRequest.getDownloadRequestAddTimestamp()) :
-			   right.ordinal() - left.ordinal();
+		private final boolean mChecked;
+
+		SegmentReceiver(SelectorTransfer transfer, DownloadSegment segment, boolean checked) {
+			mTransfer = transfer;
+			mSegment = segment;
+			mChecked = checked;
+			mPosition = segment.getPosition();
+		}
+
+		@Override
+		public boolean onResponse(DownloadSelectorConnection connection) {
+			if (mChecked) {
+				return true;
+			}
+
+			mManager.getConcurrencyController().onResponse(connection.getFirstByteNanos());
+			mManager.getMetrics().onConnection(mMetrics, connection.getConnectNanos(), connection.getFirstByteNanos());
+			try {
+				int statusCode = connection.getResponseCode();
+				if (statusCode == HTTP_OK) {
+					/* the file has changed on server, the temp file cannot be trusted any more */
+					mJournal.discard();
+					abortSegments(HTTP_INVALID, "file has changed on server");
+					return false;
+				} else if (statusCode != HTTP_PARTIAL) {
+					abortSegments(statusCode, connection.getResponseMessage());
+					return false;
+				}
+			} catch (IOException e) {
+				abortSegments(HTTP_INVALID, e.getMessage());
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public long getRemaining() {
+			return mSegment.getEnd() - mPosition + 1;
+		}
+
+		@Override
+		public long onBody(ByteBuffer buffer) {
+			DownloadRequest request = mRequest;
+			int length = buffer.remaining();
+			/* the buffer of connection is read again at once, the writer gets a copy which it checksums, writes and releases */
+			ByteBuffer chunk = mBufferPool.acquire(Math.max(length, CHANNEL_BUFFER_SIZE), true);
+			chunk.put(buffer);
+			chunk.flip();
+			mTransfer.mWriter.post(mSegment, mPosition, chunk);
+			mPosition += length;
+			onBytesTransferred(length);
+
+			if (isAborted()) {
+				return -1;
+			}
+			/* if current is not wifi and mobile network is not allowed, stop */
+			if (!DownloadUtils.isNetworkAllowed(request.getAllowedNetworkTypes())) {
+				abortSegments(HTTP_ERROR_NETWORK, "network error");
+				return -1;
+			}
+			long waitNanos = reserve(request, length);
+			/* a full writer parks the connection at once, it reads again in the first tick after the writer has caught up */
+			return mTransfer.mWriter.isFull() ? Math.max(waitNanos, 1) : waitNanos;
+		}
+
+		/* if other segment has failed or the request has stop or cancel */
+		@Override
+		public boolean isAborted() {
+			DownloadTransferGate gate = mManager.getTransferGate();
+			if (gate.isPaused() && gate.isExpired()) {
+				release(mRequest);
+			}
+			return mSegmentsAborted || mRequest.isCanceled() || mRequest.isStop();
+		}
+
+		@Override
+		public boolean isPaused() {
+			return mManager.getTransferGate().isPaused() || mTransfer.mWriter.isFull();
+		}
+
+		@Override
+		public void onComplete() {
+			mTransfer.onSegmentFinished();
+		}
+
+		@Override
+		public void onFailure(IOException e) {
+			if (!isAborted()) {
+				abortSegments(HTTP_INVALID, e.getMessage());
+			}
+			mTransfer.onSegmentFinished();
+		}
 	}
 }
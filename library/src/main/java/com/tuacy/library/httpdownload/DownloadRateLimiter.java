@@ -0,0 +1,123 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download rate limiter: a token bucket which caps the bytes per second of downloads sharing it. Bytes are reserved in the order callers
+ * arrive, every caller waits for the bytes reserved before it, so the downloads sharing a limiter get the same share chunk by chunk. Idle
+ * time is saved as a small burst of at most {@link #MAX_BURST_MILLIS} of bytes. The rate can be changed at any time, a reservation made
+ * before the change is still honored, so the new rate takes effect from the next chunk.
+ */
+public class DownloadRateLimiter {
+
+	/**
+	 * No limit.
+	 */
+	public static final long UNLIMITED = 0;
+
+	/**
+	 * Max time of bytes saved when the limiter is idle.
+	 */
+	private static final long MAX_BURST_MILLIS = 250;
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private volatile long mBytesPerSecond;
+
+	/**
+	 * Bytes saved while idle, guarded by this.
+	 */
+	private long mStoredBytes = 0;
+
+	/**
+	 * Time when the next reservation can be granted without waiting, guarded by this.
+	 */
+	private long mNextFreeNanos = System.nanoTime();
+
+	public DownloadRateLimiter() {
+		this(UNLIMITED);
+	}
+
+	/**
+	 * @param bytesPerSecond max bytes per second, {@link #UNLIMITED} for no limit
+	 */
+	public DownloadRateLimiter(long bytesPerSecond) {
+		setBytesPerSecond(bytesPerSecond);
+	}
+
+	/**
+	 * Set the max bytes per second, the downloads sharing this limiter are not restarted.
+	 *
+	 * @param bytesPerSecond max bytes per second, {@link #UNLIMITED} for no limit
+	 */
+	public synchronized void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("bytes per second cannot be negative");
+		}
+
+		long now = System.nanoTime();
+		if (mBytesPerSecond > 0) {
+			resync(now, mBytesPerSecond);
+		}
+		if (bytesPerSecond == UNLIMITED) {
+			/* start from an empty bucket when limited again */
+			mStoredBytes = 0;
+			mNextFreeNanos = now;
+		} else {
+			mStoredBytes = Math.min(mStoredBytes, maxStoredBytes(bytesPerSecond));
+		}
+		mBytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Get the max bytes per second.
+	 *
+	 * @return max bytes per second, {@link #UNLIMITED} if no limit
+	 */
+	public long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * Reserve bytes which have been or will be transferred.
+	 *
+	 * @param bytes count of bytes
+	 * @return the time in nanosecond the caller should wait before transferring more
+	 */
+	long reserve(int bytes) {
+		/* checked out of lock, most limiters are unlimited */
+		if (mBytesPerSecond == UNLIMITED) {
+			return 0;
+		}
+
+		synchronized (this) {
+			long bytesPerSecond = mBytesPerSecond;
+			if (bytesPerSecond == UNLIMITED) {
+				return 0;
+			}
+
+			long now = System.nanoTime();
+			resync(now, bytesPerSecond);
+			long waitNanos = Math.max(0, mNextFreeNanos - now);
+
+			/* bytes saved are free, the others push the next free time for the callers after this one */
+			long fromStored = Math.min(bytes, mStoredBytes);
+			mStoredBytes -= fromStored;
+			mNextFreeNanos += (bytes - fromStored) * NANOS_PER_SECOND / bytesPerSecond;
+			return waitNanos;
+		}
+	}
+
+	/* save the bytes of idle time, guarded by this */
+	private void resync(long now, long bytesPerSecond) {
+		if (now > mNextFreeNanos) {
+			long idleNanos = Math.min(now - mNextFreeNanos, TimeUnit.MILLISECONDS.toNanos(MAX_BURST_MILLIS));
+			mStoredBytes = Math.min(maxStoredBytes(bytesPerSecond), mStoredBytes + idleNanos * bytesPerSecond / NANOS_PER_SECOND);
+			mNextFreeNanos = now;
+		}
+	}
+
+	private static long maxStoredBytes(long bytesPerSecond) {
+		return bytesPerSecond * MAX_BURST_MILLIS / 1000;
+	}
+}
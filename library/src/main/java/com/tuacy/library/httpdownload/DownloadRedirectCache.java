@@ -0,0 +1,110 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Download redirect cache: remembers where the url of a download was redirected to, so the next download of the same url connects to the
+ * target directly and skips the redirect hops. A chain of permanent redirects is kept until evicted, a chain with any temporary redirect
+ * expires after {@link #TEMPORARY_REDIRECT_TTL}. The least recently used entry is evicted when the cache is full.
+ */
+public class DownloadRedirectCache {
+
+	/**
+	 * Default max count of entries.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+
+	/**
+	 * Time in millisecond a target reached through a temporary redirect is kept.
+	 */
+	public static final long TEMPORARY_REDIRECT_TTL = 5 * 60 * 1000;
+
+	private final int mMaxEntries;
+
+	/**
+	 * Targets indexed by normalized url, in access order, guarded by this.
+	 */
+	private final LinkedHashMap<String, Target> mEntries;
+
+	DownloadRedirectCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	DownloadRedirectCache(int maxEntries) {
+		mMaxEntries = maxEntries;
+		mEntries = new LinkedHashMap<String, Target>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Target> eldest) {
+				return size() > mMaxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the target the url was redirected to.
+	 *
+	 * @param url url of download
+	 * @return target url, null if not cached or expired
+	 */
+	synchronized String get(String url) {
+		String key = DownloadUtils.normalizeUrl(url);
+		Target target = mEntries.get(key);
+		if (target == null) {
+			return null;
+		}
+
+		if (target.mExpireTime > 0 && target.mExpireTime < System.currentTimeMillis()) {
+			mEntries.remove(key);
+			return null;
+		}
+		return target.mUrl;
+	}
+
+	/**
+	 * Remember the final target of the redirects of url.
+	 *
+	 * @param url       url of download
+	 * @param target    final target url
+	 * @param permanent true if every redirect of the chain is permanent
+	 */
+	synchronized void put(String url, String target, boolean permanent) {
+		long expireTime = permanent ? 0 : System.currentTimeMillis() + TEMPORARY_REDIRECT_TTL;
+		mEntries.put(DownloadUtils.normalizeUrl(url), new Target(target, expireTime));
+	}
+
+	/**
+	 * Forget the target of url, invoked when the target does not work any more.
+	 *
+	 * @param url url of download
+	 */
+	synchronized void remove(String url) {
+		mEntries.remove(DownloadUtils.normalizeUrl(url));
+	}
+
+	/**
+	 * Forget all the targets.
+	 */
+	public synchronized void clear() {
+		mEntries.clear();
+	}
+
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	private static class Target {
+
+		private final String mUrl;
+
+		/**
+		 * Time in millisecond the entry expires, 0 if never.
+		 */
+		private final long mExpireTime;
+
+		Target(String url, long expireTime) {
+			mUrl = url;
+			mExpireTime = expireTime;
+		}
+	}
+}
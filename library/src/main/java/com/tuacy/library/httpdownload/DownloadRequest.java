@@ -1,11 +1,9 @@
 package com.tuacy.library.httpdownload;
 
 import android.content.Context;
-import android.os.Environment;
-import android.text.TextUtils;
-import android.util.Log;
 
 import java.io.File;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -15,12 +13,6 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 
 	private static final String TAG = DownloadRequest.class.getSimpleName();
 
-	/**
-	 * default download directory
-	 */
-	private static final String DEFAULT_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
-														 .getAbsolutePath();
-
 	/**
 	 * Bit flag for stop.
 	 */
@@ -32,12 +24,17 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	public static final int CANCEL = 1 << 1;
 
 	/**
-	 * Bit flag for {@link #setAllowedNetworkTypes} corresponding to {@link android.net.ConnectivityManager#TYPE_MOBILE}.
+	 * Bit flag for preemption, the download stops at its breakpoint like stop and is queued again.
+	 */
+	private static final int PREEMPT = 1 << 2;
+
+	/**
+	 * Bit flag for {@link #setAllowedNetworkTypes} corresponding to mobile network.
 	 */
 	public static final int NETWORK_MOBILE = 1;
 
 	/**
-	 * Bit flag for {@link #setAllowedNetworkTypes} corresponding to {@link android.net.ConnectivityManager#TYPE_WIFI}.
+	 * Bit flag for {@link #setAllowedNetworkTypes} corresponding to wifi network.
 	 */
 	public static final int NETWORK_WIFI = 1 << 1;
 
@@ -52,19 +49,19 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	private AtomicInteger mRetryTime = new AtomicInteger(1);
 
 	/**
-	 * Allowed network types, default to all network types allowed.
+	 * Retries made since the request was added, used to compute the backoff.
 	 */
-	private int mAllowedNetworkTypes = 0;
+	private AtomicInteger mRetryAttempt = new AtomicInteger(0);
 
 	/**
-	 * The context
+	 * Allowed network types, default to all network types allowed.
 	 */
-	private Context mContext;
+	private int mAllowedNetworkTypes = 0;
 
 	/**
 	 * The download state.
 	 */
-	private DownloadState mDownloadState;
+	private volatile DownloadState mDownloadState;
 
 	/**
 	 * URL of download request.
@@ -81,31 +78,112 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	 */
 	private String mDestinationFilePath;
 
+	/**
+	 * File path used before the response has been received, computed once.
+	 */
+	private String mWorkingFilePath;
+
+	/**
+	 * Directory of the file whose name is generated, null if the destination file path was set.
+	 */
+	private String mWorkingDirectory;
+
+	/**
+	 * File path resolved with the response of server.
+	 */
+	private volatile String mResolvedFilePath;
+
 	/**
 	 * Progress interval
 	 */
 	private int mProgressInterval;
 
+	/**
+	 * Count of byte ranges downloaded in parallel, 1 by default(single stream).
+	 */
+	private int mSegmentCount = 1;
+
+	/**
+	 * The way to write data into local file, stream by default.
+	 */
+	private TransferMode mTransferMode = TransferMode.STREAM;
+
+	/**
+	 * Buffer size used in data transfer, 0 means the default size of transfer mode.
+	 */
+	private int mBufferSize = 0;
+
+	/**
+	 * Rate limiter of this download request only, unlimited by default.
+	 */
+	private final DownloadRateLimiter mRateLimiter = new DownloadRateLimiter();
+
 	/**
 	 * Download request help queue.
 	 */
 	private DownloadRequestHelpQueue mDownloadRequestHelpQueue;
 
+	/**
+	 * Normalized url used as the key in download request help queue.
+	 */
+	private String mQueueKey;
+
 	/**
 	 * Timestamp of this download request when created.
 	 */
 	private long mTimestamp = System.currentTimeMillis() / 1000;
 
+	/**
+	 * Sequence number of this download request when added, the requests of the same priority are ordered by it.
+	 */
+	private long mSequence;
+
 	/**
 	 * The priority of this download request, normal by default.
 	 */
-	private Priority mPriority = Priority.NORMAL;
+	private volatile Priority mPriority = Priority.NORMAL;
+
+
+	/**
+	 * Whether or not this request has been canceled, stop or preempted, see {@link #STOP}, {@link #CANCEL} and {@link #PREEMPT}.
+	 */
+	private volatile int mCanceledOrStop = 0;
+
+	/**
+	 * The batch this request belongs to, null if it is added alone.
+	 */
+	private DownloadBatch mDownloadBatch;
 
+	/**
+	 * Index of this request in its batch, -1 if no batch.
+	 */
+	private int mBatchIndex = -1;
+
+	/**
+	 * Index of progress slot in {@link DownloadDelivery}, -1 if no slot.
+	 */
+	private int mProgressSlot = -1;
+
+	/**
+	 * Whether or not the temp file is preallocated to the total bytes before downloading.
+	 */
+	private boolean mPreallocate = false;
+
+	/**
+	 * Whether or not the disk writes are done by a write-behind stage, off the threads reading the network.
+	 */
+	private boolean mWriteBehind = false;
+
+	/**
+	 * Algorithm and lower case hex of the expected digest, null if the download is not verified.
+	 */
+	private DigestAlgorithm mDigestAlgorithm;
+	private String          mExpectedDigest;
 
 	/**
-	 * Whether or not this request has been canceled or stop. 0x01 stop 0x11 cancel
+	 * Metrics of the last finished attempt, null if no attempt has finished.
 	 */
-	private int mCanceledOrStop = 0;
+	private volatile DownloadRequestMetrics mMetrics;
 
 	/**
 	 * Download listener.
@@ -135,6 +213,55 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 		HIGH,
 	}
 
+	/**
+	 * Transfer mode values: the way to write data into local file.
+	 */
+	public enum TransferMode {
+		/**
+		 * Copy data with a byte array and write it with RandomAccessFile(default).
+		 */
+		STREAM,
+		/**
+		 * Read data into a pooled direct byte buffer and write it with FileChannel, larger writes and fewer system calls per megabyte.
+		 */
+		CHANNEL,
+	}
+
+	/**
+	 * Digest algorithm values: the algorithm of the expected digest of file.
+	 */
+	public enum DigestAlgorithm {
+		/**
+		 * MD5, 32 hex digits.
+		 */
+		MD5("MD5", 32),
+		/**
+		 * SHA-256, 64 hex digits.
+		 */
+		SHA_256("SHA-256", 64),
+		/**
+		 * CRC32C, 8 hex digits. The checksums of segments are combined, no byte is read back from the file.
+		 */
+		CRC32C(null, 8);
+
+		private final String mName;
+		private final int    mHexLength;
+
+		DigestAlgorithm(String name, int hexLength) {
+			mName = name;
+			mHexLength = hexLength;
+		}
+
+		/**
+		 * Get the name of algorithm used by MessageDigest.
+		 *
+		 * @return name, null for CRC32C
+		 */
+		String getName() {
+			return mName;
+		}
+	}
+
 	/**
 	 * State values: this will used to mark the state of download request.
 	 */
@@ -175,15 +302,44 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 		
 		/*
 		 * High-priority requests are "lesser" so they are sorted to the front.
-		 * Equal priorities are sorted by timestamp to provide FIFO ordering.
+		 * Equal priorities are sorted by sequence number to provide FIFO ordering.
 		 */
-		return left == right ? (int) (this.mTimestamp - other.mTimestamp) : right.ordinal() - left.ordinal();
+		return left == right ? compareSequence(this.mSequence, other.mSequence) : right.ordinal() - left.ordinal();
+	}
+
+	/**
+	 * Compare two sequence numbers without the overflow of subtracting.
+	 *
+	 * @param lhs sequence number
+	 * @param rhs sequence number
+	 * @return negative if lhs is earlier
+	 */
+	static int compareSequence(long lhs, long rhs) {
+		return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
 	}
 
 	public long getDownloadRequestAddTimestamp() {
 		return mTimestamp;
 	}
 
+	/**
+	 * Set the sequence number when added to the download request queue.
+	 *
+	 * @param sequence sequence number
+	 */
+	protected void setSequence(long sequence) {
+		mSequence = sequence;
+	}
+
+	/**
+	 * Get the sequence number of this request.
+	 *
+	 * @return sequence number, 0 if it has never been added
+	 */
+	protected long getSequence() {
+		return mSequence;
+	}
+
 	/**
 	 * Set the priority of this downloader.
 	 *
@@ -226,6 +382,19 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 		return mDownloadListener;
 	}
 
+	/**
+	 * Get the metrics of the last finished attempt of this request, a retry is another attempt.
+	 *
+	 * @return request metrics, null if no attempt has finished
+	 */
+	public DownloadRequestMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	protected void setMetrics(DownloadRequestMetrics metrics) {
+		mMetrics = metrics;
+	}
+
 	/**
 	 * Set simple download listener.
 	 *
@@ -259,6 +428,71 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 		return this;
 	}
 
+	/**
+	 * Associates this request with the given batch, the batch will be notified of the progress and the finish of this request.
+	 *
+	 * @param batch download batch, null if no batch
+	 * @param index index of this request in the batch, -1 if no batch
+	 */
+	protected void setDownloadBatch(DownloadBatch batch, int index) {
+		mDownloadBatch = batch;
+		mBatchIndex = index;
+	}
+
+	/**
+	 * Get the batch this request belongs to.
+	 *
+	 * @return download batch, null if no batch
+	 */
+	protected DownloadBatch getDownloadBatch() {
+		return mDownloadBatch;
+	}
+
+	/**
+	 * Get the index of this request in its batch.
+	 *
+	 * @return batch index, -1 if no batch
+	 */
+	protected int getBatchIndex() {
+		return mBatchIndex;
+	}
+
+	/**
+	 * Set the index of progress slot, used in {@link DownloadDelivery}.
+	 *
+	 * @param slot slot index, -1 if no slot
+	 */
+	protected void setProgressSlot(int slot) {
+		mProgressSlot = slot;
+	}
+
+	/**
+	 * Get the index of progress slot.
+	 *
+	 * @return slot index, -1 if no slot
+	 */
+	protected int getProgressSlot() {
+		return mProgressSlot;
+	}
+
+	/**
+	 * Set the key of this request in download request help queue.
+	 *
+	 * @param key normalized url
+	 */
+	protected void setQueueKey(String key) {
+		mQueueKey = key;
+	}
+
+	/**
+	 * Get the key of this request in download request help queue.
+	 *
+	 * @return normalized url, null if never added
+	 */
+	protected String getQueueKey() {
+		return mQueueKey;
+	}
+
 	/**
 	 * Set download state of this request.
 	 *
@@ -319,6 +553,31 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 		return mRetryTime.decrementAndGet();
 	}
 
+	/**
+	 * Count a retry.
+	 *
+	 * @return attempt of this retry, 1 for the first retry
+	 */
+	protected int nextRetryAttempt() {
+		return mRetryAttempt.incrementAndGet();
+	}
+
+	/**
+	 * Get the retries made since the request was added.
+	 *
+	 * @return retry count
+	 */
+	protected int getRetryAttempt() {
+		return mRetryAttempt.get();
+	}
+
+	/**
+	 * Reset the retries made, invoked when the request is added.
+	 */
+	protected void resetRetryAttempt() {
+		mRetryAttempt.set(0);
+	}
+
 	/**
 	 * Set progress interval for this download request.
 	 *
@@ -340,36 +599,209 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	}
 
 	/**
-	 * Restrict the types of networks over which this download may proceed. By default, all network types are allowed. Be sure to add
-	 * permission android.permission.ACCESS_NETWORK_STATE.
+	 * Set the count of segments for this download request. When the count is greater than 1 and the server supports range requests, the
+	 * file will be split into the same count of byte ranges and each range will be downloaded by its own connection in parallel. If the
+	 * server does not support range requests, the file will be downloaded in a single stream. The count is capped by the connections per
+	 * host of {@link UrlConnectionTransport} left for this download by the other downloads of the same host.
 	 *
-	 * @param context the context to use
-	 * @param types   any network type
+	 * @param count segment count, must be greater than 0
 	 * @return this Request object to allow for chaining
 	 */
-	public DownloadRequest setAllowedNetworkTypes(Context context, int types) {
-		mContext = context;
+	public DownloadRequest setSegmentCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("segment count must be greater than 0");
+		}
+
+		mSegmentCount = count;
+		return this;
+	}
+
+	/**
+	 * Get the count of segments, used in {@link DownloadPrioritizedRunnable}.
+	 *
+	 * @return segment count
+	 */
+	protected int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	/**
+	 * Set the transfer mode of this download request.
+	 *
+	 * @param mode {@link TransferMode}
+	 * @return this Request object to allow for chaining
+	 */
+	public DownloadRequest setTransferMode(TransferMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("transfer mode cannot be null");
+		}
+
+		mTransferMode = mode;
+		return this;
+	}
+
+	/**
+	 * Get the transfer mode of this download request.
+	 *
+	 * @return {@link TransferMode#STREAM} by default
+	 */
+	protected TransferMode getTransferMode() {
+		return mTransferMode;
+	}
+
+	/**
+	 * Set the buffer size used in data transfer. If not set, the default size of transfer mode will be used.
+	 *
+	 * @param bytes buffer size in bytes, must be greater than 0
+	 * @return this Request object to allow for chaining
+	 */
+	public DownloadRequest setBufferSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("buffer size must be greater than 0");
+		}
+
+		mBufferSize = bytes;
+		return this;
+	}
+
+	/**
+	 * Get the buffer size used in data transfer.
+	 *
+	 * @return buffer size, 0 if not set
+	 */
+	protected int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * Cap the bytes per second of this download request, can be changed while downloading. The caps of its priority and of download
+	 * manager still apply.
+	 *
+	 * @param bytesPerSecond max bytes per second, {@link DownloadRateLimiter#UNLIMITED} for no limit
+	 * @return this Request object to allow for chaining
+	 */
+	public DownloadRequest setMaxBytesPerSecond(long bytesPerSecond) {
+		mRateLimiter.setBytesPerSecond(bytesPerSecond);
+		return this;
+	}
+
+	/**
+	 * Get the rate limiter of this download request.
+	 *
+	 * @return rate limiter
+	 */
+	protected DownloadRateLimiter getRateLimiter() {
+		return mRateLimiter;
+	}
+
+	/**
+	 * Preallocate the temp file to its total bytes once the length is known, the blocks are reserved at once where the platform supports
+	 * it, so the file is less fragmented and a full disk fails before transferring. The free space is checked up front either way.
+	 *
+	 * @param preallocate true to preallocate, false by default
+	 * @return this Request object to allow for chaining
+	 */
+	public DownloadRequest setPreallocate(boolean preallocate) {
+		mPreallocate = preallocate;
+		return this;
+	}
+
+	protected boolean isPreallocate() {
+		return mPreallocate;
+	}
+
+	/**
+	 * Write the data into local file in a write-behind stage. The threads reading the network hand the filled buffers over to a disk writer
+	 * through a small bounded queue, and the writer writes the buffers queued together with one gathering write, so the network reads and
+	 * the disk writes overlap instead of waiting for each other. The readers wait when the queue is full. Useful when the storage is slow
+	 * or its latency is irregular, such as flash storage of phones.
+	 *
+	 * @param writeBehind true to use write-behind, false by default
+	 * @return this Request object to allow for chaining
+	 */
+	public DownloadRequest setWriteBehind(boolean writeBehind) {
+		mWriteBehind = writeBehind;
+		return this;
+	}
+
+	protected boolean isWriteBehind() {
+		return mWriteBehind;
+	}
+
+	/**
+	 * Set the expected digest of file. The bytes are hashed while they are written, a mismatch fails the download and is retried, only the
+	 * segments which did not reach the disk intact are downloaded again.
+	 *
+	 * @param algorithm digest algorithm, null to disable verification
+	 * @param hex       hex digits of the expected digest
+	 * @return this Request object to allow for chaining
+	 */
+	public DownloadRequest setExpectedDigest(DigestAlgorithm algorithm, String hex) {
+		if (algorithm == null) {
+			mDigestAlgorithm = null;
+			mExpectedDigest = null;
+			return this;
+		}
+
+		if (hex == null || hex.length() != algorithm.mHexLength || !hex.matches("[0-9a-fA-F]+")) {
+			throw new IllegalArgumentException("expected digest must be " + algorithm.mHexLength + " hex digits");
+		}
+
+		mDigestAlgorithm = algorithm;
+		mExpectedDigest = hex.toLowerCase(Locale.US);
+		return this;
+	}
+
+	protected DigestAlgorithm getDigestAlgorithm() {
+		return mDigestAlgorithm;
+	}
+
+	protected String getExpectedDigest() {
+		return mExpectedDigest;
+	}
+
+	/**
+	 * Restrict the types of networks over which this download may proceed. By default, all network types are allowed. The network type is
+	 * detected by {@link DownloadNetworkDetector} of {@link DownloadPlatform}, on android the platform must be created with a context and
+	 * set before, see {@link DownloadManager}.
+	 *
+	 * @param types any network type
+	 * @return this Request object to allow for chaining
+	 * @throws IllegalStateException if some types are not allowed but the platform cannot detect the network type
+	 */
+	public DownloadRequest setAllowedNetworkTypes(int types) {
+		int all = NETWORK_MOBILE | NETWORK_WIFI;
+		if (types != 0 && (types & all) != all && !DownloadPlatform.get().isNetworkDetectable()) {
+			throw new IllegalStateException("network type cannot be detected, set a DownloadPlatform created with a context first");
+		}
+
 		mAllowedNetworkTypes = types;
 
 		return this;
 	}
 
 	/**
-	 * Get the types of allowed network.
+	 * Restrict the types of networks over which this download may proceed, the network type is detected with the context.
 	 *
-	 * @return all the types
+	 * @param context the context used to detect network type
+	 * @param types   any network type
+	 * @return this Request object to allow for chaining
+	 * @deprecated set a {@link DownloadPlatform} created with a context once, see {@link DownloadManager}, then use
+	 * {@link #setAllowedNetworkTypes(int)}. This method installs such a platform in place of the default one.
 	 */
-	protected int getAllowedNetworkTypes() {
-		return mAllowedNetworkTypes;
+	@Deprecated
+	public DownloadRequest setAllowedNetworkTypes(Context context, int types) {
+		DownloadPlatform.installContext(context);
+		return setAllowedNetworkTypes(types);
 	}
 
 	/**
-	 * Get the context.
+	 * Get the types of allowed network.
 	 *
-	 * @return context
+	 * @return all the types
 	 */
-	protected Context getContext() {
-		return mContext;
+	protected int getAllowedNetworkTypes() {
+		return mAllowedNetworkTypes;
 	}
 
 	/**
@@ -379,7 +811,7 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	 * @return this Request object to allow for chaining.
 	 */
 	public DownloadRequest setUrl(String url) {
-		if (TextUtils.isEmpty(url)) {
+		if (DownloadUtils.isEmpty(url)) {
 			throw new IllegalArgumentException("url cannot be null");
 		}
 
@@ -401,12 +833,6 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 		return mUrl;
 	}
 
-	/* get absolute file path according to the directory */
-	private String getFilePath() {
-		String dir = TextUtils.isEmpty(mDestinationDir) ? DEFAULT_DIR : mDestinationDir;
-		return dir + File.separator + DownloadUtils.getFilenameFromHeader(mUrl);
-	}
-
 	/**
 	 * Set destination file path of this download request. The file will be createad according to the file path. This file path must be
 	 * absolute file path(such as: /sdcard/test.txt). If the filename is not certain, then use {@link #setDestDirectory(String)}, the
@@ -418,6 +844,7 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	 */
 	public DownloadRequest setDestFilePath(String filePath) {
 		mDestinationFilePath = filePath;
+		resetFilePath();
 		return this;
 	}
 
@@ -431,32 +858,101 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	 */
 	public DownloadRequest setDestDirectory(String dir) {
 		mDestinationDir = dir;
+		resetFilePath();
 		return this;
 	}
 
+	/* forget the file paths computed with the old destination */
+	private synchronized void resetFilePath() {
+		mWorkingFilePath = null;
+		mWorkingDirectory = null;
+		mResolvedFilePath = null;
+	}
+
 	/**
-	 * Get destination file path of this download request.
+	 * Get destination file path of this download request. If only the destination directory was set, the filename is generated from url
+	 * until the response of server has been received, then it is the filename in Content-Disposition header if the server gave one.
 	 *
 	 * @return destination file path
 	 */
-	@SuppressWarnings("ResultOfMethodCallIgnored")
 	public String getDestFilePath() {
-		/* if the destination file path is empty, use default file path */
-		if (TextUtils.isEmpty(mDestinationFilePath)) {
-			mDestinationFilePath = getFilePath();
+		String resolvedFilePath = mResolvedFilePath;
+		return resolvedFilePath != null ? resolvedFilePath : getWorkingFilePath();
+	}
+
+	/**
+	 * Resolve the destination file path with the response of server, invoked in download thread when the response has been received.
+	 * Only the first response counts, so the file path will not change when retrying or resuming.
+	 *
+	 * @param contentDisposition Content-Disposition header of response, may be null
+	 * @param responseUrl        the url which gave the response, differs from the original url after redirection
+	 */
+	protected void resolveDestFilePath(String contentDisposition, String responseUrl) {
+		String workingFilePath = getWorkingFilePath();
+		if (mResolvedFilePath != null) {
+			return;
 		}
 
-		/* if the destination path is directory */
-		File file = new File(mDestinationFilePath);
-		if (file.isDirectory()) {
-			Log.w(TAG, "the destination file path cannot be directory");
-			mDestinationFilePath = getFilePath();
-		} else if (!file.getParentFile().exists()) {
-			/* make dirs in case */
-			file.getParentFile().mkdirs();
+		/* the filename is only generated if the destination file path was not set */
+		if (mWorkingDirectory == null) {
+			mResolvedFilePath = workingFilePath;
+			return;
 		}
 
-		return mDestinationFilePath;
+		String filename = DownloadUtils.getFilenameFromContentDisposition(contentDisposition);
+		if (filename == null) {
+			filename = DownloadUtils.getFilenameFromUrl(responseUrl);
+		}
+		mResolvedFilePath = mWorkingDirectory + File.separator + filename;
+	}
+
+	/**
+	 * Restore the destination file path resolved by an earlier attempt and recorded in the journal, so the file keeps the filename of
+	 * server even if no response is received this time. Does nothing if already resolved.
+	 *
+	 * @param filePath the file path resolved before, may be null
+	 */
+	protected void restoreDestFilePath(String filePath) {
+		if (mResolvedFilePath == null && filePath != null) {
+			mResolvedFilePath = filePath;
+		}
+	}
+
+	/*
+	 * Get the file path used before the response has been received, the temp file and the journal are named after it so the breakpoint
+	 * can be found without any request. No network access, the result is computed once.
+	 */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	private synchronized String getWorkingFilePath() {
+		if (mWorkingFilePath != null) {
+			return mWorkingFilePath;
+		}
+
+		String filePath = mDestinationFilePath;
+		String dir = null;
+		if (!DownloadUtils.isEmpty(filePath) && new File(filePath).isDirectory()) {
+			DownloadLog.w(TAG, "the destination file path cannot be directory");
+			dir = filePath;
+			filePath = null;
+		}
+
+		/* if the destination file path is empty, generate the filename from url */
+		if (DownloadUtils.isEmpty(filePath)) {
+			if (dir == null) {
+				dir = DownloadUtils.isEmpty(mDestinationDir) ? DownloadPlatform.get().getDefaultDirectory() : mDestinationDir;
+			}
+			filePath = dir + File.separator + DownloadUtils.getFilenameFromUrl(mUrl);
+			mWorkingDirectory = dir;
+		}
+
+		/* make dirs in case */
+		File parent = new File(filePath).getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		mWorkingFilePath = filePath;
+		return filePath;
 	}
 
 	/**
@@ -465,13 +961,22 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	 * @return temporary destination file path
 	 */
 	protected String getTmpDestinationPath() {
-		return getDestFilePath() + ".tmp";
+		return getWorkingFilePath() + ".tmp";
+	}
+
+	/**
+	 * Get the path of journal file which records the breakpoints of temp file.
+	 *
+	 * @return journal file path
+	 */
+	protected String getJournalPath() {
+		return getWorkingFilePath() + ".journal";
 	}
 
 	/**
 	 * Mark this download request as canceled.  No callback will be delivered.
 	 */
-	protected void cancel() {
+	protected synchronized void cancel() {
 		mCanceledOrStop = mCanceledOrStop | CANCEL;
 	}
 
@@ -494,17 +999,41 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 	/**
 	 * Mark this download request as stop.  No callback will be delivered.
 	 */
-	protected void stop() {
+	protected synchronized void stop() {
 		mCanceledOrStop = mCanceledOrStop | STOP;
 	}
 
 	/**
 	 * To check if current request has canceled.
 	 *
-	 * @return Returns true if this request has been stop.
+	 * @return Returns true if this request has been stop or preempted.
 	 */
 	protected boolean isStop() {
-		return (mCanceledOrStop & STOP) == STOP;
+		return (mCanceledOrStop & (STOP | PREEMPT)) != 0;
+	}
+
+	/**
+	 * Mark this download request as preempted by a download of higher priority, the worker stops it at the breakpoint and queues it again.
+	 * A request stop or canceled is not preempted.
+	 */
+	protected synchronized void preempt() {
+		if (mCanceledOrStop == 0) {
+			mCanceledOrStop = PREEMPT;
+		}
+	}
+
+	/**
+	 * Clear the preemption of this request if it has only been preempted, invoked when the worker has stopped it.
+	 *
+	 * @return true if the request should be queued again, false if it has been stop or canceled meanwhile
+	 */
+	protected synchronized boolean clearPreemption() {
+		if (mCanceledOrStop != PREEMPT) {
+			return false;
+		}
+
+		mCanceledOrStop = 0;
+		return true;
 	}
 
 	/**
@@ -1,32 +1,48 @@
 package com.tuacy.library.httpdownload;
 
-import android.text.TextUtils;
-import android.util.Log;
+import com.tuacy.library.concurrent.ConcurrentIntHashMap;
+import com.tuacy.library.httpdownload.DownloadRequest.DownloadState;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import com.tuacy.library.httpdownload.DownloadRequest.DownloadState;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Help to control the download request in thread pool.
+ * Help to control the download request in thread pool. The requests are indexed by download id and by normalized url, queries, stop and
+ * cancel are lock-free lookups, only adding and finishing a request take the lock. A batch of requests is added with one lock acquisition.
  */
 public class DownloadRequestHelpQueue {
 
 	private static final String TAG = DownloadRequestHelpQueue.class.getSimpleName();
 
 	/**
-	 * The set of all requests currently being processed by this DownloadQueue. A Request will be in this set if it is waiting in any queue
-	 * or currently being processed by any dispatcher.
+	 * All requests currently being processed by this DownloadQueue indexed by download id. A Request will be in this map if it is waiting
+	 * in any queue or currently being processed by any dispatcher.
+	 */
+	private final ConcurrentIntHashMap<DownloadRequest> mRequestsById = new ConcurrentIntHashMap<>();
+
+	/**
+	 * The same requests indexed by normalized url.
 	 */
-	private final Set<DownloadRequest> mCurrentRequests = new HashSet<>();
+	private final ConcurrentHashMap<String, DownloadRequest> mRequestsByUrl = new ConcurrentHashMap<>();
+
+	/**
+	 * Lock to keep the two indexes consistent when adding or finishing a request.
+	 */
+	private final Object mLock = new Object();
 
 	/**
 	 * Used for generating monotonically-increasing sequence numbers for requests.
 	 */
 	private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
+	/**
+	 * Used for generating the sequence numbers of requests added, they order the requests of the same priority.
+	 */
+	private final AtomicLong mEnqueueSequenceGenerator = new AtomicLong();
+
 	/**
 	 * Gets a sequence number.
 	 *
@@ -42,7 +58,7 @@ public class DownloadRequestHelpQueue {
 	 * @return task size
 	 */
 	protected int getDownloadingSize() {
-		return mCurrentRequests.size();
+		return mRequestsById.size();
 	}
 
 	/**
@@ -52,15 +68,18 @@ public class DownloadRequestHelpQueue {
 	 * @return true if the request is downloading, otherwise return false
 	 */
 	protected DownloadState query(int downloadId) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getDownloadId() == downloadId) {
-					return request.getDownloadState();
-				}
-			}
-		}
+		DownloadRequest request = mRequestsById.get(downloadId);
+		return request == null ? DownloadState.INVALID : request.getDownloadState();
+	}
 
-		return DownloadState.INVALID;
+	/**
+	 * Get the request in downloading by download id.
+	 *
+	 * @param downloadId download id
+	 * @return the request, or null if not in queue
+	 */
+	protected DownloadRequest get(int downloadId) {
+		return mRequestsById.get(downloadId);
 	}
 
 	/**
@@ -70,15 +89,8 @@ public class DownloadRequestHelpQueue {
 	 * @return true if the request is downloading, otherwise return false
 	 */
 	protected DownloadState query(String url) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getUrl().equals(url)) {
-					return request.getDownloadState();
-				}
-			}
-		}
-
-		return DownloadState.INVALID;
+		DownloadRequest request = findByUrl(url);
+		return request == null ? DownloadState.INVALID : request.getDownloadState();
 	}
 
 	/**
@@ -88,30 +100,73 @@ public class DownloadRequestHelpQueue {
 	 * @return true if the request is not in queue, otherwise return false
 	 */
 	protected boolean add(DownloadRequest request) {
-		/* check if url is empty */
-		if (TextUtils.isEmpty(request.getUrl())) {
-			Log.w(TAG, "download url cannot be empty");
+		String urlKey = prepare(request);
+		if (urlKey == null) {
 			return false;
 		}
 
+		synchronized (mLock) {
+			return register(request, urlKey);
+		}
+	}
+
+	/**
+	 * Add many download requests to the download request queue, the lock is taken only once for all of them.
+	 *
+	 * @param requests download requests
+	 * @return the requests which were not in queue and have been added, in the same order
+	 */
+	protected List<DownloadRequest> addAll(List<DownloadRequest> requests) {
+		/* check the requests and normalize the urls out of lock */
+		String[] urlKeys = new String[requests.size()];
+		for (int i = 0; i < urlKeys.length; i++) {
+			urlKeys[i] = prepare(requests.get(i));
+		}
+
+		List<DownloadRequest> added = new ArrayList<>(urlKeys.length);
+		synchronized (mLock) {
+			for (int i = 0; i < urlKeys.length; i++) {
+				if (urlKeys[i] != null && register(requests.get(i), urlKeys[i])) {
+					added.add(requests.get(i));
+				}
+			}
+		}
+		return added;
+	}
+
+	/* check the request and generate its download id if needed, return the normalized url or null if the request is invalid */
+	private String prepare(DownloadRequest request) {
+		/* check if url is empty */
+		if (DownloadUtils.isEmpty(request.getUrl())) {
+			DownloadLog.w(TAG, "download url cannot be empty");
+			return null;
+		}
+
 		/* if download id is not set, generate one */
 		if (request.getDownloadId() == -1) {
 			int downloadId = getSequenceNumber();
 			request.setDownloadId(downloadId);
 		}
 
+		return DownloadUtils.normalizeUrl(request.getUrl());
+	}
+
+	/* put the request into the indexes, guarded by mLock */
+	private boolean register(DownloadRequest request, String urlKey) {
 		/* if the request is downloading, do nothing */
-		if (query(request.getDownloadId()) != DownloadState.INVALID || query(request.getUrl()) != DownloadState.INVALID) {
-			Log.w(TAG, "the download request is in downloading");
+		if (mRequestsById.get(request.getDownloadId()) != null || mRequestsByUrl.containsKey(urlKey)) {
+			DownloadLog.w(TAG, "the download request is in downloading");
 			return false;
 		}
 
-		/* tag the request as belonging to this queue */
+		/* tag the request as belonging to this queue, the url may change when redirecting so keep the key */
 		request.setDownloadQueue(this);
-		/* add it to the set of current requests */
-		synchronized (mCurrentRequests) {
-			mCurrentRequests.add(request);
-		}
+		request.setQueueKey(urlKey);
+		request.resetRetryAttempt();
+		request.setSequence(mEnqueueSequenceGenerator.incrementAndGet());
+		/* add it to the indexes of current requests */
+		mRequestsById.put(request.getDownloadId(), request);
+		mRequestsByUrl.put(urlKey, request);
 		return true;
 	}
 
@@ -119,10 +174,8 @@ public class DownloadRequestHelpQueue {
 	 * Set all request stop
 	 */
 	public void stopAll() {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				request.stop();
-			}
+		for (DownloadRequest request : mRequestsByUrl.values()) {
+			request.stop();
 		}
 	}
 
@@ -130,10 +183,8 @@ public class DownloadRequestHelpQueue {
 	 * Set all request cancel
 	 */
 	public void cancelAll() {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				request.cancel();
-			}
+		for (DownloadRequest request : mRequestsByUrl.values()) {
+			request.cancel();
 		}
 	}
 
@@ -143,12 +194,9 @@ public class DownloadRequestHelpQueue {
 	 * @param downloadId request download id
 	 */
 	public void stop(int downloadId) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getDownloadId() == downloadId) {
-					request.stop();
-				}
-			}
+		DownloadRequest request = mRequestsById.get(downloadId);
+		if (request != null) {
+			request.stop();
 		}
 	}
 
@@ -158,12 +206,9 @@ public class DownloadRequestHelpQueue {
 	 * @param url request url
 	 */
 	public void stop(String url) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getUrl().equals(url)) {
-					request.stop();
-				}
-			}
+		DownloadRequest request = findByUrl(url);
+		if (request != null) {
+			request.stop();
 		}
 	}
 
@@ -173,12 +218,9 @@ public class DownloadRequestHelpQueue {
 	 * @param downloadId request download id
 	 */
 	public void cancel(int downloadId) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getDownloadId() == downloadId) {
-					request.cancel();
-				}
-			}
+		DownloadRequest request = mRequestsById.get(downloadId);
+		if (request != null) {
+			request.cancel();
 		}
 	}
 
@@ -188,12 +230,9 @@ public class DownloadRequestHelpQueue {
 	 * @param url request url
 	 */
 	public void cancel(String url) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getUrl().equals(url)) {
-					request.cancel();
-				}
-			}
+		DownloadRequest request = findByUrl(url);
+		if (request != null) {
+			request.cancel();
 		}
 	}
 
@@ -203,10 +242,15 @@ public class DownloadRequestHelpQueue {
 	 * @param request request
 	 */
 	public void finishDownloadRequest(DownloadRequest request) {
-		synchronized (mCurrentRequests) {
-			mCurrentRequests.remove(request);
+		synchronized (mLock) {
+			mRequestsById.remove(request.getDownloadId(), request);
+			if (request.getQueueKey() != null) {
+				mRequestsByUrl.remove(request.getQueueKey(), request);
+			}
 		}
 	}
 
-
+	private DownloadRequest findByUrl(String url) {
+		return DownloadUtils.isEmpty(url) ? null : mRequestsByUrl.get(DownloadUtils.normalizeUrl(url));
+	}
 }
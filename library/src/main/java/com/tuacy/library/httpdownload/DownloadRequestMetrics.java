@@ -0,0 +1,231 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download request metrics: where the time of one attempt of a download went, from waiting in queue to its final result. A retry is a new
+ * attempt with its own metrics. The metrics of the last finished attempt are kept in {@link DownloadRequest#getMetrics()} and every
+ * finished attempt is reported to the {@link DownloadMetricsSink}.
+ */
+public final class DownloadRequestMetrics {
+
+	/**
+	 * Result of an attempt.
+	 */
+	public enum Outcome {
+		/**
+		 * Still running.
+		 */
+		RUNNING,
+		SUCCESS,
+		FAILURE,
+		/**
+		 * Failed and queued again to retry.
+		 */
+		RETRY,
+		CANCEL,
+		STOP,
+		/**
+		 * Stopped at the breakpoint for a download of higher priority and queued again.
+		 */
+		PREEMPT,
+		/**
+		 * Stopped at the breakpoint because a pause outlasted the keep alive time, and queued again.
+		 */
+		PAUSE_RELEASE,
+	}
+
+	private final int    mDownloadId;
+	private final String mUrl;
+	private final int    mRetryAttempt;
+	private final long   mQueueWaitNanos;
+	private final long   mStartNanos;
+
+	private final AtomicLong    mBytesTransferred = new AtomicLong();
+	private final AtomicInteger mConnections      = new AtomicInteger();
+
+	/**
+	 * Written by the thread running the attempt, the segment threads only count bytes and connections.
+	 */
+	private volatile long    mConnectNanos     = -1;
+	private volatile long    mFirstByteNanos   = -1;
+	private volatile int     mRedirects        = 0;
+	private volatile long    mTransferStartNanos;
+	private volatile long    mTransferNanos    = 0;
+	private volatile long    mDurationNanos    = 0;
+	private volatile int     mStatusCode       = 0;
+	private volatile Outcome mOutcome          = Outcome.RUNNING;
+
+	DownloadRequestMetrics(DownloadRequest request, int retryAttempt, long queueWaitNanos, long startNanos) {
+		mDownloadId = request.getDownloadId();
+		mUrl = request.getUrl();
+		mRetryAttempt = retryAttempt;
+		mQueueWaitNanos = queueWaitNanos;
+		mStartNanos = startNanos;
+	}
+
+	/* a response header has been received, the time to first byte of the attempt is its first connection */
+	void onConnection(long connectNanos, long firstByteNanos) {
+		if (mConnections.getAndIncrement() == 0) {
+			mConnectNanos = connectNanos;
+			mFirstByteNanos = firstByteNanos;
+		}
+	}
+
+	void onRedirect() {
+		mRedirects++;
+	}
+
+	void onTransferStart() {
+		mTransferStartNanos = System.nanoTime();
+	}
+
+	void onTransferEnd() {
+		mTransferNanos += System.nanoTime() - mTransferStartNanos;
+	}
+
+	void onBytesTransferred(long length) {
+		mBytesTransferred.addAndGet(length);
+	}
+
+	/* returns false if the attempt has finished already */
+	boolean finish(Outcome outcome, int statusCode) {
+		if (mOutcome != Outcome.RUNNING) {
+			return false;
+		}
+
+		mDurationNanos = System.nanoTime() - mStartNanos;
+		mStatusCode = statusCode;
+		mOutcome = outcome;
+		return true;
+	}
+
+	public int getDownloadId() {
+		return mDownloadId;
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * Get the count of retries before this attempt.
+	 *
+	 * @return 0 for the first attempt
+	 */
+	public int getRetryAttempt() {
+		return mRetryAttempt;
+	}
+
+	/**
+	 * Get the time waiting in queue, from added or woken up for retry to a download thread picked it up.
+	 *
+	 * @return time in millisecond
+	 */
+	public long getQueueWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mQueueWaitNanos);
+	}
+
+	/**
+	 * Get the time to open the first connection, including the wait for a connection permit of the host.
+	 *
+	 * @return time in millisecond, -1 if not connected
+	 */
+	public long getConnectMillis() {
+		return mConnectNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mConnectNanos);
+	}
+
+	/**
+	 * Get the time from opening the first connection to its response header has been received.
+	 *
+	 * @return time in millisecond, -1 if no response
+	 */
+	public long getTimeToFirstByteMillis() {
+		return mFirstByteNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mFirstByteNanos);
+	}
+
+	/**
+	 * Get the count of connections opened, the segments and the redirects open their own.
+	 *
+	 * @return connection count
+	 */
+	public int getConnections() {
+		return mConnections.get();
+	}
+
+	public int getRedirects() {
+		return mRedirects;
+	}
+
+	/**
+	 * Get the bytes received from network in this attempt.
+	 *
+	 * @return bytes
+	 */
+	public long getBytesTransferred() {
+		return mBytesTransferred.get();
+	}
+
+	/**
+	 * Get the time transferring the body, from the first segment started to the last one finished.
+	 *
+	 * @return time in millisecond
+	 */
+	public long getTransferMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mTransferNanos);
+	}
+
+	/**
+	 * Get the bytes received per second while transferring.
+	 *
+	 * @return bytes per second, 0 if nothing transferred
+	 */
+	public long getBytesPerSecond() {
+		long nanos = mTransferNanos;
+		return nanos <= 0 ? 0 : mBytesTransferred.get() * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	/**
+	 * Get the time from a download thread picked the attempt up to its final result.
+	 *
+	 * @return time in millisecond
+	 */
+	public long getDurationMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mDurationNanos);
+	}
+
+	public Outcome getOutcome() {
+		return mOutcome;
+	}
+
+	/**
+	 * Get the status code of failure.
+	 *
+	 * @return status code, 0 if not failed
+	 */
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	long getQueueWaitNanos() {
+		return mQueueWaitNanos;
+	}
+
+	long getStartNanos() {
+		return mStartNanos;
+	}
+
+	long getDurationNanos() {
+		return mDurationNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "download id: " + mDownloadId + ", outcome: " + mOutcome + ", attempt: " + mRetryAttempt + ", queue wait: " +
+			   getQueueWaitMillis() + " ms, connect: " + getConnectMillis() + " ms, ttfb: " + getTimeToFirstByteMillis() +
+			   " ms, transfer: " + getTransferMillis() + " ms, bytes: " + getBytesTransferred() + ", duration: " + getDurationMillis() +
+			   " ms";
+	}
+}
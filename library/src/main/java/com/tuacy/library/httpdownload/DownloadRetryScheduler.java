@@ -0,0 +1,172 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download retry scheduler: a failed download waits here for its next attempt instead of sleeping on its worker, the worker is free for
+ * other downloads in the meantime. The wait grows exponentially with every attempt up to a ceiling, half of it is random jitter so the
+ * downloads failed together by an outage do not come back together. A Retry-After of the server is honored when it is longer. Stopping or
+ * canceling a waiting download wakes it at once.
+ */
+public class DownloadRetryScheduler {
+
+	private static final String TAG = DownloadRetryScheduler.class.getSimpleName();
+
+	/**
+	 * Default wait before the first retry in millisecond.
+	 */
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+	/**
+	 * Default ceiling of the wait in millisecond.
+	 */
+	public static final long DEFAULT_MAX_DELAY = 60 * 1000;
+
+	/**
+	 * A Retry-After longer than this is not worth waiting, the download fails instead.
+	 */
+	public static final long MAX_RETRY_AFTER = 10 * 60 * 1000;
+
+	private final DownloadManager mManager;
+	private final Random          mRandom = new Random();
+
+	/**
+	 * Downloads waiting for retry, indexed by request.
+	 */
+	private final Map<DownloadRequest, RetryTask> mPending = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DownloadRetry");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private volatile long mInitialDelay = DEFAULT_INITIAL_DELAY;
+	private volatile long mMaxDelay     = DEFAULT_MAX_DELAY;
+
+	DownloadRetryScheduler(DownloadManager manager) {
+		mManager = manager;
+	}
+
+	/**
+	 * Set the backoff of retries, the wait before the n-th retry is between half and all of {@code initialDelay * 2^(n-1)}, at most
+	 * maxDelay.
+	 *
+	 * @param initialDelay wait before the first retry in millisecond
+	 * @param maxDelay     ceiling of the wait in millisecond
+	 */
+	public void setBackoff(long initialDelay, long maxDelay) {
+		if (initialDelay <= 0 || maxDelay < initialDelay) {
+			throw new IllegalArgumentException("backoff must be 0 < initial delay <= max delay");
+		}
+
+		mInitialDelay = initialDelay;
+		mMaxDelay = maxDelay;
+	}
+
+	/**
+	 * Get the count of downloads waiting for retry.
+	 *
+	 * @return waiting count
+	 */
+	public int getPendingCount() {
+		return mPending.size();
+	}
+
+	/**
+	 * Compute the wait before a retry.
+	 *
+	 * @param attempt    attempt of the retry, 1 for the first retry
+	 * @param retryAfter wait asked by the server in millisecond, -1 if none
+	 * @return wait in millisecond
+	 */
+	long getDelay(int attempt, long retryAfter) {
+		long delay = mInitialDelay << Math.min(Math.max(attempt - 1, 0), 30);
+		delay = Math.min(Math.max(delay, mInitialDelay), mMaxDelay);
+
+		/* equal jitter: keep half of the backoff, randomize the other half */
+		long half = delay / 2;
+		synchronized (mRandom) {
+			delay = half + (long) (mRandom.nextDouble() * (delay - half));
+		}
+		return Math.max(delay, retryAfter);
+	}
+
+	/**
+	 * Queue the download again after the wait.
+	 *
+	 * @param request download request
+	 * @param delay   wait in millisecond
+	 */
+	void schedule(final DownloadRequest request, long delay) {
+		DownloadLog.i(TAG, "retry download id: " + request.getDownloadId() + " in " + delay + " ms");
+		/* pending before scheduled, a short wait may fire before schedule returns */
+		RetryTask task = new RetryTask(request);
+		mPending.put(request, task);
+		task.mFuture = mTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+
+		/* stopped or canceled before it was put into the pending downloads */
+		if (request.isCanceled() || request.isStop()) {
+			wakeUpFinished();
+		}
+	}
+
+	/**
+	 * Wake the waiting downloads which have been stopped or canceled, so their callbacks are delivered without waiting.
+	 */
+	void wakeUpFinished() {
+		for (Map.Entry<DownloadRequest, RetryTask> entry : mPending.entrySet()) {
+			DownloadRequest request = entry.getKey();
+			if ((request.isCanceled() || request.isStop()) && mPending.remove(request) != null) {
+				entry.getValue().cancel();
+				retry(request);
+			}
+		}
+	}
+
+	/* the worker of the new runnable delivers stop or cancel if the request has finished meanwhile */
+	private void retry(DownloadRequest request) {
+		if (!request.isCanceled() && !request.isStop()) {
+			mManager.getDelivery().postRetry(request);
+		}
+		mManager.getHostScheduler().submit(new DownloadPrioritizedRunnable(request, mManager));
+	}
+
+	/**
+	 * The timer task of a download waiting for retry, whoever removes it from the pending downloads first retries the download.
+	 */
+	private final class RetryTask implements Runnable {
+
+		private final    DownloadRequest    mRequest;
+		private volatile ScheduledFuture<?> mFuture;
+
+		RetryTask(DownloadRequest request) {
+			mRequest = request;
+		}
+
+		@Override
+		public void run() {
+			if (mPending.remove(mRequest) != null) {
+				retry(mRequest);
+			}
+		}
+
+		/* the future is null if woken before scheduled, then the timer finds the task removed */
+		void cancel() {
+			ScheduledFuture<?> future = mFuture;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Download segment: a byte range of the file which is downloaded by its own connection in segmented mode.
+ */
+class DownloadSegment {
+
+	/**
+	 * The minimum size of a segment, a file will not be split into segments smaller than this.
+	 */
+	private static final long MIN_SEGMENT_SIZE = 256 * 1024;
+
+	/**
+	 * First byte offset of this segment.
+	 */
+	private final long mStart;
+
+	/**
+	 * Last byte offset of this segment(inclusive).
+	 */
+	private final long mEnd;
+
+	/**
+	 * Next byte offset to write.
+	 */
+	private volatile long mPosition;
+
+	/**
+	 * CRC32C of the bytes from start to position, only maintained when the download is verified.
+	 */
+	private int mCrc;
+
+	DownloadSegment(long start, long end) {
+		this(start, end, start);
+	}
+
+	DownloadSegment(long start, long end, long position) {
+		this(start, end, position, 0);
+	}
+
+	DownloadSegment(long start, long end, long position, int crc) {
+		mStart = start;
+		mEnd = end;
+		mPosition = position;
+		mCrc = crc;
+	}
+
+	/**
+	 * Split the file into byte ranges of nearly the same size.
+	 *
+	 * @param totalBytes total bytes of the file
+	 * @param count      the count of segments wanted
+	 * @return the segments, the count may be less than wanted if the file is small
+	 */
+	static List<DownloadSegment> split(long totalBytes, int count) {
+		long maxCount = Math.max(1, totalBytes / MIN_SEGMENT_SIZE);
+		int segmentCount = (int) Math.min(count, maxCount);
+		long segmentSize = totalBytes / segmentCount;
+
+		List<DownloadSegment> segments = new ArrayList<>(segmentCount);
+		for (int i = 0; i < segmentCount; i++) {
+			long start = i * segmentSize;
+			long end = i == segmentCount - 1 ? totalBytes - 1 : start + segmentSize - 1;
+			segments.add(new DownloadSegment(start, end));
+		}
+		return segments;
+	}
+
+	long getStart() {
+		return mStart;
+	}
+
+	long getEnd() {
+		return mEnd;
+	}
+
+	long getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * Move the position forward after bytes have been written.
+	 *
+	 * @param length the bytes have written
+	 */
+	void advance(long length) {
+		mPosition += length;
+	}
+
+	/**
+	 * Move the position forward and update the checksum together, so the journal never sees one without the other.
+	 *
+	 * @param length the bytes have written
+	 * @param crc    CRC32C from start to the new position
+	 */
+	synchronized void advance(long length, int crc) {
+		mPosition += length;
+		mCrc = crc;
+	}
+
+	synchronized int getCrc() {
+		return mCrc;
+	}
+
+	synchronized void setCrc(int crc) {
+		mCrc = crc;
+	}
+
+	/**
+	 * Move the position back to start, the bytes of this segment will be downloaded again.
+	 */
+	synchronized void reset() {
+		mPosition = mStart;
+		mCrc = 0;
+	}
+
+	/**
+	 * Get the bytes still need to be downloaded.
+	 *
+	 * @return remaining bytes
+	 */
+	long getRemaining() {
+		return mEnd - mPosition + 1;
+	}
+
+	boolean isComplete() {
+		return mPosition > mEnd;
+	}
+
+	/**
+	 * Get the value of range header for the remaining bytes of this segment.
+	 *
+	 * @return range header value
+	 */
+	String getRangeHeader() {
+		return "bytes=" + mPosition + "-" + mEnd;
+	}
+}
@@ -0,0 +1,520 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download selector connection: one GET request on a non-blocking socket of {@link DownloadSelectorEngine}. The status and headers can be
+ * read like any {@link DownloadConnection}, the calls block until the response header has arrived. The body is not read by a stream but
+ * handed to a {@link BodyHandler} in the I/O thread, so no thread waits for it.
+ *
+ * Everything but the status and headers is only touched in the I/O thread of connection.
+ */
+class DownloadSelectorConnection implements DownloadConnection {
+
+	private static final String TAG = DownloadSelectorConnection.class.getSimpleName();
+
+	/**
+	 * Size of the buffer receiving the body.
+	 */
+	private static final int BODY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Initial and max size of the response header.
+	 */
+	private static final int HEADER_BUFFER_SIZE     = 4 * 1024;
+	private static final int MAX_HEADER_BUFFER_SIZE = 64 * 1024;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Interface definition for the receiver of a response body, every callback is invoked in the I/O thread and must not block. Exactly one
+	 * of {@link #onComplete()} and {@link #onFailure(IOException)} is invoked at last, whatever happened.
+	 */
+	interface BodyHandler {
+
+		/**
+		 * The response header has arrived.
+		 *
+		 * @param connection the connection
+		 * @return false to close the connection without reading the body
+		 */
+		boolean onResponse(DownloadSelectorConnection connection);
+
+		/**
+		 * Get the bytes of body still wanted, the connection completes when it reaches 0.
+		 *
+		 * @return remaining bytes
+		 */
+		long getRemaining();
+
+		/**
+		 * Bytes of body have arrived, the handler must consume all of them.
+		 *
+		 * @param buffer bytes between position and limit, never more than the remaining bytes
+		 * @return nanoseconds to pause reading for throttling, 0 to go on, negative to abort
+		 */
+		long onBody(ByteBuffer buffer);
+
+		/**
+		 * Whether or not the handler does not want the body any more, polled by the I/O thread.
+		 *
+		 * @return true to close the connection
+		 */
+		boolean isAborted();
+
+		/**
+		 * Whether or not reading should be parked, polled by the I/O thread. The connection is kept and the read timeout does not run while
+		 * parked.
+		 *
+		 * @return true to stop reading until false again
+		 */
+		boolean isPaused();
+
+		/**
+		 * All the bytes wanted have been received.
+		 */
+		void onComplete();
+
+		/**
+		 * The connection failed or was aborted.
+		 *
+		 * @param e the reason
+		 */
+		void onFailure(IOException e);
+	}
+
+	private enum State {
+		CONNECTING,
+		WRITING,
+		READING_HEADER,
+		/**
+		 * The header has arrived, waiting for a body handler.
+		 */
+		HEADER_RECEIVED,
+		READING_BODY,
+		CLOSED
+	}
+
+	private final DownloadSelectorEngine.IoThread mIoThread;
+	private final SocketChannel                   mChannel;
+	private final DownloadBufferPool              mBufferPool;
+	private final ByteBuffer                      mRequest;
+	private final long                            mOpenNanos = System.nanoTime();
+
+	/**
+	 * Counted down when the response header has arrived or the connection has failed before.
+	 */
+	private final CountDownLatch mResponseLatch = new CountDownLatch(1);
+
+	/**
+	 * Written before counting down the response latch.
+	 */
+	private          int                 mStatusCode;
+	private          String              mStatusMessage;
+	private final    Map<String, String> mHeaders = new HashMap<>();
+	private volatile IOException         mError;
+	private volatile long                mConnectNanos   = -1;
+	private volatile long                mFirstByteNanos = -1;
+
+	/**
+	 * I/O thread only.
+	 */
+	private State        mState = State.CONNECTING;
+	private SelectionKey mKey;
+	private ByteBuffer   mHeaderBuffer;
+	private ByteBuffer   mBodyBuffer;
+	private BodyHandler  mHandler;
+	private long         mDeadlineNanos;
+	private long         mResumeNanos;
+
+	DownloadSelectorConnection(DownloadSelectorEngine.IoThread ioThread,
+							   SocketChannel channel,
+							   byte[] request,
+							   DownloadBufferPool bufferPool) {
+		mIoThread = ioThread;
+		mChannel = channel;
+		mRequest = ByteBuffer.wrap(request);
+		mBufferPool = bufferPool;
+	}
+
+	/* register the channel in the I/O thread */
+	void start(final boolean connected) {
+		mIoThread.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mKey = mChannel.register(mIoThread.getSelector(), 0, DownloadSelectorConnection.this);
+					mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DownloadSelectorEngine.TIME_OUT);
+					if (connected) {
+						onConnected();
+					} else {
+						mKey.interestOps(SelectionKey.OP_CONNECT);
+					}
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hand the body to a handler, the handler gets its callbacks from now on and owns the connection.
+	 *
+	 * @param handler body handler
+	 */
+	void receive(final BodyHandler handler) {
+		mIoThread.post(new Runnable() {
+			@Override
+			public void run() {
+				mHandler = handler;
+				if (mState == State.CLOSED) {
+					handler.onFailure(mError != null ? mError : new ClosedChannelException());
+				} else if (mState == State.HEADER_RECEIVED) {
+					startBody();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the time from opening to connected.
+	 *
+	 * @return nanoseconds, -1 if not connected
+	 */
+	long getConnectNanos() {
+		return mConnectNanos;
+	}
+
+	/**
+	 * Get the time from opening to the response header arrived.
+	 *
+	 * @return nanoseconds, -1 if no response
+	 */
+	long getFirstByteNanos() {
+		return mFirstByteNanos;
+	}
+
+	@Override
+	public int getResponseCode() throws IOException {
+		awaitResponse();
+		return mStatusCode;
+	}
+
+	@Override
+	public String getResponseMessage() throws IOException {
+		awaitResponse();
+		return mStatusMessage;
+	}
+
+	@Override
+	public String getHeaderField(String name) {
+		try {
+			awaitResponse();
+		} catch (IOException e) {
+			return null;
+		}
+		return mHeaders.get(name.toLowerCase(Locale.US));
+	}
+
+	/**
+	 * The body of a selector connection is only received by {@link #receive(BodyHandler)}.
+	 *
+	 * @throws IOException always
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("the body of a selector connection is received by a body handler");
+	}
+
+	/**
+	 * Close the connection unless its body has been handed to a handler, which releases it when finished.
+	 */
+	@Override
+	public void release() {
+		mIoThread.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mHandler == null) {
+					close();
+				}
+			}
+		});
+	}
+
+	private void awaitResponse() throws IOException {
+		try {
+			if (!mResponseLatch.await(DownloadSelectorEngine.TIME_OUT * 2, TimeUnit.MILLISECONDS)) {
+				throw new SocketTimeoutException("response header timed out");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for response", e);
+		}
+		/* a failure after the header has arrived belongs to the body */
+		if (mStatusCode == 0 && mError != null) {
+			throw mError;
+		}
+	}
+
+	/* the key is ready, I/O thread */
+	void onReady(SelectionKey key) {
+		try {
+			if (!key.isValid()) {
+				return;
+			}
+			if (key.isConnectable()) {
+				if (!mChannel.finishConnect()) {
+					return;
+				}
+				onConnected();
+			} else if (key.isWritable()) {
+				writeRequest();
+			} else if (key.isReadable()) {
+				if (mState == State.READING_HEADER) {
+					readHeader();
+				} else if (mState == State.READING_BODY) {
+					readBody();
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/* check the timeout, the throttle and the handler after every select, returns the nanoseconds until the next check, I/O thread */
+	long onTick(long now) {
+		if (mState == State.READING_BODY) {
+			if (mHandler.isAborted()) {
+				fail(new IOException("aborted"));
+				return Long.MAX_VALUE;
+			}
+			if (mHandler.isPaused()) {
+				/* parked, the server is held back by the receive window, the engine is woken to read again once resumed */
+				mResumeNanos = now;
+				mKey.interestOps(0);
+				return Long.MAX_VALUE;
+			}
+			if (mResumeNanos != 0) {
+				if (now - mResumeNanos < 0) {
+					return mResumeNanos - now;
+				}
+				mResumeNanos = 0;
+				mDeadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(DownloadSelectorEngine.TIME_OUT);
+				mKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		if (mState == State.HEADER_RECEIVED || mState == State.CLOSED) {
+			return Long.MAX_VALUE;
+		}
+		if (now - mDeadlineNanos > 0) {
+			fail(new SocketTimeoutException("read timed out"));
+			return Long.MAX_VALUE;
+		}
+		return mDeadlineNanos - now;
+	}
+
+	/* the connection or its handler has thrown, I/O thread */
+	void onError(RuntimeException e) {
+		DownloadLog.w(TAG, "connection failed", e);
+		try {
+			fail(new IOException(e));
+		} catch (RuntimeException again) {
+			DownloadLog.w(TAG, "handler failed", again);
+		}
+	}
+
+	private void onConnected() throws IOException {
+		mConnectNanos = System.nanoTime() - mOpenNanos;
+		mState = State.WRITING;
+		writeRequest();
+	}
+
+	private void writeRequest() throws IOException {
+		mChannel.write(mRequest);
+		if (mRequest.hasRemaining()) {
+			mKey.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		mState = State.READING_HEADER;
+		mHeaderBuffer = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+		mKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void readHeader() throws IOException {
+		if (!mHeaderBuffer.hasRemaining()) {
+			if (mHeaderBuffer.capacity() >= MAX_HEADER_BUFFER_SIZE) {
+				throw new IOException("response header too large");
+			}
+			ByteBuffer larger = ByteBuffer.allocate(mHeaderBuffer.capacity() * 2);
+			mHeaderBuffer.flip();
+			larger.put(mHeaderBuffer);
+			mHeaderBuffer = larger;
+		}
+
+		if (mChannel.read(mHeaderBuffer) == -1) {
+			throw new EOFException("unexpected end of stream");
+		}
+		mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DownloadSelectorEngine.TIME_OUT);
+
+		int end = findHeaderEnd(mHeaderBuffer);
+		if (end < 0) {
+			return;
+		}
+
+		parseHeader(new String(mHeaderBuffer.array(), 0, end, ISO_8859_1));
+		/* the bytes after the header are the beginning of body */
+		mHeaderBuffer.flip();
+		mHeaderBuffer.position(end + 4);
+		mFirstByteNanos = System.nanoTime() - mOpenNanos;
+		mState = State.HEADER_RECEIVED;
+		mKey.interestOps(0);
+		mResponseLatch.countDown();
+
+		if (mHandler != null) {
+			startBody();
+		}
+	}
+
+	/* the index of "\r\n\r\n" in the bytes read, -1 if not found */
+	private static int findHeaderEnd(ByteBuffer buffer) {
+		byte[] array = buffer.array();
+		for (int i = 0; i + 3 < buffer.position(); i++) {
+			if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* such as "HTTP/1.1 206 Partial Content", then a header per line */
+	private void parseHeader(String header) throws IOException {
+		String[] lines = header.split("\r\n");
+		String[] status = lines[0].split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+			throw new IOException("unexpected status line: " + lines[0]);
+		}
+		try {
+			mStatusCode = Integer.parseInt(status[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("unexpected status line: " + lines[0]);
+		}
+		mStatusMessage = status.length > 2 ? status[2] : "";
+
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				mHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+			}
+		}
+	}
+
+	private void startBody() {
+		if (!mHandler.onResponse(this)) {
+			fail(new IOException("response rejected"));
+			return;
+		}
+		if ("chunked".equalsIgnoreCase(mHeaders.get("transfer-encoding"))) {
+			fail(new IOException("chunked body is not supported"));
+			return;
+		}
+
+		mState = State.READING_BODY;
+		mBodyBuffer = mBufferPool.acquire(BODY_BUFFER_SIZE, true);
+		/* hand the beginning of body read with the header first */
+		if (mHeaderBuffer.hasRemaining() && !deliver(mHeaderBuffer)) {
+			return;
+		}
+		mHeaderBuffer = null;
+		if (mResumeNanos == 0) {
+			mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DownloadSelectorEngine.TIME_OUT);
+			mKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void readBody() throws IOException {
+		mBodyBuffer.clear();
+		mBodyBuffer.limit((int) Math.min(mBodyBuffer.capacity(), mHandler.getRemaining()));
+		int length = mChannel.read(mBodyBuffer);
+		if (length == -1) {
+			throw new EOFException("unexpected end of stream");
+		}
+		if (length == 0) {
+			return;
+		}
+
+		mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DownloadSelectorEngine.TIME_OUT);
+		mBodyBuffer.flip();
+		deliver(mBodyBuffer);
+	}
+
+	/* hand the bytes to the handler, returns false if the connection has finished */
+	private boolean deliver(ByteBuffer buffer) {
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), mHandler.getRemaining()));
+		long pauseNanos = mHandler.onBody(buffer);
+		buffer.limit(limit);
+		if (pauseNanos < 0) {
+			fail(new IOException("aborted"));
+			return false;
+		}
+
+		if (mHandler.getRemaining() <= 0) {
+			BodyHandler handler = mHandler;
+			close();
+			handler.onComplete();
+			return false;
+		}
+
+		if (pauseNanos > 0) {
+			mResumeNanos = System.nanoTime() + pauseNanos;
+			mKey.interestOps(0);
+		}
+		return true;
+	}
+
+	/* close and tell the waiting worker or the handler, I/O thread */
+	private void fail(IOException e) {
+		if (mState == State.CLOSED) {
+			return;
+		}
+
+		if (mError == null) {
+			mError = e;
+		}
+		close();
+		mResponseLatch.countDown();
+		if (mHandler != null) {
+			mHandler.onFailure(e);
+		}
+	}
+
+	private void close() {
+		mState = State.CLOSED;
+		if (mKey != null) {
+			mKey.cancel();
+		}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			DownloadLog.w(TAG, "cannot close channel", e);
+		}
+		mBufferPool.release(mBodyBuffer);
+		mBodyBuffer = null;
+		mHeaderBuffer = null;
+	}
+}
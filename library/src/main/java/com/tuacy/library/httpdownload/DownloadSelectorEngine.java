@@ -0,0 +1,212 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download selector engine: a small HTTP/1.1 client on non-blocking {@link SocketChannel}s, the response bodies of many downloads are
+ * received by a few I/O threads instead of a blocked thread each. Only plain http is supported, the downloads of https keep the transport
+ * of manager.
+ *
+ * Every connection sends one GET request and is closed after its response, the bodies are handed to a
+ * {@link DownloadSelectorConnection.BodyHandler} in the I/O thread, so the handler must not block.
+ */
+class DownloadSelectorEngine {
+
+	private static final String TAG = DownloadSelectorEngine.class.getSimpleName();
+
+	/**
+	 * Default count of I/O threads.
+	 */
+	static final int DEFAULT_IO_THREADS = 2;
+
+	/**
+	 * Time out of connecting and of waiting for data in millisecond, the same as the default transport.
+	 */
+	static final long TIME_OUT = 20 * 1000;
+
+	/**
+	 * Max time in millisecond an I/O thread waits in select, the aborted downloads and the expired pauses are polled after every select.
+	 * A throttled connection or a timeout due earlier shortens the wait, a parked connection is woken by {@link #wakeup()}.
+	 */
+	private static final long SELECT_TIMEOUT = 200;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final IoThread[]         mIoThreads;
+	private final AtomicInteger      mNextThread = new AtomicInteger();
+	private final DownloadBufferPool mBufferPool;
+
+	/**
+	 * @param ioThreads  count of I/O threads
+	 * @param bufferPool pool of the buffers receiving the bodies
+	 * @throws IOException if a selector cannot be opened
+	 */
+	DownloadSelectorEngine(int ioThreads, DownloadBufferPool bufferPool) throws IOException {
+		mBufferPool = bufferPool;
+		mIoThreads = new IoThread[ioThreads];
+		for (int i = 0; i < ioThreads; i++) {
+			mIoThreads[i] = new IoThread("DownloadSelector-" + i, Selector.open());
+		}
+		for (IoThread thread : mIoThreads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Whether or not the url can be downloaded by the selector engine.
+	 *
+	 * @param url url
+	 * @return true for plain http
+	 */
+	static boolean supports(String url) {
+		return url != null && url.regionMatches(true, 0, "http://", 0, 7);
+	}
+
+	/**
+	 * Open a connection and send a GET request. The host name is resolved in the calling thread, the rest is done in an I/O thread.
+	 *
+	 * @param url     the url to request, plain http
+	 * @param headers extra request headers
+	 * @return the connection, must be released by {@link DownloadConnection#release()} unless its body is handed to a handler
+	 * @throws IOException if the host cannot be resolved or the socket cannot be opened
+	 */
+	DownloadSelectorConnection open(String url, Map<String, String> headers) throws IOException {
+		URL target = new URL(url);
+		InetSocketAddress address = new InetSocketAddress(target.getHost(), target.getPort() == -1 ? 80 : target.getPort());
+		if (address.isUnresolved()) {
+			throw new UnknownHostException(target.getHost());
+		}
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			boolean connected = channel.connect(address);
+			IoThread thread = mIoThreads[(mNextThread.getAndIncrement() & Integer.MAX_VALUE) % mIoThreads.length];
+			byte[] request = buildRequest(target, headers);
+			DownloadSelectorConnection connection = new DownloadSelectorConnection(thread, channel, request, mBufferPool);
+			connection.start(connected);
+			return connection;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wake every I/O thread, the parked connections check at once whether they can read again.
+	 */
+	void wakeup() {
+		for (IoThread thread : mIoThreads) {
+			thread.getSelector().wakeup();
+		}
+	}
+
+	private static byte[] buildRequest(URL url, Map<String, String> headers) {
+		String path = url.getFile().isEmpty() ? "/" : url.getFile();
+		StringBuilder builder = new StringBuilder(256);
+		builder.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		builder.append("Host: ").append(url.getHost());
+		if (url.getPort() != -1) {
+			builder.append(':').append(url.getPort());
+		}
+		builder.append("\r\n");
+		builder.append("Accept-Encoding: identity\r\n");
+		builder.append("Connection: close\r\n");
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		builder.append("\r\n");
+		return builder.toString().getBytes(ASCII);
+	}
+
+	/**
+	 * I/O thread: runs the tasks posted to it and the ready connections of its selector. Every connection is only touched in its I/O thread
+	 * once started.
+	 */
+	static final class IoThread extends Thread {
+
+		private final Selector                        mSelector;
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+		IoThread(String name, Selector selector) {
+			super(name);
+			mSelector = selector;
+			setDaemon(true);
+		}
+
+		Selector getSelector() {
+			return mSelector;
+		}
+
+		/**
+		 * Run the task in this I/O thread as soon as possible.
+		 *
+		 * @param task task
+		 */
+		void post(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			DownloadPlatform.get().setBackgroundThreadPriority();
+			long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT);
+			while (true) {
+				try {
+					/* round up, a connection is not due before its time and select(0) would wait forever */
+					mSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1)));
+				} catch (IOException e) {
+					DownloadLog.w(TAG, "select failed", e);
+				}
+
+				Runnable task;
+				while ((task = mTasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						DownloadLog.w(TAG, "task failed", e);
+					}
+				}
+
+				/* a connection or handler throwing only fails its own connection, the I/O thread goes on with the others */
+				for (Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator(); iterator.hasNext(); ) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					DownloadSelectorConnection connection = (DownloadSelectorConnection) key.attachment();
+					try {
+						connection.onReady(key);
+					} catch (RuntimeException e) {
+						connection.onError(e);
+					}
+				}
+
+				long now = System.nanoTime();
+				timeoutNanos = TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT);
+				for (SelectionKey key : mSelector.keys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					DownloadSelectorConnection connection = (DownloadSelectorConnection) key.attachment();
+					try {
+						timeoutNanos = Math.min(timeoutNanos, connection.onTick(now));
+					} catch (RuntimeException e) {
+						connection.onError(e);
+					}
+				}
+			}
+		}
+	}
+}
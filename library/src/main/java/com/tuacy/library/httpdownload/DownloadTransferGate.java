@@ -0,0 +1,93 @@
+package com.tuacy.library.httpdownload;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download transfer gate: the running transfers of a manager park at it while paused, between two reads, so no more bytes are taken from
+ * the network and the server is held back by the receive window. A parked transfer keeps its connection, resuming does not connect again.
+ * If the pause lasts longer than the keep alive time, the server may have given the connection up, the transfers then stop at their
+ * breakpoint, release the connection and are queued again.
+ */
+class DownloadTransferGate {
+
+	/**
+	 * Default max time in millisecond a paused transfer keeps its connection.
+	 */
+	static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+	private volatile boolean mPaused;
+	private volatile long    mKeepAliveNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_KEEP_ALIVE);
+
+	/**
+	 * Time of the pause, guarded by this.
+	 */
+	private long mPausedNanos;
+
+	/**
+	 * Park the running transfers, does nothing if already paused.
+	 */
+	synchronized void pause() {
+		if (!mPaused) {
+			mPausedNanos = System.nanoTime();
+			mPaused = true;
+		}
+	}
+
+	/**
+	 * Let the parked transfers go on.
+	 */
+	synchronized void resume() {
+		mPaused = false;
+		notifyAll();
+	}
+
+	boolean isPaused() {
+		return mPaused;
+	}
+
+	/**
+	 * Set the max time a paused transfer keeps its connection.
+	 *
+	 * @param keepAlive time in millisecond, 0 to release the connections as soon as paused
+	 */
+	void setKeepAlive(long keepAlive) {
+		if (keepAlive < 0) {
+			throw new IllegalArgumentException("keep alive cannot be negative");
+		}
+		mKeepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAlive);
+	}
+
+	long getKeepAlive() {
+		return TimeUnit.NANOSECONDS.toMillis(mKeepAliveNanos);
+	}
+
+	/**
+	 * Whether or not the pause has lasted longer than the keep alive time, the transfers should release their connections.
+	 *
+	 * @return true if paused for too long
+	 */
+	synchronized boolean isExpired() {
+		return mPaused && System.nanoTime() - mPausedNanos >= mKeepAliveNanos;
+	}
+
+	/**
+	 * Wait until resumed, the pause has expired or the time out has elapsed, whichever comes first. The caller checks its own stop
+	 * conditions between the waits.
+	 *
+	 * @param timeout max time to wait in millisecond
+	 * @return false if the pause has expired, true otherwise
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized boolean await(long timeout) throws InterruptedException {
+		if (!mPaused) {
+			return true;
+		}
+
+		long leftNanos = mPausedNanos + mKeepAliveNanos - System.nanoTime();
+		if (leftNanos <= 0) {
+			return false;
+		}
+		TimeUnit.NANOSECONDS.timedWait(this, Math.min(leftNanos, TimeUnit.MILLISECONDS.toNanos(timeout)));
+		return !isExpired();
+	}
+}
@@ -0,0 +1,21 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Interface definition for the http transport used by download workers. The transport decides how connections are opened, limited and
+ * reused, the default one is {@link UrlConnectionTransport}.
+ */
+public interface DownloadTransport {
+
+	/**
+	 * Open a connection and send a GET request. Redirects must not be followed, the worker handles them.
+	 *
+	 * @param url     the url to request
+	 * @param headers extra request headers
+	 * @return the connection, must be released by {@link DownloadConnection#release()}
+	 * @throws IOException if the connection cannot be opened
+	 */
+	DownloadConnection open(String url, Map<String, String> headers) throws IOException;
+}
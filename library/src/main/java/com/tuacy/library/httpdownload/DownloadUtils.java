@@ -1,42 +1,168 @@
 package com.tuacy.library.httpdownload;
 
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.text.TextUtils;
-
-import java.io.IOException;
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Contains some utils used in download manager.
  */
 public class DownloadUtils {
 
-	private static final AtomicInteger REDIRECT_TIME = new AtomicInteger(0);
+	/**
+	 * Date format of http headers.
+	 */
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	/**
+	 * Returns true if the string is null or 0-length.
+	 *
+	 * @param str the string to be examined
+	 * @return true if str is null or zero length
+	 */
+	protected static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+
+	/**
+	 * To check whether current network is allowed by the request.
+	 *
+	 * @param allowedNetworkTypes allowed network types of request, 0 means all
+	 * @return true if the network is allowed
+	 */
+	protected static boolean isNetworkAllowed(int allowedNetworkTypes) {
+		if (allowedNetworkTypes == 0) {
+			return true;
+		}
+
+		/* any network other than wifi is taken as mobile */
+		int type = DownloadPlatform.get().getNetworkDetector().getActiveNetworkType();
+		return type == DownloadRequest.NETWORK_WIFI || (allowedNetworkTypes & DownloadRequest.NETWORK_MOBILE) != 0;
+	}
+
+	/**
+	 * Normalize url so that the same resource always has the same key: scheme and host are lower case, default port, empty path and
+	 * fragment are removed.
+	 *
+	 * @param url url
+	 * @return normalized url, or the trimmed url if it cannot be parsed
+	 */
+	protected static String normalizeUrl(String url) {
+		String trimmed = url.trim();
+		try {
+			URI uri = new URI(trimmed);
+			if (uri.getScheme() == null || uri.getHost() == null) {
+				return trimmed;
+			}
+
+			String scheme = uri.getScheme().toLowerCase(Locale.US);
+			int port = uri.getPort();
+			if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+				port = -1;
+			}
+			String path = isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath();
+
+			StringBuilder builder = new StringBuilder(trimmed.length());
+			builder.append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.US));
+			if (port != -1) {
+				builder.append(':').append(port);
+			}
+			builder.append(path);
+			if (uri.getRawQuery() != null) {
+				builder.append('?').append(uri.getRawQuery());
+			}
+			return builder.toString();
+		} catch (URISyntaxException e) {
+			return trimmed;
+		}
+	}
+
+	/**
+	 * Get the origin of url: lower case scheme and host, with the port if it is not the default one.
+	 *
+	 * @param url url
+	 * @return origin, or the trimmed url if it cannot be parsed
+	 */
+	protected static String getOrigin(String url) {
+		String normalized = normalizeUrl(url);
+		int start = normalized.indexOf("://");
+		if (start < 0) {
+			return normalized;
+		}
+
+		int end = normalized.indexOf('/', start + 3);
+		return end < 0 ? normalized : normalized.substring(0, end);
+	}
+
+	/**
+	 * Resolve the location of a redirect, which may be relative, against the url redirected.
+	 *
+	 * @param url      url redirected
+	 * @param location location header
+	 * @return absolute url, or the location if it cannot be resolved
+	 */
+	protected static String resolveUrl(String url, String location) {
+		try {
+			return new URL(new URL(url), location.trim()).toString();
+		} catch (MalformedURLException e) {
+			return location;
+		}
+	}
+
+	/**
+	 * Get the usable space of the partition where the file is saved.
+	 *
+	 * @param file file
+	 * @return usable bytes, -1 if unknown
+	 */
+	protected static long getUsableSpace(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		while (dir != null && !dir.exists()) {
+			dir = dir.getParentFile();
+		}
+
+		/* 0 is also returned when the partition cannot be queried */
+		long usableBytes = dir == null ? 0 : dir.getUsableSpace();
+		return usableBytes > 0 ? usableBytes : -1;
+	}
 
 	/**
-	 * To check whether current network is wifi.
+	 * Parse the Retry-After header, either delay seconds or a http date.
 	 *
-	 * @param context context
-	 * @return true if network if wifi, otherwise return false
+	 * @param retryAfter value of header
+	 * @return wait in millisecond, -1 if absent or invalid
 	 */
-	protected static boolean isWifi(Context context) {
-		if (context == null) {
-			return false;
+	protected static long parseRetryAfter(String retryAfter) {
+		if (isEmpty(retryAfter)) {
+			return -1;
 		}
 
-		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo info = manager.getActiveNetworkInfo();
+		String value = retryAfter.trim();
+		try {
+			return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+		} catch (NumberFormatException e) {
+			/* not seconds, try http date */
+		}
 
-		return info != null && (info.getType() == ConnectivityManager.TYPE_WIFI);
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+		} catch (ParseException e) {
+			return -1;
+		}
 	}
 
 	/* get uuid without '-' */
@@ -58,92 +184,94 @@ public class DownloadUtils {
 	}
 
 	/**
-	 * Get filename from url.
+	 * Get filename from url, the query and the fragment are ignored.
 	 *
 	 * @param url url
-	 * @return filename or null if no available filename
+	 * @return filename, md5 of url if the url has no filename with extension
 	 */
-	private static String getFilenameFromUrl(String url) {
-		String filename = md5(url) + ".down";
-
-		int index = url.lastIndexOf("/");
-		if (index > 0) {
-			String tmpFilename = url.substring(index);
-			int qmarkIndex = tmpFilename.indexOf("?");
-			if (qmarkIndex > 0) {
-				tmpFilename = tmpFilename.substring(0, qmarkIndex - 1);
-			}
+	protected static String getFilenameFromUrl(String url) {
+		String path = url;
+		int endIndex = path.length();
+		int qmarkIndex = path.indexOf('?');
+		if (qmarkIndex >= 0) {
+			endIndex = qmarkIndex;
+		}
+		int hashIndex = path.indexOf('#');
+		if (hashIndex >= 0 && hashIndex < endIndex) {
+			endIndex = hashIndex;
+		}
+		path = path.substring(0, endIndex);
 
-			/* if filename contains '.', then the filename has file extension */
-			if (tmpFilename.contains(".")) {
-				filename = tmpFilename;
-			}
+		String tmpFilename = sanitizeFilename(decode(path.substring(path.lastIndexOf('/') + 1)));
+		/* if filename contains '.', then the filename has file extension */
+		if (tmpFilename != null && tmpFilename.contains(".")) {
+			return tmpFilename;
 		}
 
-		return filename;
+		return md5(url) + ".down";
 	}
 
 	/**
-	 * Get real filename from http header.
+	 * Get filename from Content-Disposition header, "filename*" with charset is preferred to "filename".
 	 *
-	 * @param downloadUrl the url to download
-	 * @return real filename
+	 * @param contentDisposition value of Content-Disposition header, may be null
+	 * @return filename, or null if the header has no filename
 	 */
-	protected static String getFilenameFromHeader(String downloadUrl) {
-		String filename = md5(downloadUrl) + ".down";
-		HttpURLConnection conn = null;
-		try {
-			URL url = new URL(downloadUrl);
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setInstanceFollowRedirects(false);
-
-			int statusCode = conn.getResponseCode();
-			switch (statusCode) {
-				case 301:
-				case 302:
-				case 303:
-				case 307:
-					String location = conn.getHeaderField("Location");
-					/* avoid to much redirection */
-					if (REDIRECT_TIME.addAndGet(1) > 5 || TextUtils.isEmpty(location)) {
-						filename = getFilenameFromUrl(downloadUrl);
-					} else {
-						filename = getFilenameFromHeader(location);
-					}
-					break;
-
-				case 200:
-				default:
-				/* try to get filename from content disposition */
-					String contentDispos = conn.getHeaderField("Content-Disposition");
-					if (!TextUtils.isEmpty(contentDispos)) {
-						int index = contentDispos.indexOf("filename");
-						if (index > 0) {
-							filename = contentDispos.substring(index + 10, contentDispos.length() - 1);
-						} else {
-							filename = getFilenameFromUrl(downloadUrl);
-						}
-					} else {
-						filename = getFilenameFromUrl(downloadUrl);
-					}
-					break;
+	protected static String getFilenameFromContentDisposition(String contentDisposition) {
+		if (isEmpty(contentDisposition)) {
+			return null;
+		}
+
+		String filename = null;
+		for (String param : contentDisposition.split(";")) {
+			int index = param.indexOf('=');
+			if (index < 0) {
+				continue;
 			}
-		} catch (IOException e) {
-			return filename;
-		} finally {
-			if (conn != null) {
-				conn.disconnect();
+
+			String name = param.substring(0, index).trim().toLowerCase(Locale.US);
+			String value = param.substring(index + 1).trim();
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+				value = value.substring(1, value.length() - 1);
 			}
 
-			REDIRECT_TIME.set(5);
+			if ("filename*".equals(name)) {
+				/* RFC 5987: charset'language'percent-encoded-value */
+				int first = value.indexOf('\'');
+				int second = first < 0 ? -1 : value.indexOf('\'', first + 1);
+				if (second > 0) {
+					String charset = first > 0 ? value.substring(0, first) : "UTF-8";
+					String extended = sanitizeFilename(decode(value.substring(second + 1), charset));
+					if (extended != null) {
+						return extended;
+					}
+				}
+			} else if ("filename".equals(name) && filename == null) {
+				filename = sanitizeFilename(value);
+			}
 		}
+		return filename;
+	}
 
-		try {
-			filename = URLDecoder.decode(filename, "UTF-8");
-		} catch (UnsupportedEncodingException ignore) {
-			/* ignore */
+	/* drop any directory part, a filename from server must not escape the destination directory */
+	private static String sanitizeFilename(String filename) {
+		if (filename == null) {
+			return null;
 		}
 
-		return filename;
+		filename = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1).trim();
+		return filename.length() == 0 || ".".equals(filename) || "..".equals(filename) ? null : filename;
+	}
+
+	private static String decode(String value) {
+		return decode(value, "UTF-8");
+	}
+
+	private static String decode(String value, String charset) {
+		try {
+			return URLDecoder.decode(value.replace("+", "%2B"), charset);
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return value;
+		}
 	}
 }
@@ -0,0 +1,243 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Download verifier: checks the file against the expected digest of request while it is being downloaded, so the verification costs no
+ * second pass over the file in the common case.
+ *
+ * Every segment keeps the CRC32C of the bytes received, updated with its position and saved in the journal. For CRC32C the checksums of
+ * segments are combined at the end. MD5 and SHA-256 can only be computed in file order: the bytes at the hashed frontier are hashed as
+ * they arrive, the bytes downloaded ahead of the frontier by other segments, or before a resume, are read back from the temp file. With a
+ * single segment nothing is read back.
+ *
+ * When the digest does not match, every segment is read back and compared with its checksum of the bytes received, the segments which
+ * did not reach the disk intact are the only ones downloaded again.
+ */
+class DownloadVerifier {
+
+	private static final String TAG = DownloadVerifier.class.getSimpleName();
+
+	/**
+	 * Buffer size used to read back the temp file.
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final DownloadRequest    mRequest;
+	private final DownloadJournal    mJournal;
+	private final DownloadBufferPool mBufferPool;
+	private final File               mFile;
+
+	/**
+	 * Digest of MD5 or SHA-256, null for CRC32C.
+	 */
+	private final MessageDigest mDigest;
+
+	/**
+	 * Bytes from the beginning of file which have been hashed, guarded by this.
+	 */
+	private long mHashedBytes = 0;
+
+	private DownloadVerifier(DownloadRequest request, DownloadJournal journal, DownloadBufferPool bufferPool, MessageDigest digest) {
+		mRequest = request;
+		mJournal = journal;
+		mBufferPool = bufferPool;
+		mFile = new File(request.getTmpDestinationPath());
+		mDigest = digest;
+	}
+
+	/**
+	 * Create the verifier of download attempt, the bytes downloaded before are checksummed or hashed first if needed.
+	 *
+	 * @param request    download request
+	 * @param journal    journal of the attempt
+	 * @param bufferPool pool of the buffers used to read back
+	 * @return verifier, null if the request has no expected digest
+	 * @throws IOException if the temp file cannot be read
+	 */
+	static DownloadVerifier create(DownloadRequest request, DownloadJournal journal, DownloadBufferPool bufferPool) throws IOException {
+		DownloadRequest.DigestAlgorithm algorithm = request.getDigestAlgorithm();
+		if (algorithm == null) {
+			return null;
+		}
+
+		MessageDigest digest = null;
+		if (algorithm.getName() != null) {
+			try {
+				digest = MessageDigest.getInstance(algorithm.getName());
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("digest algorithm not supported: " + algorithm.getName());
+			}
+		}
+
+		DownloadVerifier verifier = new DownloadVerifier(request, journal, bufferPool, digest);
+		if (!journal.isChecksummed()) {
+			/* the journal was written without verification, checksum the bytes downloaded before */
+			for (DownloadSegment segment : journal.getSegments()) {
+				segment.setCrc(verifier.checksum(segment.getStart(), segment.getPosition()));
+			}
+			journal.setChecksummed(true);
+		}
+		verifier.catchUp();
+		return verifier;
+	}
+
+	/**
+	 * Checksum and hash the bytes received by a segment, must be invoked before the position of segment is moved.
+	 *
+	 * @param segment segment receiving the bytes
+	 * @param buffer  bytes
+	 * @param length  count of bytes
+	 * @return CRC32C of the segment including the bytes
+	 */
+	int update(DownloadSegment segment, byte[] buffer, int length) {
+		if (mDigest != null) {
+			synchronized (this) {
+				if (segment.getPosition() == mHashedBytes) {
+					mDigest.update(buffer, 0, length);
+					mHashedBytes += length;
+				}
+			}
+		}
+		return DownloadCrc32c.update(segment.getCrc(), buffer, 0, length);
+	}
+
+	/**
+	 * Checksum and hash the bytes received by a segment, must be invoked before the position of segment is moved.
+	 *
+	 * @param segment segment receiving the bytes
+	 * @param buffer  bytes between position and limit, the position is not changed
+	 * @param scratch array used to copy the bytes of a direct buffer
+	 * @return CRC32C of the segment including the bytes
+	 */
+	int update(DownloadSegment segment, ByteBuffer buffer, byte[] scratch) {
+		if (mDigest != null) {
+			synchronized (this) {
+				if (segment.getPosition() == mHashedBytes) {
+					mDigest.update(buffer.duplicate());
+					mHashedBytes += buffer.remaining();
+				}
+			}
+		}
+		return DownloadCrc32c.update(segment.getCrc(), buffer, scratch);
+	}
+
+	/**
+	 * Compute the digest of the whole file and compare it with the expected one, invoked after every segment has completed.
+	 *
+	 * @return true if matched
+	 * @throws IOException if the temp file cannot be read
+	 */
+	boolean verify() throws IOException {
+		String actual;
+		if (mDigest != null) {
+			catchUp();
+			actual = toHex(mDigest.digest());
+		} else {
+			int crc = 0;
+			for (DownloadSegment segment : mJournal.getSegments()) {
+				crc = DownloadCrc32c.combine(crc, segment.getCrc(), segment.getPosition() - segment.getStart());
+			}
+			actual = DownloadCrc32c.toHex(crc);
+		}
+
+		boolean matched = actual.equals(mRequest.getExpectedDigest());
+		if (!matched) {
+			DownloadLog.w(TAG, "digest mismatch, download id: " + mRequest.getDownloadId() + ", expected: " + mRequest.getExpectedDigest() +
+							   ", actual: " + actual);
+		}
+		return matched;
+	}
+
+	/**
+	 * Find the segments whose bytes in the temp file differ from the bytes received.
+	 *
+	 * @return the corrupt segments, empty if the file holds exactly the bytes received
+	 * @throws IOException if the temp file cannot be read
+	 */
+	List<DownloadSegment> findCorruptSegments() throws IOException {
+		List<DownloadSegment> corrupt = new ArrayList<>();
+		for (DownloadSegment segment : mJournal.getSegments()) {
+			if (checksum(segment.getStart(), segment.getPosition()) != segment.getCrc()) {
+				corrupt.add(segment);
+			}
+		}
+		return corrupt;
+	}
+
+	/* hash the bytes of temp file from the frontier to the first byte not written yet */
+	private synchronized void catchUp() throws IOException {
+		if (mDigest == null) {
+			return;
+		}
+
+		long end = mHashedBytes;
+		for (DownloadSegment segment : mJournal.getSegments()) {
+			if (segment.getEnd() < end) {
+				continue;
+			}
+			end = segment.getPosition();
+			if (!segment.isComplete()) {
+				break;
+			}
+		}
+		if (end <= mHashedBytes) {
+			return;
+		}
+
+		DownloadLog.i(TAG, "read back " + (end - mHashedBytes) + " bytes to hash, download id: " + mRequest.getDownloadId());
+		read(mHashedBytes, end, true);
+		mHashedBytes = end;
+	}
+
+	/* CRC32C of the bytes of temp file in [start, end) */
+	private int checksum(long start, long end) throws IOException {
+		return read(start, end, false);
+	}
+
+	/* read the bytes of temp file in [start, end), hash them if asked, return their CRC32C */
+	private int read(long start, long end, boolean hash) throws IOException {
+		if (end <= start) {
+			return 0;
+		}
+
+		int crc = 0;
+		ByteBuffer pooledBuffer = mBufferPool.acquire(READ_BUFFER_SIZE, false);
+		RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+		try {
+			byte[] buffer = pooledBuffer.array();
+			raf.seek(start);
+			for (long position = start; position < end; ) {
+				int length = raf.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+				if (length == -1) {
+					throw new IOException("unexpected end of temp file");
+				}
+				if (hash) {
+					mDigest.update(buffer, 0, length);
+				} else {
+					crc = DownloadCrc32c.update(crc, buffer, 0, length);
+				}
+				position += length;
+			}
+		} finally {
+			raf.close();
+			mBufferPool.release(pooledBuffer);
+		}
+		return crc;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+}
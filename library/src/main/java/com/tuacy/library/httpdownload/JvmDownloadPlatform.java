@@ -0,0 +1,99 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Download platform of a plain JVM: logs go to java.util.logging, callbacks are delivered in one daemon thread, the network is taken as
+ * unmetered and files are saved in "Download" of the temp directory.
+ */
+public class JvmDownloadPlatform extends DownloadPlatform {
+
+	private final DownloadLogger mLogger = new DownloadLogger() {
+		@Override
+		public void i(String tag, String msg) {
+			Logger.getLogger(tag).info(msg);
+		}
+
+		@Override
+		public void w(String tag, String msg, Throwable tr) {
+			Logger.getLogger(tag).log(Level.WARNING, msg, tr);
+		}
+	};
+
+	private final DownloadNetworkDetector mNetworkDetector = new DownloadNetworkDetector() {
+		@Override
+		public int getActiveNetworkType() {
+			return DownloadRequest.NETWORK_WIFI;
+		}
+	};
+
+	@Override
+	public DownloadLogger getLogger() {
+		return mLogger;
+	}
+
+	@Override
+	public DownloadCallbackExecutor newCallbackExecutor() {
+		final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DownloadCallback");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		return new DownloadCallbackExecutor() {
+			@Override
+			public void execute(Runnable command) {
+				executor.execute(command);
+			}
+
+			@Override
+			public void executeDelayed(Runnable command, long delayMillis) {
+				executor.schedule(command, delayMillis, TimeUnit.MILLISECONDS);
+			}
+		};
+	}
+
+	@Override
+	public DownloadNetworkDetector getNetworkDetector() {
+		return mNetworkDetector;
+	}
+
+	@Override
+	public void setBackgroundThreadPriority() {
+		/* java thread priorities are only hints, leave them alone */
+	}
+
+	@Override
+	public String getDefaultDirectory() {
+		return new File(System.getProperty("java.io.tmpdir"), "Download").getAbsolutePath();
+	}
+
+	/**
+	 * Sync the directory through a read only channel, some systems such as windows cannot open a directory, it is skipped there.
+	 */
+	@Override
+	public void syncDirectory(File directory) {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			/* the rename is still done, only its durability is left to the system */
+		}
+	}
+}
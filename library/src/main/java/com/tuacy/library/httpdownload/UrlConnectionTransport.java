@@ -0,0 +1,269 @@
+package com.tuacy.library.httpdownload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download transport based on {@link HttpURLConnection}. Sockets are pooled by the keep-alive cache of platform: a connection whose body
+ * has been read completely is closed instead of disconnected, so the next request to the same host reuses the warm socket without a new
+ * TCP(and TLS) handshake. The transport limits the connections in flight per host, a connection opened beyond the limit waits in line for
+ * one of them to be released, and fails like a connect time out if none is released in time, the download then retries from its journal.
+ *
+ * How many idle sockets are kept per host and when they are evicted is decided by the connection pool of platform, which is shared by every
+ * HttpURLConnection in the process and configured by the app, e.g. by the {@code http.maxConnections} and {@code http.keepAliveDuration}
+ * system properties set before the first connection.
+ */
+public class UrlConnectionTransport implements DownloadTransport {
+
+	private static final String TAG = UrlConnectionTransport.class.getSimpleName();
+
+	/**
+	 * Default max connections in flight per host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+
+	/**
+	 * Http connection time out.
+	 */
+	private static final int DEFAULT_TIME_OUT = 20 * 1000;
+
+	/**
+	 * The most bytes drained from an unread body(redirect or error page) to keep its socket.
+	 */
+	private static final int MAX_DRAIN_BYTES = 16 * 1024;
+
+	/**
+	 * Accept encoding in request header.
+	 */
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	/**
+	 * Content length in header.
+	 */
+	private static final String CONTENT_LENGTH = "Content-Length";
+
+	private final int                                 mMaxConnectionsPerHost;
+	private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+
+	public UrlConnectionTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * @param maxConnectionsPerHost max connections in flight per host
+	 */
+	public UrlConnectionTransport(int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("max connections per host must be greater than 0");
+		}
+
+		mMaxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	@Override
+	public DownloadConnection open(String downloadUrl, Map<String, String> headers) throws IOException {
+		URL url = new URL(downloadUrl);
+		Semaphore permits = getHostPermits(url);
+		try {
+			/* waiting for a permit is part of connecting, so it times out like connecting does */
+			if (!permits.tryAcquire(DEFAULT_TIME_OUT, TimeUnit.MILLISECONDS)) {
+				throw new SocketTimeoutException("no connection to " + url.getHost() + " released in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a connection to " + url.getHost());
+		}
+
+		HttpURLConnection conn = null;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+
+			/* config http url connection */
+			conn.setInstanceFollowRedirects(false);
+			conn.setUseCaches(false);
+			conn.setRequestProperty(ACCEPT_ENCODING, "identity");
+			conn.setConnectTimeout(DEFAULT_TIME_OUT);
+			conn.setReadTimeout(DEFAULT_TIME_OUT);
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				conn.setRequestProperty(header.getKey(), header.getValue());
+			}
+			conn.connect();
+
+			return new UrlConnection(conn, permits);
+		} catch (IOException | RuntimeException e) {
+			if (conn != null) {
+				conn.disconnect();
+			}
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the max connections in flight per host, a segmented download never splits into more.
+	 *
+	 * @return max connections per host
+	 */
+	public int getMaxConnectionsPerHost() {
+		return mMaxConnectionsPerHost;
+	}
+
+	private Semaphore getHostPermits(URL url) {
+		String host = url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+		Semaphore permits = mHostPermits.get(host);
+		if (permits == null) {
+			permits = new Semaphore(mMaxConnectionsPerHost, true);
+			Semaphore existed = mHostPermits.putIfAbsent(host, permits);
+			if (existed != null) {
+				permits = existed;
+			}
+		}
+		return permits;
+	}
+
+	private static class UrlConnection implements DownloadConnection {
+
+		private final HttpURLConnection mConnection;
+		private final Semaphore         mPermits;
+		private       CountingStream    mInputStream;
+		private       boolean           mReleased;
+
+		UrlConnection(HttpURLConnection connection, Semaphore permits) {
+			mConnection = connection;
+			mPermits = permits;
+		}
+
+		@Override
+		public int getResponseCode() throws IOException {
+			return mConnection.getResponseCode();
+		}
+
+		@Override
+		public String getResponseMessage() throws IOException {
+			return mConnection.getResponseMessage();
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			return mConnection.getHeaderField(name);
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (mInputStream == null) {
+				mInputStream = new CountingStream(mConnection.getInputStream(), getContentLength());
+			}
+			return mInputStream;
+		}
+
+		@Override
+		public synchronized void release() {
+			if (mReleased) {
+				return;
+			}
+			mReleased = true;
+
+			try {
+				if (mInputStream == null) {
+					/* the body has not been read(redirect or error), drain it if it is small so the socket can be reused */
+					mInputStream = new CountingStream(openBodyQuietly(), getContentLength());
+					mInputStream.drain(MAX_DRAIN_BYTES);
+				}
+
+				if (mInputStream.isConsumed()) {
+					/* closing a consumed body gives the socket back to the keep-alive cache */
+					mInputStream.close();
+				} else {
+					mConnection.disconnect();
+				}
+			} catch (IOException e) {
+				DownloadLog.w(TAG, "cannot release connection", e);
+				mConnection.disconnect();
+			} finally {
+				mPermits.release();
+			}
+		}
+
+		private InputStream openBodyQuietly() {
+			try {
+				return mConnection.getInputStream();
+			} catch (IOException e) {
+				return mConnection.getErrorStream();
+			}
+		}
+
+		private long getContentLength() {
+			String contentLength = mConnection.getHeaderField(CONTENT_LENGTH);
+			try {
+				return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Input stream which counts the bytes read, to know whether the body has been read completely.
+	 */
+	private static class CountingStream extends FilterInputStream {
+
+		private final long    mContentLength;
+		private       long    mBytesRead;
+		private       boolean mEndOfStream;
+
+		CountingStream(InputStream in, long contentLength) {
+			super(in);
+			mContentLength = contentLength;
+			mEndOfStream = in == null;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) {
+				mEndOfStream = true;
+			} else {
+				mBytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int length = super.read(buffer, offset, count);
+			if (length == -1) {
+				mEndOfStream = true;
+			} else {
+				mBytesRead += length;
+			}
+			return length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				super.close();
+			}
+		}
+
+		boolean isConsumed() {
+			return mEndOfStream || (mContentLength >= 0 && mBytesRead >= mContentLength);
+		}
+
+		void drain(int maxBytes) throws IOException {
+			byte[] buffer = new byte[1024];
+			while (!isConsumed() && mBytesRead < maxBytes) {
+				read(buffer, 0, buffer.length);
+			}
+		}
+	}
+}
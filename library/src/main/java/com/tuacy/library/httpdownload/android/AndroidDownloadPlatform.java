@@ -0,0 +1,177 @@
+package com.tuacy.library.httpdownload.android;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.tuacy.library.httpdownload.DownloadCallbackExecutor;
+import com.tuacy.library.httpdownload.DownloadLogger;
+import com.tuacy.library.httpdownload.DownloadNetworkDetector;
+import com.tuacy.library.httpdownload.DownloadPlatform;
+import com.tuacy.library.httpdownload.DownloadRequest;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Download platform of android: callbacks are delivered in main thread, workers run in background priority and files are saved in the
+ * public download directory. The network type can only be detected if a context is given, be sure to add permission
+ * android.permission.ACCESS_NETWORK_STATE.
+ */
+public class AndroidDownloadPlatform extends DownloadPlatform {
+
+	private static final String TAG = AndroidDownloadPlatform.class.getSimpleName();
+
+	private final Context mContext;
+
+	private final DownloadLogger mLogger = new DownloadLogger() {
+		@Override
+		public void i(String tag, String msg) {
+			Log.i(tag, msg);
+		}
+
+		@Override
+		public void w(String tag, String msg, Throwable tr) {
+			Log.w(tag, msg, tr);
+		}
+	};
+
+	private final DownloadNetworkDetector mNetworkDetector = new DownloadNetworkDetector() {
+		@Override
+		public int getActiveNetworkType() {
+			if (mContext == null) {
+				return 0;
+			}
+
+			ConnectivityManager manager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = manager.getActiveNetworkInfo();
+			if (info == null) {
+				return 0;
+			}
+			return info.getType() == ConnectivityManager.TYPE_WIFI ? DownloadRequest.NETWORK_WIFI : DownloadRequest.NETWORK_MOBILE;
+		}
+	};
+
+	/**
+	 * Create the platform without context, the network type cannot be detected.
+	 */
+	public AndroidDownloadPlatform() {
+		this(null);
+	}
+
+	/**
+	 * @param context the context used to detect network type
+	 */
+	public AndroidDownloadPlatform(Context context) {
+		mContext = context == null ? null : context.getApplicationContext();
+	}
+
+	/**
+	 * The network type is only detected if the platform has been created with a context.
+	 */
+	@Override
+	public boolean isNetworkDetectable() {
+		return mContext != null;
+	}
+
+	@Override
+	public DownloadLogger getLogger() {
+		return mLogger;
+	}
+
+	@Override
+	public DownloadCallbackExecutor newCallbackExecutor() {
+		final Handler handler = new Handler(Looper.getMainLooper());
+		return new DownloadCallbackExecutor() {
+			@Override
+			public void execute(Runnable command) {
+				handler.post(command);
+			}
+
+			@Override
+			public void executeDelayed(Runnable command, long delayMillis) {
+				handler.postDelayed(command, delayMillis);
+			}
+		};
+	}
+
+	@Override
+	public DownloadNetworkDetector getNetworkDetector() {
+		return mNetworkDetector;
+	}
+
+	@Override
+	public void setBackgroundThreadPriority() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+	}
+
+	@Override
+	public String getDefaultDirectory() {
+		return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
+	}
+
+	/**
+	 * Reserve the blocks with posix_fallocate on android 5.0 and above, so the file is not fragmented and a full disk fails at once. File
+	 * systems without fallocate fall back to setting the length.
+	 */
+	@Override
+	public void allocate(RandomAccessFile file, long length) throws IOException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && file.length() < length && Lollipop.fallocate(file, length)) {
+			return;
+		}
+		super.allocate(file, length);
+	}
+
+	/**
+	 * Sync the directory with fsync on android 5.0 and above, older versions cannot open a directory.
+	 */
+	@Override
+	public void syncDirectory(File directory) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			Lollipop.fsync(directory);
+		}
+	}
+
+	/**
+	 * Calls of android 5.0, in their own class so the platform is verified on older versions.
+	 */
+	private static class Lollipop {
+
+		/* return false if the file system does not support fallocate */
+		static boolean fallocate(RandomAccessFile file, long length) throws IOException {
+			try {
+				Os.posix_fallocate(file.getFD(), 0, length);
+				return true;
+			} catch (ErrnoException e) {
+				if (e.errno == OsConstants.ENOSPC) {
+					throw new IOException("no space left on device", e);
+				}
+				return false;
+			}
+		}
+
+		static void fsync(File directory) {
+			try {
+				FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+				try {
+					Os.fsync(fd);
+				} finally {
+					Os.close(fd);
+				}
+			} catch (ErrnoException e) {
+				Log.w(TAG, "cannot sync directory " + directory, e);
+			}
+		}
+	}
+}